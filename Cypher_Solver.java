@@ -1,7 +1,113 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class Main
 {
@@ -11,62 +117,223 @@ public class Main
 
     // Rail‑Fence encryption (as given)
     static String encryptRailFence(String input)
+    {
+        // The original three passes (every 4th character from 0, every 2nd from 1, every 4th from 2)
+        // are exactly the rails of a 3‑rail zigzag, so the legacy scheme is a preset of RailFence.
+        return encryptRailFence(input, RailFence.LEGACY);
+    }
+
+    // Rail‑Fence decryption (as given)
+    static String decryptRailFence(String input)
+    {
+        return decryptRailFence(input, RailFence.LEGACY);
+    }
+
+    // Rail‑Fence encryption with any number of rails and starting offset
+    static String encryptRailFence(String input, RailFence fence)
     {
         if (input == null)
         {
             return "";
         }
+        char[] source = input.toCharArray();
+        char[] output = new char[source.length];
+        fence.encrypt(source, 0, output, 0, source.length);
+        return new String(output);
+    }
+
+    // Rail‑Fence decryption with any number of rails and starting offset
+    static String decryptRailFence(String input, RailFence fence)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+        char[] source = input.toCharArray();
+        char[] output = new char[source.length];
+        fence.decrypt(source, 0, output, 0, source.length);
+        return new String(output);
+    }
+
+    /**
+     * N‑rail Rail‑Fence cipher.
+     *
+     * Characters are written along a zigzag over the rails, starting offset steps into the
+     * 2 * (rails - 1) long cycle, and read back rail by rail. The zigzag is turned into an index
+     * permutation once per (length, rails, offset) and kept in a small LRU cache, so files with many
+     * lines of the same length reuse it; encryption is then one gather pass and decryption one
+     * scatter pass into the caller's buffer.
+     */
+    static final class RailFence
+    {
+        /** The scheme this program always used: three rails starting at the top. */
+        static final RailFence LEGACY = new RailFence(3, 0);
+
+        private static final int CACHE_ENTRIES = 64;
+        private static final int MAX_CACHED_LENGTH = 1 << 16;
+        private static final Map<PermutationKey, int[]> CACHE = new LinkedHashMap<>(CACHE_ENTRIES, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PermutationKey, int[]> eldest)
+            {
+                return size() > CACHE_ENTRIES;
+            }
+        };
+
+        private record PermutationKey(int length, int rails, int offset) {}
+
+        private final int rails;
+        private final int offset;
+        private final int cycle;
+
+        RailFence(int rails, int offset)
+        {
+            if (rails < 1)
+            {
+                throw new IllegalArgumentException("Rail‑Fence needs at least one rail");
+            }
+            this.rails = rails;
+            this.cycle = Math.max(1, 2 * (rails - 1));
+            if (offset < 0 || offset >= cycle)
+            {
+                throw new IllegalArgumentException("Rail‑Fence offset must be between 0 and " + (cycle - 1));
+            }
+            this.offset = offset;
+        }
 
-        StringBuilder output = new StringBuilder();
+        int rails()
+        {
+            return rails;
+        }
 
-        // Process characters in three passes:
-        // 1. Append every 4th character starting at index 0.
-        // 2. Append every 2nd character starting at index 1.
-        // 3. Append every 4th character starting at index 2.
-        // (This is a non‑standard rail‑fence cipher approach.)
-        for (int i = 0; i < input.length(); i += 4)
+        int offset()
         {
-            output.append(input.charAt(i));
+            return offset;
         }
-        for (int i = 1; i < input.length(); i += 2)
+
+        /**
+         * Writes the ciphertext of src[srcOffset, srcOffset + length) to dst; the arrays must not overlap.
+         */
+        void encrypt(char[] src, int srcOffset, char[] dst, int dstOffset, int length)
         {
-            output.append(input.charAt(i));
+            permute(permutation(length), true, src, srcOffset, dst, dstOffset);
         }
-        for (int i = 2; i < input.length(); i += 4)
+
+        /**
+         * Writes the plaintext of src[srcOffset, srcOffset + length) to dst; the arrays must not overlap.
+         */
+        void decrypt(char[] src, int srcOffset, char[] dst, int dstOffset, int length)
         {
-            output.append(input.charAt(i));
+            permute(permutation(length), false, src, srcOffset, dst, dstOffset);
         }
 
-        return output.toString();
-    }
+        /**
+         * Byte versions of encrypt and decrypt for single‑byte text.
+         */
+        void encrypt(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+        {
+            permute(permutation(length), true, src, srcOffset, dst, dstOffset);
+        }
 
-    // Rail‑Fence decryption (as given)
-    static String decryptRailFence(String input)
-    {
-        if (input == null)
+        void decrypt(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
         {
-            return "";
+            permute(permutation(length), false, src, srcOffset, dst, dstOffset);
         }
 
-        // Create a mutable string builder based on the input.
-        StringBuilder output = new StringBuilder(input);
-        int idx = 0; // This index tracks our position in the cipher text.
+        /**
+         * Encrypts or decrypts permutation.length characters with a permutation the caller keeps,
+         * which avoids rebuilding uncached permutations for every block of the same size.
+         */
+        static void permute(int[] permutation, boolean encrypt, char[] src, int srcOffset, char[] dst, int dstOffset)
+        {
+            if (encrypt)
+            {
+                for (int j = 0; j < permutation.length; j++)
+                {
+                    dst[dstOffset + j] = src[srcOffset + permutation[j]];
+                }
+            }
+            else
+            {
+                for (int j = 0; j < permutation.length; j++)
+                {
+                    dst[dstOffset + permutation[j]] = src[srcOffset + j];
+                }
+            }
+        }
 
-        // Reverse the encryption steps by writing characters back into their original positions.
-        for (int i = 0; i < input.length(); i += 4)
+        static void permute(int[] permutation, boolean encrypt, byte[] src, int srcOffset, byte[] dst, int dstOffset)
         {
-            output.setCharAt(i, input.charAt(idx++));
+            if (encrypt)
+            {
+                for (int j = 0; j < permutation.length; j++)
+                {
+                    dst[dstOffset + j] = src[srcOffset + permutation[j]];
+                }
+            }
+            else
+            {
+                for (int j = 0; j < permutation.length; j++)
+                {
+                    dst[dstOffset + permutation[j]] = src[srcOffset + j];
+                }
+            }
         }
-        for (int i = 1; i < input.length(); i += 2)
+
+        /**
+         * Returns p such that ciphertext position j holds plaintext position p[j].
+         */
+        int[] permutation(int length)
         {
-            output.setCharAt(i, input.charAt(idx++));
+            if (length > MAX_CACHED_LENGTH)
+            {
+                return buildPermutation(length);
+            }
+            PermutationKey key = new PermutationKey(length, rails, offset);
+            synchronized (CACHE)
+            {
+                int[] cached = CACHE.get(key);
+                if (cached != null)
+                {
+                    return cached;
+                }
+            }
+            int[] permutation = buildPermutation(length);
+            synchronized (CACHE)
+            {
+                CACHE.put(key, permutation);
+            }
+            return permutation;
         }
-        for (int i = 2; i < input.length(); i += 4)
+
+        private int railOf(int position)
         {
-            output.setCharAt(i, input.charAt(idx++));
+            int step = (position + offset) % cycle;
+            return step < rails ? step : cycle - step;
         }
 
-        return output.toString();
+        private int[] buildPermutation(int length)
+        {
+            // Count the characters on every rail to find where each rail starts in the ciphertext.
+            int[] next = new int[rails];
+            for (int i = 0; i < length; i++)
+            {
+                next[railOf(i)]++;
+            }
+            int start = 0;
+            for (int r = 0; r < rails; r++)
+            {
+                int count = next[r];
+                next[r] = start;
+                start += count;
+            }
+            int[] permutation = new int[length];
+            for (int i = 0; i < length; i++)
+            {
+                permutation[next[railOf(i)]++] = i;
+            }
+            return permutation;
+        }
     }
 
     // ***********************
@@ -81,28 +348,19 @@ public class Main
             return "";
         }
 
-        // Convert both input and key to uppercase for uniform processing.
-        input = input.toUpperCase();
-        key = key.toUpperCase();
-        StringBuilder output = new StringBuilder();
-
-        // Iterate over each character in the input string.
-        for (int i = 0; i < input.length(); i++)
+        // Convert the input to uppercase for uniform processing; the table upper‑cases the key.
+        // ASCII text takes the byte path, which transforms eight characters per step.
+        String upper = input.toUpperCase();
+        VigenereTable table = VigenereTable.forKey(key, true);
+        byte[] ascii = SwarKernel.asciiBytes(upper);
+        if (ascii != null)
         {
-            char c = input.charAt(i);
-            // Encrypt only letters; leave other characters unchanged.
-            if (Character.isLetter(c))
-            {
-                // Calculate the shift: add the key letter's alphabetical index.
-                int shift = (c - 'A' + (key.charAt(i % key.length()) - 'A')) % 26;
-                output.append((char) (shift + 'A'));
-            }
-            else
-            {
-                output.append(c);
-            }
+            table.transform(ascii, 0, ascii, 0, ascii.length, 0);
+            return new String(ascii, StandardCharsets.ISO_8859_1);
         }
-        return output.toString();
+        char[] buffer = upper.toCharArray();
+        table.transform(buffer, 0, buffer, 0, buffer.length, 0);
+        return new String(buffer);
     }
 
     // Vigenère decryption
@@ -113,362 +371,9727 @@ public class Main
             return "";
         }
 
-        // Convert input and key to uppercase.
-        input = input.toUpperCase();
-        key = key.toUpperCase();
-        StringBuilder output = new StringBuilder();
-
-        // Iterate over each character and reverse the encryption process.
-        for (int i = 0; i < input.length(); i++)
+        // Convert the input to uppercase, then reverse the shift with the decryption tableau.
+        String upper = input.toUpperCase();
+        VigenereTable table = VigenereTable.forKey(key, false);
+        byte[] ascii = SwarKernel.asciiBytes(upper);
+        if (ascii != null)
         {
-            char c = input.charAt(i);
-            if (Character.isLetter(c))
-            {
-                // Reverse the shift applied during encryption.
-                int shift = (c - 'A' - (key.charAt(i % key.length()) - 'A') + 26) % 26;
-                output.append((char) (shift + 'A'));
-            }
-            else
-            {
-                output.append(c);
-            }
+            table.transform(ascii, 0, ascii, 0, ascii.length, 0);
+            return new String(ascii, StandardCharsets.ISO_8859_1);
         }
-        return output.toString();
+        char[] buffer = upper.toCharArray();
+        table.transform(buffer, 0, buffer, 0, buffer.length, 0);
+        return new String(buffer);
     }
 
-    // ***********************
-    // Baconian Cipher Methods
-    // ***********************
-
     /**
-     * Baconian encryption:
-     * Converts each character into a sequence of 5 letters ('a' or 'b').
-     * The algorithm uses the 5 least‑significant bits of the character's integer value.
-     * For each bit (from bit 0 to bit 4):
-     *   - If the bit is set (1), append 'a'.
-     *   - If the bit is not set (0), append 'b'.
-     * Spaces in the original text are preserved.
+     * Table‑driven Vigenère engine for one key and direction.
+     *
+     * The 26x26 tableau is shared by all keys; a key only precomputes its shift and the tableau row
+     * for every key position, so the inner loop is one lookup per character with no modulo and no
+     * allocation. Results are identical to the arithmetic form (shift = (x ± k) % 26), including keys
+     * that contain characters outside A‑Z and letters outside ASCII.
      */
-    static String encryptBaconian(String input)
+    static final class VigenereTable
     {
-        if (input == null)
+        private static final char[][] ENCRYPT_TABLEAU = new char[26][];
+        private static final char[][] DECRYPT_TABLEAU = new char[26][];
+        // Alphabet index of an ASCII letter of either case, or -1 for any other ASCII character.
+        static final byte[] LETTER_INDEX = new byte[128];
+
+        static
         {
-            return "";
+            for (int shift = 0; shift < 26; shift++)
+            {
+                ENCRYPT_TABLEAU[shift] = row(shift, true);
+                DECRYPT_TABLEAU[shift] = row(shift, false);
+            }
+            Arrays.fill(LETTER_INDEX, (byte) -1);
+            for (int x = 0; x < 26; x++)
+            {
+                LETTER_INDEX['A' + x] = (byte) x;
+                LETTER_INDEX['a' + x] = (byte) x;
+            }
         }
 
-        StringBuilder output = new StringBuilder();
+        private static final int CACHE_ENTRIES = 16;
+        private static final Map<TableKey, VigenereTable> CACHE = new LinkedHashMap<>(CACHE_ENTRIES, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TableKey, VigenereTable> eldest)
+            {
+                return size() > CACHE_ENTRIES;
+            }
+        };
+
+        private record TableKey(String key, boolean encrypt) {}
 
-        // Process each character from the input string.
-        for (int i = 0; i < input.length(); i++)
+        private final boolean encrypt;
+        private final int[] shifts; // upper‑cased key letter - 'A' for every key position
+        private final char[][] rows; // tableau row used at every key position
+        // Eight lane shifts starting at every key position, or null when a key character is not a letter.
+        private final long[] shiftWords;
+        private final int[] nextPhase; // key position eight characters later
+
+        VigenereTable(String key, boolean encrypt)
         {
-            // If the character is a space, append it directly.
-            if (input.charAt(i) == ' ')
+            this.encrypt = encrypt;
+            String upperKey = key.toUpperCase();
+            shifts = new int[upperKey.length()];
+            rows = new char[upperKey.length()][];
+            for (int i = 0; i < shifts.length; i++)
             {
-                output.append(' ');
-                continue;
+                shifts[i] = upperKey.charAt(i) - 'A';
+                boolean inTableau = shifts[i] >= 0 && shifts[i] < 26;
+                rows[i] = inTableau ? (encrypt ? ENCRYPT_TABLEAU : DECRYPT_TABLEAU)[shifts[i]] : row(shifts[i], encrypt);
             }
-            // For each non‑space character, process 5 bits (from LSB to bit 4).
-            for (int j = 0; j < 5; j++)
+            shiftWords = SwarKernel.shiftWords(shifts, encrypt);
+            nextPhase = new int[shifts.length];
+            for (int i = 0; i < shifts.length; i++)
             {
-                // Check if the j‑th bit is set using bitwise AND.
-                // If set, append 'a'; otherwise, append 'b'.
-                if ((input.charAt(i) & (1 << j)) != 0)
-                {
-                    output.append('a');
-                }
-                else
+                nextPhase[i] = (i + 8) % shifts.length;
+            }
+        }
+
+        /**
+         * Returns the table for the key, kept in a small LRU cache so that callers switching between
+         * a few keys (the stages of a chain, the jobs of a batch) do not rebuild it every time.
+         */
+        static VigenereTable forKey(String key, boolean encrypt)
+        {
+            TableKey cacheKey = new TableKey(key, encrypt);
+            synchronized (CACHE)
+            {
+                VigenereTable cached = CACHE.get(cacheKey);
+                if (cached != null)
                 {
-                    output.append('b');
+                    return cached;
                 }
             }
+            VigenereTable table = new VigenereTable(key, encrypt);
+            synchronized (CACHE)
+            {
+                CACHE.put(cacheKey, table);
+            }
+            return table;
         }
-        return output.toString();
-    }
 
-    /**
-     * Baconian decryption:
-     * Reverses the Baconian encryption by reading every group of 5 characters (ignoring spaces)
-     * and converting them back to the original character.
-     *
-     * Each 5‑letter group represents the 5 least‑significant bits of a character.
-     * The first letter of the group corresponds to bit 0 (the least significant bit)
-     * and the fifth letter corresponds to bit 4.
-     *
-     * The method also preserves spaces that appear in the cipher text.
-     */
-    static String decryptBaconian(String input)
-    {
-        if (input == null)
+        int keyLength()
         {
-            return "";
+            return shifts.length;
         }
 
-        StringBuilder output = new StringBuilder();
-        int i = 0; // Index for traversing the cipher text
-
-        // Process the input string until all characters are handled.
-        while (i < input.length())
+        // Result for every letter 'A'..'Z' under one key shift, using the original arithmetic.
+        private static char[] row(int shift, boolean encrypt)
         {
-            // If the current character is a space, it represents a space in the original text.
-            if (input.charAt(i) == ' ')
+            char[] row = new char[26];
+            for (int x = 0; x < 26; x++)
             {
-                output.append(' ');
-                i++; // Move to the next character
+                row[x] = shiftLetter('A' + x, shift, encrypt);
             }
-            else
+            return row;
+        }
+
+        private static char shiftLetter(int c, int shift, boolean encrypt)
+        {
+            return (char) ((encrypt ? (c - 'A' + shift) % 26 : (c - 'A' - shift + 26) % 26) + 'A');
+        }
+
+        /**
+         * Transforms length characters from src into dst (which may be the same array), starting at key
+         * position phase, and returns the key position after the last character. ASCII letters of either
+         * case are handled directly; any other character must already be upper‑cased by the caller.
+         */
+        int transform(char[] src, int srcOffset, char[] dst, int dstOffset, int length, int phase)
+        {
+            int keyLength = shifts.length;
+            int k = phase;
+            for (int i = 0; i < length; i++)
             {
-                // Ensure there are at least 5 characters remaining for a complete Baconian block.
-                if (i + 5 > input.length())
+                char ch = src[srcOffset + i];
+                if (ch < 128)
                 {
-                    // Incomplete block detected; break out of the loop.
-                    break;
+                    int x = LETTER_INDEX[ch];
+                    dst[dstOffset + i] = x >= 0 ? rows[k][x] : ch;
                 }
-
-                int value = 0; // This will store the numeric value (0‑31) of the decoded character.
-
-                // Process the next 5 characters which form one block.
-                // Each letter in the block determines one bit of the character.
-                // The first letter corresponds to bit 0 (least significant) and the fifth to bit 4.
-                for (int j = 0; j < 5; j++)
+                else
                 {
-                    char cipherChar = input.charAt(i + j);
+                    dst[dstOffset + i] = Character.isLetter(ch) ? shiftLetter(ch, shifts[k], encrypt) : ch;
+                }
+                if (++k == keyLength)
+                {
+                    k = 0;
+                }
+            }
+            return k;
+        }
 
-                    // If the cipher character is 'a', set the j‑th bit (bit value 1).
-                    if (cipherChar == 'a')
+        /**
+         * Byte version of transform for US‑ASCII text; bytes of 0x80 and above are copied unchanged.
+         * Eight bytes at a time go through SwarKernel when the key is all letters.
+         */
+        int transform(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length, int phase)
+        {
+            int k = phase;
+            int i = 0;
+            if (shiftWords != null)
+            {
+                for (; i + 8 <= length; i += 8)
+                {
+                    if (!SwarKernel.shiftLetters(src, srcOffset + i, dst, dstOffset + i, shiftWords[k]))
                     {
-                        value |= (1 << j); // Set bit j
+                        transformScalar(src, srcOffset + i, dst, dstOffset + i, 8, k);
                     }
-                    // If the character is 'b', the bit remains 0.
-                    // You might add error handling for unexpected characters if desired.
+                    k = nextPhase[k];
                 }
+            }
+            return transformScalar(src, srcOffset + i, dst, dstOffset + i, length - i, k);
+        }
 
-                // Convert the numeric value back to a character.
-                char decodedChar = (char) value;
-                output.append(decodedChar);
-
-                // Move the index forward by 5, as we have processed this block.
-                i += 5;
+        private int transformScalar(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length, int phase)
+        {
+            int keyLength = shifts.length;
+            int k = phase;
+            for (int i = 0; i < length; i++)
+            {
+                byte ch = src[srcOffset + i];
+                int x = ch >= 0 ? LETTER_INDEX[ch] : -1;
+                dst[dstOffset + i] = x >= 0 ? (byte) rows[k][x] : ch;
+                if (++k == keyLength)
+                {
+                    k = 0;
+                }
             }
+            return k;
         }
-        return output.toString();
     }
 
     // ***********************
-    // Affine Cipher Methods
+    // Word‑Parallel Kernels
     // ***********************
 
     /**
-     * Affine encryption:
-     * Encrypts the input text by applying the function: E(x) = (a * x + b) mod 26.
-     * 'a' and 'b' are parameters of the cipher, and it only processes letters.
-     * The parameter 'c' is the multiplicative inverse of 'a' modulo 26 and is used during decryption.
+     * SIMD‑within‑a‑register helpers: eight ASCII bytes are read as one little‑endian long and every
+     * byte lane is classified and shifted with plain 64‑bit arithmetic, using conditional subtraction
+     * instead of %. Lanes never carry into each other because every lane stays below 0x100 at each step.
+     * Words holding a byte of 0x80 or above are left to the scalar code, which also remains the path
+     * for non‑ASCII strings and for keys with characters outside A–Z. The --bench routines marked
+     * "char" time that path on the same text, and --selftest checks that both give the same result.
      */
-    static String encryptAffine(String input, int a, int b, int c)
+    static final class SwarKernel
     {
-        if (input == null)
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final long ONES = 0x0101010101010101L;
+        private static final long HIGH = 0x8080808080808080L;
+        private static final long CASE_BIT = 0x2020202020202020L;
+
+        private SwarKernel() {}
+
+        // 0x80 in every lane that is at least value (1..0x80); lanes must be below 0x80.
+        private static long atLeast(long word, int value)
         {
-            return "";
+            return (word + ONES * (0x80 - value)) & HIGH;
         }
-        StringBuilder output = new StringBuilder();
-        for (int i = 0; i < input.length(); i++)
+
+        /**
+         * Packs the Vigenère shift of eight consecutive key positions into lanes, once per starting
+         * position. Decryption adds 26 - shift, which the conditional subtraction folds back into range.
+         * Returns null unless every shift is a letter's (0..25).
+         */
+        static long[] shiftWords(int[] shifts, boolean encrypt)
         {
-            char c1 = input.charAt(i);
-            if (Character.isLetter(c1))
+            long[] words = new long[shifts.length];
+            for (int start = 0; start < shifts.length; start++)
             {
-                int x = c1 - 'A';
-                int y = (a * x + b) % 26;
-                output.append((char) (y + 'A'));
+                long word = 0;
+                for (int lane = 0; lane < 8; lane++)
+                {
+                    int shift = shifts[(start + lane) % shifts.length];
+                    if (shift < 0 || shift >= 26)
+                    {
+                        return null;
+                    }
+                    word |= (long) (encrypt ? shift : (26 - shift) % 26) << (8 * lane);
+                }
+                words[start] = word;
             }
-            else
+            return words;
+        }
+
+        /**
+         * Vigenère‑shifts the ASCII letters (either case, written upper case) of eight bytes and copies
+         * the other bytes. Returns false, writing nothing, when a byte is not ASCII.
+         */
+        static boolean shiftLetters(byte[] src, int srcOffset, byte[] dst, int dstOffset, long shifts)
+        {
+            long word = (long) LONGS.get(src, srcOffset);
+            if ((word & HIGH) != 0)
             {
-                output.append(c1);
+                return false;
             }
+            long folded = word | CASE_BIT;
+            long letters = atLeast(folded, 'a') & ~atLeast(folded, 'z' + 1);
+            long shifted = (word & ~CASE_BIT) + shifts;              // 'A'..'Z' + 0..25 stays below 0x80
+            shifted -= (atLeast(shifted, 'Z' + 1) >>> 7) * 26;       // wrap back into 'A'..'Z'
+            long keep = (letters >>> 7) * 0xFF;
+            LONGS.set(dst, dstOffset, (shifted & keep) | (word & ~keep));
+            return true;
         }
-        return output.toString();
-    }
 
-    /**
-     * Affine decryption:
-     * Decrypts the input text by reversing the affine encryption:
-     * D(y) = c * (y - b) mod 26, where 'c' is the multiplicative inverse of 'a' modulo 26.
-     * Only letters are processed.
-     */
-    static String decryptAffine(String input, int a, int b, int c)
-    {
-        if (input == null)
+        /**
+         * Returns the string as ISO‑8859‑1 bytes, or null when it has a character above U+00FF.
+         */
+        static byte[] latin1Bytes(String text)
         {
-            return "";
+            return fits(text, 0xFF) ? text.getBytes(StandardCharsets.ISO_8859_1) : null;
+        }
+
+        /**
+         * Returns the string as US‑ASCII bytes, or null when it has a character above U+007F.
+         */
+        static byte[] asciiBytes(String text)
+        {
+            return fits(text, 0x7F) ? text.getBytes(StandardCharsets.US_ASCII) : null;
         }
-        StringBuilder output = new StringBuilder();
-        for (int i = 0; i < input.length(); i++)
+
+        // Checked before encoding, so that text which will not fit stops at its first such character
+        // instead of being encoded in full and then searched for the '?' that replaced it.
+        private static boolean fits(String text, int limit)
         {
-            char c1 = input.charAt(i);
-            if (Character.isLetter(c1))
-            {
-                int y = c1 - 'A';
-                int x = c * (y - b);
-                // Adjust for potential negative values before taking modulo 26.
-                x = (x % 26 + 26) % 26;
-                output.append((char) (x + 'A'));
-            }
-            else
+            for (int i = 0; i < text.length(); i++)
             {
-                output.append(c1);
+                if (text.charAt(i) > limit)
+                {
+                    return false;
+                }
             }
+            return true;
         }
-        return output.toString();
     }
 
     // ***********************
-    // Morse Code Cipher Methods
+    // Vigenère Key Recovery
     // ***********************
 
     /**
-     * Morse Code encryption:
-     * Converts each alphanumeric character to its Morse code equivalent.
-     * Letters and digits are translated based on a standard Morse code mapping.
-     * Each Morse code letter is separated by a space, and words are separated by " / ".
-     * Non-alphanumeric characters (other than space) are ignored.
+     * Letter statistics of English text shared by the solvers.
      */
-    static String encryptMorseCode(String input)
+    static final class EnglishStats
     {
-        if (input == null)
+        static final double[] LETTER_FREQUENCIES = {
+                0.08167, 0.01492, 0.02782, 0.04253, 0.12702, 0.02228, 0.02015, 0.06094, 0.06966,
+                0.00153, 0.00772, 0.04025, 0.02406, 0.06749, 0.07507, 0.01929, 0.00095, 0.05987,
+                0.06327, 0.09056, 0.02758, 0.00978, 0.02360, 0.00150, 0.01974, 0.00074
+        };
+        static final double ENGLISH_IOC = 0.0667;
+        static final double RANDOM_IOC = 1.0 / 26;
+
+        // Public-domain English used to estimate letter pairs (the Gettysburg Address).
+        private static final String CORPUS =
+                "Four score and seven years ago our fathers brought forth on this continent, a new nation, "
+                + "conceived in Liberty, and dedicated to the proposition that all men are created equal. "
+                + "Now we are engaged in a great civil war, testing whether that nation, or any nation so "
+                + "conceived and so dedicated, can long endure. We are met on a great battle-field of that war. "
+                + "We have come to dedicate a portion of that field, as a final resting place for those who here "
+                + "gave their lives that that nation might live. It is altogether fitting and proper that we "
+                + "should do this. But, in a larger sense, we can not dedicate -- we can not consecrate -- we "
+                + "can not hallow -- this ground. The brave men, living and dead, who struggled here, have "
+                + "consecrated it, far above our poor power to add or detract. The world will little note, nor "
+                + "long remember what we say here, but it can never forget what they did here. It is for us the "
+                + "living, rather, to be dedicated here to the unfinished work which they who fought here have "
+                + "thus far so nobly advanced. It is rather for us to be here dedicated to the great task "
+                + "remaining before us -- that from these honored dead we take increased devotion to that cause "
+                + "for which they gave the last full measure of devotion -- that we here highly resolve that "
+                + "these dead shall not have died in vain -- that this nation, under God, shall have a new birth "
+                + "of freedom -- and that government of the people, by the people, for the people, shall not "
+                + "perish from the earth.";
+
+        /**
+         * Log probability of a letter at the start of a word, indexed by letter.
+         */
+        static final double[] LOG_MONOGRAM = new double[26];
+
+        /**
+         * Log probability of a letter given the previous one, indexed by previous * 26 + letter. The
+         * corpus estimate is blended with the letter frequencies so unseen pairs are unlikely, not impossible.
+         */
+        static final double[] LOG_BIGRAM = new double[26 * 26];
+
+        static
         {
-            return "";
+            int[] pairs = new int[26 * 26];
+            int[] firsts = new int[26];
+            int previous = -1;
+            for (int i = 0; i < CORPUS.length(); i++)
+            {
+                char ch = Character.toUpperCase(CORPUS.charAt(i));
+                int letter = ch >= 'A' && ch <= 'Z' ? ch - 'A' : -1;
+                if (letter >= 0 && previous >= 0)
+                {
+                    pairs[previous * 26 + letter]++;
+                    firsts[previous]++;
+                }
+                previous = letter;
+            }
+            for (int x = 0; x < 26; x++)
+            {
+                LOG_MONOGRAM[x] = Math.log(LETTER_FREQUENCIES[x]);
+                for (int y = 0; y < 26; y++)
+                {
+                    double pair = firsts[x] == 0 ? LETTER_FREQUENCIES[y] : (double) pairs[x * 26 + y] / firsts[x];
+                    LOG_BIGRAM[x * 26 + y] = Math.log(0.7 * pair + 0.3 * LETTER_FREQUENCIES[y]);
+                }
+            }
         }
 
-        // Define Morse code mapping for letters and digits.
-        java.util.Map<Character, String> morseMap = new java.util.HashMap<>();
-        morseMap.put('A', ".-");
-        morseMap.put('B', "-...");
-        morseMap.put('C', "-.-.");
-        morseMap.put('D', "-..");
-        morseMap.put('E', ".");
-        morseMap.put('F', "..-.");
-        morseMap.put('G', "--.");
-        morseMap.put('H', "....");
-        morseMap.put('I', "..");
-        morseMap.put('J', ".---");
-        morseMap.put('K', "-.-");
-        morseMap.put('L', ".-..");
-        morseMap.put('M', "--");
-        morseMap.put('N', "-.");
-        morseMap.put('O', "---");
-        morseMap.put('P', ".--.");
-        morseMap.put('Q', "--.-");
-        morseMap.put('R', ".-.");
-        morseMap.put('S', "...");
-        morseMap.put('T', "-");
-        morseMap.put('U', "..-");
-        morseMap.put('V', "...-");
-        morseMap.put('W', ".--");
-        morseMap.put('X', "-..-");
-        morseMap.put('Y', "-.--");
-        morseMap.put('Z', "--..");
-        morseMap.put('0', "-----");
-        morseMap.put('1', ".----");
-        morseMap.put('2', "..---");
-        morseMap.put('3', "...--");
-        morseMap.put('4', "....-");
-        morseMap.put('5', ".....");
-        morseMap.put('6', "-....");
-        morseMap.put('7', "--...");
-        morseMap.put('8', "---..");
-        morseMap.put('9', "----.");
-
-        StringBuilder output = new StringBuilder();
-        input = input.toUpperCase();
-
-        // Process each character in the input string.
-        for (int i = 0; i < input.length(); i++)
-        {
-            char ch = input.charAt(i);
-            // If character is a space, denote word separation with " / "
-            if (ch == ' ')
-            {
-                output.append(" / ");
-            }
-            else if (morseMap.containsKey(ch))
-            {
-                output.append(morseMap.get(ch));
-                output.append(" "); // separate letters by space
-            }
-            // For non-alphanumeric characters, ignore them.
-        }
-        return output.toString().trim();
-    }
+        private EnglishStats() {}
 
-    /**
-     * Morse Code decryption:
-     * Reverses the Morse Code encryption by converting Morse code sequences back to alphanumeric characters.
-     * Assumes that individual Morse code letters are separated by spaces and words are separated by " / ".
-     * Unknown Morse sequences are ignored.
+        /**
+         * Chi‑squared distance of letter counts (read as the plaintext under a shift) from English.
+         */
+        static double chiSquared(int[] counts, int offset, int shift, int total)
+        {
+            double chi = 0;
+            for (int x = 0; x < 26; x++)
+            {
+                double expected = total * LETTER_FREQUENCIES[x];
+                double difference = counts[offset + (x + shift) % 26] - expected;
+                chi += difference * difference / expected;
+            }
+            return chi;
+        }
+    }
+
+    /**
+     * Recovers Vigenère keys from ciphertext alone.
+     *
+     * The key length is estimated from the index of coincidence of every candidate length (evaluated
+     * in parallel) and from Kasiski examination of repeated trigrams; each column of the shortlisted
+     * lengths is then solved by the shift whose plaintext has the lowest chi‑squared distance from
+     * English. Columns are taken from the position of a letter within its line, because this
+     * program restarts the key on every line. Only the first SAMPLE_BYTES of a file are read; a few
+     * megabytes of ciphertext already pin the key down.
      */
-    static String decryptMorseCode(String input)
+    static final class VigenereSolver
+    {
+        static final int DEFAULT_MAX_KEY_LENGTH = 32;
+        static final long SAMPLE_BYTES = 8L << 20;
+        private static final int MAX_KASISKI_LETTERS = 1 << 20;
+        private static final int SHORTLIST = 8;
+
+        /**
+         * A recovered key; the score is the mean chi‑squared per letter against English (lower is better).
+         */
+        record KeyCandidate(String key, double score, double indexOfCoincidence) {}
+
+        private final int maxKeyLength;
+        private byte[] letters = new byte[1 << 12]; // alphabet index of every sampled letter
+        private int[] columns = new int[1 << 12];   // position of that letter within its line
+        private int size;
+
+        VigenereSolver(int maxKeyLength)
+        {
+            this.maxKeyLength = maxKeyLength;
+        }
+
+        /**
+         * Samples the letters at the start of a ciphertext file.
+         */
+        void addFile(Path input, Charset charset) throws IOException
+        {
+            new MappedFileEngine(null, charset).readLines(input, SAMPLE_BYTES, this::addLine);
+        }
+
+        /**
+         * Samples the letters of one ciphertext line.
+         */
+        void addLine(CharSequence line)
+        {
+            for (int i = 0; i < line.length(); i++)
+            {
+                char ch = line.charAt(i);
+                if (ch < 128 && VigenereTable.LETTER_INDEX[ch] >= 0)
+                {
+                    if (size == letters.length)
+                    {
+                        letters = Arrays.copyOf(letters, size * 2);
+                        columns = Arrays.copyOf(columns, size * 2);
+                    }
+                    letters[size] = VigenereTable.LETTER_INDEX[ch];
+                    columns[size] = i;
+                    size++;
+                }
+            }
+        }
+
+        /**
+         * Returns up to count candidate keys, best first, or none when the sample has no letters.
+         */
+        List<KeyCandidate> solve(int count)
+        {
+            if (size == 0)
+            {
+                return List.of();
+            }
+            int longest = Math.max(1, Math.min(maxKeyLength, size / 2));
+            double[] kasiski = kasiskiExcess(longest);
+
+            // Index of coincidence for every length, in parallel; each pass fills one int[26] per column.
+            List<int[]> counts = IntStream.rangeClosed(1, longest).parallel()
+                    .mapToObj(this::columnCounts)
+                    .collect(Collectors.toList());
+            double[] ioc = new double[longest + 1];
+            Integer[] lengths = new Integer[longest];
+            for (int length = 1; length <= longest; length++)
+            {
+                ioc[length] = indexOfCoincidence(counts.get(length - 1), length);
+                lengths[length - 1] = length;
+            }
+            Arrays.sort(lengths, Comparator.comparingDouble((Integer length) ->
+                    (ioc[length] - EnglishStats.RANDOM_IOC) / (EnglishStats.ENGLISH_IOC - EnglishStats.RANDOM_IOC)
+                            + kasiski[length]).reversed());
+
+            // Solve the shortlisted lengths; a key that repeats a shorter one collapses onto it.
+            Map<String, KeyCandidate> candidates = new HashMap<>();
+            for (int i = 0; i < Math.min(SHORTLIST, lengths.length); i++)
+            {
+                int length = lengths[i];
+                KeyCandidate candidate = recoverKey(counts.get(length - 1), length, ioc[length]);
+                candidates.merge(candidate.key(), candidate, (x, y) -> x.score() <= y.score() ? x : y);
+            }
+            List<KeyCandidate> ranked = new ArrayList<>(candidates.values());
+            ranked.sort(Comparator.comparingDouble(KeyCandidate::score));
+            return ranked.subList(0, Math.min(count, ranked.size()));
+        }
+
+        private int[] columnCounts(int length)
+        {
+            int[] counts = new int[length * 26];
+            for (int i = 0; i < size; i++)
+            {
+                counts[(columns[i] % length) * 26 + letters[i]]++;
+            }
+            return counts;
+        }
+
+        private static double indexOfCoincidence(int[] counts, int length)
+        {
+            double sum = 0;
+            int columnsUsed = 0;
+            for (int column = 0; column < length; column++)
+            {
+                long total = 0;
+                long pairs = 0;
+                for (int x = 0; x < 26; x++)
+                {
+                    long n = counts[column * 26 + x];
+                    total += n;
+                    pairs += n * (n - 1);
+                }
+                if (total > 1)
+                {
+                    sum += (double) pairs / (total * (total - 1));
+                    columnsUsed++;
+                }
+            }
+            return columnsUsed == 0 ? 0 : sum / columnsUsed;
+        }
+
+        // For every length, how much more often than chance the distances between repeated trigrams
+        // are a multiple of it.
+        private double[] kasiskiExcess(int longest)
+        {
+            double[] excess = new double[longest + 1];
+            int[] lastSeen = new int[26 * 26 * 26];
+            Arrays.fill(lastSeen, -1);
+            long[] divisible = new long[longest + 1];
+            long repeats = 0;
+            int limit = Math.min(size, MAX_KASISKI_LETTERS);
+            for (int i = 0; i + 2 < limit; i++)
+            {
+                // Only letters that are next to each other in the line form a trigram.
+                if (columns[i + 1] != columns[i] + 1 || columns[i + 2] != columns[i] + 2)
+                {
+                    continue;
+                }
+                int trigram = (letters[i] * 26 + letters[i + 1]) * 26 + letters[i + 2];
+                int previous = lastSeen[trigram];
+                lastSeen[trigram] = i;
+                int distance = previous < 0 ? 0 : Math.abs(columns[i] - columns[previous]);
+                if (distance == 0)
+                {
+                    continue;
+                }
+                repeats++;
+                for (int length = 2; length <= longest; length++)
+                {
+                    if (distance % length == 0)
+                    {
+                        divisible[length]++;
+                    }
+                }
+            }
+            for (int length = 2; length <= longest && repeats > 0; length++)
+            {
+                excess[length] = (double) divisible[length] / repeats - 1.0 / length;
+            }
+            return excess;
+        }
+
+        private static KeyCandidate recoverKey(int[] counts, int length, double ioc)
+        {
+            char[] key = new char[length];
+            double score = 0;
+            int columnsUsed = 0;
+            for (int column = 0; column < length; column++)
+            {
+                int total = 0;
+                for (int x = 0; x < 26; x++)
+                {
+                    total += counts[column * 26 + x];
+                }
+                int bestShift = 0;
+                double best = Double.MAX_VALUE;
+                for (int shift = 0; shift < 26 && total > 0; shift++)
+                {
+                    double chi = EnglishStats.chiSquared(counts, column * 26, shift, total);
+                    if (chi < best)
+                    {
+                        best = chi;
+                        bestShift = shift;
+                    }
+                }
+                key[column] = (char) ('A' + bestShift);
+                if (total > 0)
+                {
+                    score += best / total;
+                    columnsUsed++;
+                }
+            }
+            return new KeyCandidate(shortestPeriod(key), score / Math.max(1, columnsUsed), ioc);
+        }
+
+        // "LEMONLEMON" encrypts exactly like "LEMON".
+        private static String shortestPeriod(char[] key)
+        {
+            for (int period = 1; period < key.length; period++)
+            {
+                if (key.length % period != 0)
+                {
+                    continue;
+                }
+                boolean repeats = true;
+                for (int i = period; i < key.length && repeats; i++)
+                {
+                    repeats = key[i] == key[i - period];
+                }
+                if (repeats)
+                {
+                    return new String(key, 0, period);
+                }
+            }
+            return new String(key);
+        }
+    }
+
+    /**
+     * A set of upper‑case words laid out as a trie in two int arrays.
+     *
+     * Every node is a bit mask of the letters it has children for (plus TERMINAL when a word ends
+     * there) and the index of its first child; the children of a node are stored next to each other
+     * in letter order, so the child for a letter is found by counting the lower bits of the mask.
+     * A node costs eight bytes whatever its fan‑out, and a lookup touches no objects.
+     */
+    static final class WordTrie
+    {
+        private static final int TERMINAL = 1 << 26;
+
+        private final int[] masks;
+        private final int[] firstChild;
+
+        private WordTrie(int[] masks, int[] firstChild)
+        {
+            this.masks = masks;
+            this.firstChild = firstChild;
+        }
+
+        /**
+         * Builds the trie of the given words, which must consist of the letters A‑Z only.
+         */
+        static WordTrie of(Collection<String> words)
+        {
+            String[] sorted = words.stream().distinct().sorted().toArray(String[]::new);
+            int capacity = 1;
+            for (String word : sorted)
+            {
+                capacity += word.length();
+            }
+            // Nodes are numbered breadth first; each one covers the range of sorted words below it.
+            int[] masks = new int[capacity];
+            int[] firstChild = new int[capacity];
+            int[] from = new int[capacity];
+            int[] to = new int[capacity];
+            int[] depth = new int[capacity];
+            to[0] = sorted.length;
+            int count = 1;
+            for (int node = 0; node < count; node++)
+            {
+                int i = from[node];
+                int mask = 0;
+                if (i < to[node] && sorted[i].length() == depth[node])
+                {
+                    mask |= TERMINAL;
+                    i++;
+                }
+                firstChild[node] = count;
+                while (i < to[node])
+                {
+                    char letter = sorted[i].charAt(depth[node]);
+                    int j = i + 1;
+                    while (j < to[node] && sorted[j].charAt(depth[node]) == letter)
+                    {
+                        j++;
+                    }
+                    mask |= 1 << (letter - 'A');
+                    from[count] = i;
+                    to[count] = j;
+                    depth[count] = depth[node] + 1;
+                    count++;
+                    i = j;
+                }
+                masks[node] = mask;
+            }
+            return new WordTrie(Arrays.copyOf(masks, count), Arrays.copyOf(firstChild, count));
+        }
+
+        static int root()
+        {
+            return 0;
+        }
+
+        /**
+         * Returns the child of the node for a letter (0 for 'A'), or -1 when no word goes on that way.
+         */
+        int child(int node, int letter)
+        {
+            int mask = masks[node];
+            int bit = 1 << letter;
+            return (mask & bit) == 0 ? -1 : firstChild[node] + Integer.bitCount(mask & (bit - 1));
+        }
+
+        boolean isWord(int node)
+        {
+            return (masks[node] & TERMINAL) != 0;
+        }
+
+        int size()
+        {
+            return masks.length;
+        }
+    }
+
+    /**
+     * Recovers a Vigenère key that is a dictionary word, for ciphertext too short for VigenereSolver.
+     *
+     * Every word of the wordlist is tried as the key on the first SAMPLE_LETTERS letters of the
+     * ciphertext. A candidate's score is the fraction of those letters that decrypt into dictionary
+     * words, found by taking the longest word of the WordTrie at each position. Words shorter than
+     * MIN_WORD_LETTERS only count when they fill a whole run of letters, so that the short words of
+     * a wordlist do not match random text everywhere. The keys are shared out in batches to one
+     * worker per core, each decrypting into its own scratch buffer; a candidate is dropped as soon as
+     * it can no longer beat the best score so far. The search stops at the first batch, in wordlist
+     * order, with a key that reaches the confidence threshold, but every batch before it is still
+     * finished and later batches are ignored, so the key found does not depend on thread timing.
+     */
+    static final class DictionaryAttack
+    {
+        static final long SAMPLE_BYTES = 64 << 10;
+        static final int SAMPLE_LETTERS = 512;
+        static final double DEFAULT_CONFIDENCE = 0.9;
+        private static final double MIN_SCORE = 0.5;
+        private static final int MIN_WORD_LETTERS = 3;
+        private static final int BATCH = 1024;
+
+        /**
+         * A key with the fraction of sampled letters it decrypts into dictionary words.
+         */
+        record Match(String key, double score) {}
+
+        // The best key so far, with the number of letters it covered.
+        private record Best(String key, int covered) {}
+
+        private final WordTrie trie;
+        private final String[] keys;
+        private final byte[][] shifts; // alphabet index of every letter of every key
+        private final byte[] letters = new byte[SAMPLE_LETTERS]; // alphabet index of every sampled letter
+        private final int[] columns = new int[SAMPLE_LETTERS];   // its position within the line
+        private final int[] runEnds = new int[SAMPLE_LETTERS];   // end of the run of letters it belongs to
+        private int size;
+        private long tried;
+
+        /**
+         * Uses the words of the trie as the dictionary and the given words, A‑Z only, as the keys.
+         */
+        DictionaryAttack(WordTrie trie, List<String> keys)
+        {
+            this.trie = trie;
+            this.keys = keys.toArray(new String[0]);
+            this.shifts = new byte[this.keys.length][];
+            for (int i = 0; i < this.keys.length; i++)
+            {
+                shifts[i] = new byte[this.keys[i].length()];
+                for (int j = 0; j < shifts[i].length; j++)
+                {
+                    shifts[i][j] = (byte) (this.keys[i].charAt(j) - 'A');
+                }
+            }
+        }
+
+        /**
+         * Reads a wordlist, one word per line, and returns its distinct words in upper case. Lines
+         * with anything but letters A‑Z (in either case) are skipped.
+         */
+        static List<String> readWords(Path wordlist) throws IOException
+        {
+            try (Stream<String> lines = Files.lines(wordlist, StandardCharsets.UTF_8))
+            {
+                return lines.map(line -> line.trim().toUpperCase(Locale.ROOT))
+                        .filter(word -> !word.isEmpty() && word.chars().allMatch(ch -> ch >= 'A' && ch <= 'Z'))
+                        .distinct()
+                        .collect(Collectors.toList());
+            }
+        }
+
+        /**
+         * Samples the letters at the start of a ciphertext file.
+         */
+        void addFile(Path input, Charset charset) throws IOException
+        {
+            new MappedFileEngine(null, charset).readLines(input, SAMPLE_BYTES, this::addLine);
+        }
+
+        /**
+         * Samples the letters of one ciphertext line.
+         */
+        void addLine(CharSequence line)
+        {
+            int runStart = size;
+            for (int i = 0; i < line.length() && size < SAMPLE_LETTERS; i++)
+            {
+                char ch = line.charAt(i);
+                if (ch < 128 && VigenereTable.LETTER_INDEX[ch] >= 0)
+                {
+                    letters[size] = VigenereTable.LETTER_INDEX[ch];
+                    columns[size] = i;
+                    size++;
+                }
+                else
+                {
+                    endRun(runStart);
+                    runStart = size;
+                }
+            }
+            endRun(runStart);
+        }
+
+        private void endRun(int runStart)
+        {
+            for (int i = runStart; i < size; i++)
+            {
+                runEnds[i] = size;
+            }
+        }
+
+        /**
+         * Number of keys scored by the last attack(), including those dropped early.
+         */
+        long tried()
+        {
+            return tried;
+        }
+
+        /**
+         * Returns the key that decrypts the most sampled letters into words, or null when no key gets
+         * MIN_SCORE of them. The search ends early after the first batch of keys in which one scores
+         * confidence or more; the result is the best key of that batch and all the batches before it.
+         */
+        Match attack(double confidence)
+        {
+            if (keys.length == 0 || size == 0)
+            {
+                return null;
+            }
+            int floor = (int) Math.ceil(MIN_SCORE * size);
+            int target = (int) Math.ceil(confidence * size);
+            Best[] results = new Best[(keys.length + BATCH - 1) / BATCH]; // best key of every batch scored
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger lastBatch = new AtomicInteger(results.length - 1); // lowered to the first confident batch
+            AtomicInteger bound = new AtomicInteger(floor); // best score of any batch so far
+            LongAdder count = new LongAdder();
+            // The common pool's workers and the calling thread, one per core.
+            int workers = ForkJoinPool.getCommonPoolParallelism() + 1;
+            IntStream.range(0, workers).parallel().forEach(worker ->
+            {
+                byte[] plain = new byte[size];
+                for (int batch = next.getAndIncrement(); batch <= lastBatch.get(); batch = next.getAndIncrement())
+                {
+                    int first = batch * BATCH;
+                    int last = Math.min(keys.length, first + BATCH);
+                    Best best = new Best(null, floor);
+                    for (int key = first; key < last; key++)
+                    {
+                        // Once some batch is confident, a key below the target cannot be the answer whichever
+                        // batch it is in, so a score from a batch that ends up ignored still bounds this one.
+                        int covered = score(shifts[key], plain, Math.max(best.covered(), Math.min(bound.get(), target)));
+                        if (covered >= 0)
+                        {
+                            best = better(best, new Best(keys[key], covered));
+                        }
+                    }
+                    results[batch] = best;
+                    bound.accumulateAndGet(best.covered(), Math::max);
+                    if (confident(best, target))
+                    {
+                        lastBatch.accumulateAndGet(batch, Math::min);
+                    }
+                    count.add(last - first);
+                }
+            });
+            tried = count.sum();
+            Best winner = new Best(null, floor);
+            for (int batch = 0; batch <= lastBatch.get(); batch++)
+            {
+                winner = better(winner, results[batch]);
+            }
+            return winner.key() == null ? null : new Match(winner.key(), (double) winner.covered() / size);
+        }
+
+        private static boolean confident(Best best, int target)
+        {
+            return best.key() != null && best.covered() >= target;
+        }
+
+        // Letters of the sample covered by words under the key, or -1 once it cannot reach bound.
+        private int score(byte[] key, byte[] plain, int bound)
+        {
+            int covered = 0;
+            int missed = 0;
+            int limit = size - bound; // more letters than this missed and the key cannot tie the best
+            for (int start = 0; start < size; )
+            {
+                // The letters of a run are next to each other in the line, so the key position steps by one.
+                int end = runEnds[start];
+                for (int i = start, k = columns[start] % key.length; i < end; i++)
+                {
+                    int x = letters[i] - key[k];
+                    plain[i] = (byte) (x < 0 ? x + 26 : x);
+                    if (++k == key.length)
+                    {
+                        k = 0;
+                    }
+                }
+                for (int p = start; p < end; )
+                {
+                    // The longest word starting at p.
+                    int length = 0;
+                    for (int node = WordTrie.root(), q = p; q < end; q++)
+                    {
+                        node = trie.child(node, plain[q]);
+                        if (node < 0)
+                        {
+                            break;
+                        }
+                        if (trie.isWord(node))
+                        {
+                            length = q + 1 - p;
+                        }
+                    }
+                    if (length >= MIN_WORD_LETTERS || (length > 0 && p == start && p + length == end))
+                    {
+                        covered += length;
+                        p += length;
+                    }
+                    else
+                    {
+                        missed++;
+                        p++;
+                        if (missed > limit)
+                        {
+                            return -1;
+                        }
+                    }
+                }
+                start = end;
+            }
+            return covered;
+        }
+
+        // The better of the two keys: more letters covered, then the shorter key, then the first in order.
+        private static Best better(Best current, Best offered)
+        {
+            if (offered.key() == null)
+            {
+                return current;
+            }
+            return current.key() == null || offered.covered() > current.covered()
+                    || offered.covered() == current.covered() && (offered.key().length() < current.key().length()
+                    || offered.key().length() == current.key().length() && offered.key().compareTo(current.key()) < 0)
+                    ? offered : current;
+        }
+    }
+
+    // ***********************
+    // Baconian Cipher Methods
+    // ***********************
+
+    /**
+     * Baconian encryption:
+     * Converts each character into a sequence of 5 letters ('a' or 'b').
+     * The algorithm uses the 5 least‑significant bits of the character's integer value.
+     * For each bit (from bit 0 to bit 4):
+     *   - If the bit is set (1), append 'a'.
+     *   - If the bit is not set (0), append 'b'.
+     * Spaces in the original text are preserved.
+     */
+    static String encryptBaconian(String input)
     {
         if (input == null)
         {
-            return "";
+            return "";
+        }
+        char[] source = input.toCharArray();
+        char[] output = new char[source.length * 5];
+        int length = encryptBaconian(source, 0, source.length, output, 0);
+        return new String(output, 0, length);
+    }
+
+    // Baconian encryption of src[offset, offset + length) into dst; returns the number of characters written.
+    static int encryptBaconian(char[] src, int offset, int length, char[] dst, int dstOffset)
+    {
+        int out = dstOffset;
+
+        // Process each character from the input.
+        for (int i = offset; i < offset + length; i++)
+        {
+            // If the character is a space, append it directly.
+            if (src[i] == ' ')
+            {
+                dst[out++] = ' ';
+                continue;
+            }
+            // For each non‑space character, process 5 bits (from LSB to bit 4).
+            for (int j = 0; j < 5; j++)
+            {
+                // Check if the j‑th bit is set using bitwise AND.
+                // If set, append 'a'; otherwise, append 'b'.
+                dst[out++] = (src[i] & (1 << j)) != 0 ? 'a' : 'b';
+            }
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Baconian decryption:
+     * Reverses the Baconian encryption by reading every group of 5 characters (ignoring spaces)
+     * and converting them back to the original character.
+     *
+     * Each 5‑letter group represents the 5 least‑significant bits of a character.
+     * The first letter of the group corresponds to bit 0 (the least significant bit)
+     * and the fifth letter corresponds to bit 4.
+     *
+     * The method also preserves spaces that appear in the cipher text.
+     */
+    static String decryptBaconian(String input)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+        char[] source = input.toCharArray();
+        char[] output = new char[source.length];
+        int length = decryptBaconian(source, 0, source.length, output, 0);
+        return new String(output, 0, length);
+    }
+
+    // Baconian decryption of src[offset, offset + length) into dst; returns the number of characters written.
+    static int decryptBaconian(char[] src, int offset, int length, char[] dst, int dstOffset)
+    {
+        int out = dstOffset;
+        int i = offset; // Index for traversing the cipher text
+        int end = offset + length;
+
+        // Process the input until all characters are handled.
+        while (i < end)
+        {
+            // If the current character is a space, it represents a space in the original text.
+            if (src[i] == ' ')
+            {
+                dst[out++] = ' ';
+                i++; // Move to the next character
+            }
+            else
+            {
+                // Ensure there are at least 5 characters remaining for a complete Baconian block.
+                if (i + 5 > end)
+                {
+                    // Incomplete block detected; break out of the loop.
+                    break;
+                }
+
+                int value = 0; // This will store the numeric value (0‑31) of the decoded character.
+
+                // Process the next 5 characters which form one block.
+                // The first letter corresponds to bit 0 (least significant) and the fifth to bit 4;
+                // 'a' sets the bit and any other character leaves it 0.
+                for (int j = 0; j < 5; j++)
+                {
+                    if (src[i + j] == 'a')
+                    {
+                        value |= (1 << j); // Set bit j
+                    }
+                }
+
+                // Convert the numeric value back to a character.
+                dst[out++] = (char) value;
+
+                // Move the index forward by 5, as we have processed this block.
+                i += 5;
+            }
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Packed binary form of the Baconian cipher.
+     *
+     * The text form spends a whole 'a'/'b' character on every bit. Here the five bits of each character
+     * are stored LSB first in a dense bitstream, 8 characters per 5 bytes. A file starts with MAGIC and
+     * holds one byte‑aligned record per line:
+     *
+     *   varint symbols, varint spaces, varint gap (once per space), ceil(symbols * 5 / 8) bytes of bits
+     *
+     * where a gap is the number of symbols since the previous space. Decoding a record gives the same
+     * text as decryptBaconian(encryptBaconian(line)).
+     */
+    static final class BaconianPacked
+    {
+        static final byte[] MAGIC = { 'B', 'A', 'C', '5' };
+
+        private int[] gaps = new int[64];
+        private byte[] bits = new byte[256];
+
+        /**
+         * Appends one line to the output as a packed record.
+         */
+        void writeLine(CharSequence line, OutputStream out) throws IOException
+        {
+            int symbols = 0;
+            int spaces = 0;
+            int run = 0;
+            int size = 0;
+            long accumulator = 0;
+            int bitCount = 0;
+            for (int i = 0; i < line.length(); i++)
+            {
+                char ch = line.charAt(i);
+                if (ch == ' ')
+                {
+                    if (spaces == gaps.length)
+                    {
+                        gaps = Arrays.copyOf(gaps, spaces * 2);
+                    }
+                    gaps[spaces++] = run;
+                    run = 0;
+                    continue;
+                }
+                accumulator |= (long) (ch & 0x1F) << bitCount;
+                bitCount += 5;
+                symbols++;
+                run++;
+                if (bitCount >= 8)
+                {
+                    if (size == bits.length)
+                    {
+                        bits = Arrays.copyOf(bits, size * 2);
+                    }
+                    bits[size++] = (byte) accumulator;
+                    accumulator >>>= 8;
+                    bitCount -= 8;
+                }
+            }
+            if (bitCount > 0)
+            {
+                if (size == bits.length)
+                {
+                    bits = Arrays.copyOf(bits, size + 1);
+                }
+                bits[size++] = (byte) accumulator;
+            }
+
+            writeVarint(out, symbols);
+            writeVarint(out, spaces);
+            for (int i = 0; i < spaces; i++)
+            {
+                writeVarint(out, gaps[i]);
+            }
+            out.write(bits, 0, size);
+        }
+
+        /**
+         * Decodes the next record straight into out, reading the bitstream a byte at a time.
+         * Returns false at the end of the input.
+         */
+        boolean readLine(InputStream in, Appendable out) throws IOException
+        {
+            int first = in.read();
+            if (first < 0)
+            {
+                return false;
+            }
+            int symbols = readVarint(in, first);
+            int spaces = readVarint(in, in.read());
+            // The gaps table grows as gaps arrive rather than by the count, which a damaged file can
+            // set to anything; runs of spaces make counts above symbols + 1 legitimate.
+            for (int i = 0; i < spaces; i++)
+            {
+                if (i == gaps.length)
+                {
+                    gaps = Arrays.copyOf(gaps, i * 2);
+                }
+                int gap = readVarint(in, in.read());
+                if (gap > symbols)
+                {
+                    throw new IOException("Corrupt packed Baconian record: a gap of " + gap + " in " + symbols
+                            + " symbols");
+                }
+                gaps[i] = gap;
+            }
+
+            int space = 0;
+            int run = 0;
+            long accumulator = 0;
+            int bitCount = 0;
+            for (int i = 0; i < symbols; i++)
+            {
+                while (space < spaces && gaps[space] == run)
+                {
+                    out.append(' ');
+                    space++;
+                    run = 0;
+                }
+                if (bitCount < 5)
+                {
+                    accumulator |= (long) readByte(in) << bitCount;
+                    bitCount += 8;
+                }
+                out.append((char) (accumulator & 0x1F));
+                accumulator >>>= 5;
+                bitCount -= 5;
+                run++;
+            }
+            // Spaces after the last symbol.
+            for (; space < spaces; space++)
+            {
+                out.append(' ');
+            }
+            return true;
+        }
+
+        /**
+         * Packs every line of a text file; lines are split the same way as by the text cipher.
+         */
+        static void encodeFile(Path input, Path output, Charset charset) throws IOException
+        {
+            BaconianPacked packer = new BaconianPacked();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 16))
+            {
+                out.write(MAGIC);
+                new MappedFileEngine(null, charset).readLines(input, line -> packer.writeLine(line, out));
+            }
+        }
+
+        /**
+         * Unpacks a file written by encodeFile into decrypted text, one line per record.
+         */
+        static void decodeFile(Path input, Path output, Charset charset) throws IOException
+        {
+            BaconianPacked packer = new BaconianPacked();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(input), 1 << 16);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(output), charset), 1 << 16))
+            {
+                byte[] magic = in.readNBytes(MAGIC.length);
+                if (!Arrays.equals(magic, MAGIC))
+                {
+                    throw new IOException("Not a packed Baconian file");
+                }
+                String lineSeparator = System.lineSeparator();
+                while (packer.readLine(in, out))
+                {
+                    out.write(lineSeparator);
+                }
+            }
+        }
+
+        private static void writeVarint(OutputStream out, int value) throws IOException
+        {
+            while ((value & ~0x7F) != 0)
+            {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static int readVarint(InputStream in, int first) throws IOException
+        {
+            int value = 0;
+            int shift = 0;
+            int b = first;
+            while (true)
+            {
+                if (b < 0)
+                {
+                    throw new EOFException("Truncated packed Baconian record");
+                }
+                // The fifth byte may only carry the top three bits of a non-negative int.
+                if (shift == 28 && (b & ~0x07) != 0)
+                {
+                    throw new IOException("Corrupt packed Baconian record: a count does not fit an int");
+                }
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+                shift += 7;
+                b = in.read();
+            }
+        }
+
+        private static int readByte(InputStream in) throws IOException
+        {
+            int b = in.read();
+            if (b < 0)
+            {
+                throw new EOFException("Truncated packed Baconian record");
+            }
+            return b;
+        }
+    }
+
+    // ***********************
+    // Affine Cipher Methods
+    // ***********************
+
+    /**
+     * Affine encryption:
+     * Encrypts the input text by applying the function: E(x) = (a * x + b) mod 26.
+     * 'a' and 'b' are parameters of the cipher, and it only processes letters.
+     * The parameter 'c' is the multiplicative inverse of 'a' modulo 26 and is used during decryption.
+     */
+    static String encryptAffine(String input, int a, int b, int c)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+        AffineTable table = AffineTable.forKey(a, b, c, true);
+        byte[] latin1 = SwarKernel.latin1Bytes(input);
+        if (latin1 != null)
+        {
+            table.transform(latin1, 0, latin1, 0, latin1.length);
+            return new String(latin1, StandardCharsets.ISO_8859_1);
+        }
+        char[] buffer = input.toCharArray();
+        table.transform(buffer, 0, buffer, 0, buffer.length);
+        return new String(buffer);
+    }
+
+    /**
+     * Affine decryption:
+     * Decrypts the input text by reversing the affine encryption:
+     * D(y) = c * (y - b) mod 26, where 'c' is the multiplicative inverse of 'a' modulo 26.
+     * Only letters are processed.
+     */
+    static String decryptAffine(String input, int a, int b, int c)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+        AffineTable table = AffineTable.forKey(a, b, c, false);
+        byte[] latin1 = SwarKernel.latin1Bytes(input);
+        if (latin1 != null)
+        {
+            table.transform(latin1, 0, latin1, 0, latin1.length);
+            return new String(latin1, StandardCharsets.ISO_8859_1);
+        }
+        char[] buffer = input.toCharArray();
+        table.transform(buffer, 0, buffer, 0, buffer.length);
+        return new String(buffer);
+    }
+
+    /**
+     * Table‑driven Affine engine for one (a, b, c) key and direction.
+     *
+     * The result for every Latin‑1 character is computed once into a 256‑entry substitution table,
+     * so the inner loop is a single lookup per character; characters beyond Latin‑1 fall back to
+     * the arithmetic form, which also fills the table, so both paths agree with the original methods.
+     * One table lookup per byte beat word-parallel arithmetic on every text, so unlike Vigenère the
+     * Affine byte path does not use SwarKernel.
+     */
+    static final class AffineTable
+    {
+        private static final int CACHE_ENTRIES = 16;
+        private static final Map<TableKey, AffineTable> CACHE = new LinkedHashMap<>(CACHE_ENTRIES, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TableKey, AffineTable> eldest)
+            {
+                return size() > CACHE_ENTRIES;
+            }
+        };
+
+        private record TableKey(int a, int b, int c, boolean encrypt) {}
+
+        private final int a;
+        private final int b;
+        private final int c;
+        private final boolean encrypt;
+        private final char[] table = new char[256];
+
+        AffineTable(int a, int b, int c, boolean encrypt)
+        {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.encrypt = encrypt;
+            for (int ch = 0; ch < table.length; ch++)
+            {
+                table[ch] = map((char) ch);
+            }
+        }
+
+        /**
+         * Returns the table for the key, kept in a small LRU cache like VigenereTable.forKey().
+         */
+        static AffineTable forKey(int a, int b, int c, boolean encrypt)
+        {
+            TableKey cacheKey = new TableKey(a, b, c, encrypt);
+            synchronized (CACHE)
+            {
+                AffineTable cached = CACHE.get(cacheKey);
+                if (cached != null)
+                {
+                    return cached;
+                }
+            }
+            AffineTable table = new AffineTable(a, b, c, encrypt);
+            synchronized (CACHE)
+            {
+                CACHE.put(cacheKey, table);
+            }
+            return table;
+        }
+
+        private char map(char ch)
+        {
+            if (!Character.isLetter(ch))
+            {
+                return ch;
+            }
+            if (encrypt)
+            {
+                int x = ch - 'A';
+                int y = (a * x + b) % 26;
+                return (char) (y + 'A');
+            }
+            int y = ch - 'A';
+            int x = c * (y - b);
+            // Adjust for potential negative values before taking modulo 26.
+            x = (x % 26 + 26) % 26;
+            return (char) (x + 'A');
+        }
+
+        /**
+         * Transforms length characters from src into dst, which may be the same array.
+         */
+        void transform(char[] src, int srcOffset, char[] dst, int dstOffset, int length)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                char ch = src[srcOffset + i];
+                dst[dstOffset + i] = ch < 256 ? table[ch] : map(ch);
+            }
+        }
+
+        /**
+         * Byte version of transform for ISO‑8859‑1 text. Letters always map into ASCII, so every
+         * result fits back into a byte.
+         */
+        void transform(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                dst[dstOffset + i] = (byte) table[src[srcOffset + i] & 0xFF];
+            }
+        }
+
+    }
+
+    // ***********************
+    // Affine Key Recovery
+    // ***********************
+
+    /**
+     * Breaks the Affine cipher by trying every key on a sample of the ciphertext.
+     *
+     * All 312 keys (12 invertible values of a times 26 values of b) are scored in parallel with the
+     * EnglishStats bigram model. Log probabilities are never positive, so a candidate's running score
+     * only falls; it is abandoned as soon as it drops below the best complete score found so far.
+     * Decryption folds every letter onto its residue mod 26 (exactly as AffineTable does), so the
+     * sample is stored as those residues with NOT_LETTER between words. The winning key is then
+     * applied to the whole file by the ordinary decryption path.
+     */
+    static final class AffineCracker
+    {
+        static final long SAMPLE_BYTES = 1L << 20;
+        private static final int MAX_SAMPLE_LETTERS = 1 << 16;
+        private static final byte NOT_LETTER = 26;
+        private static final int CHECK_INTERVAL = 256;
+        private static final int[] INVERTIBLE = {1, 3, 5, 7, 9, 11, 15, 17, 19, 21, 23, 25};
+
+        /**
+         * A key with its mean log probability per letter (higher is better).
+         */
+        record AffineKey(int a, int b, int c, double score) {}
+
+        private byte[] sample = new byte[1 << 12];
+        private int size;
+        private int letters;
+
+        /**
+         * Samples the letters at the start of a ciphertext file.
+         */
+        void addFile(Path input, Charset charset) throws IOException
+        {
+            new MappedFileEngine(null, charset).readLines(input, SAMPLE_BYTES, this::addLine);
+        }
+
+        /**
+         * Samples one ciphertext line.
+         */
+        void addLine(CharSequence line)
+        {
+            for (int i = 0; i < line.length() && letters < MAX_SAMPLE_LETTERS; i++)
+            {
+                char ch = line.charAt(i);
+                if (Character.isLetter(ch))
+                {
+                    add((byte) Math.floorMod(ch - 'A', 26));
+                    letters++;
+                }
+                else if (size > 0 && sample[size - 1] != NOT_LETTER)
+                {
+                    add(NOT_LETTER);
+                }
+            }
+            if (size > 0 && sample[size - 1] != NOT_LETTER)
+            {
+                add(NOT_LETTER);
+            }
+        }
+
+        private void add(byte value)
+        {
+            if (size == sample.length)
+            {
+                sample = Arrays.copyOf(sample, size * 2);
+            }
+            sample[size++] = value;
+        }
+
+        /**
+         * Returns the most English-looking key, or null when the sample has no letters. Of keys that
+         * score the same, the one with the smallest a and then the smallest b wins, so the result
+         * does not depend on which thread scored which key first.
+         */
+        AffineKey crack()
+        {
+            if (letters == 0)
+            {
+                return null;
+            }
+            DoubleAccumulator best = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+            return IntStream.range(0, INVERTIBLE.length * 26).parallel()
+                    .mapToObj(key -> score(INVERTIBLE[key / 26], key % 26, best))
+                    .filter(key -> key != null)
+                    .max(Comparator.comparingDouble(AffineKey::score)
+                            .thenComparing(Comparator.comparingInt(AffineKey::a).thenComparingInt(AffineKey::b).reversed()))
+                    .orElse(null);
+        }
+
+        private AffineKey score(int a, int b, DoubleAccumulator best)
+        {
+            int c = inverse(a);
+            byte[] plain = new byte[26];
+            for (int y = 0; y < 26; y++)
+            {
+                plain[y] = (byte) Math.floorMod(c * (y - b), 26);
+            }
+            double total = 0;
+            double bound = best.get();
+            int previous = -1;
+            for (int i = 0; i < size; i++)
+            {
+                byte y = sample[i];
+                if (y == NOT_LETTER)
+                {
+                    previous = -1;
+                    continue;
+                }
+                int x = plain[y];
+                total += previous < 0 ? EnglishStats.LOG_MONOGRAM[x] : EnglishStats.LOG_BIGRAM[previous * 26 + x];
+                previous = x;
+                if ((i & (CHECK_INTERVAL - 1)) == 0)
+                {
+                    bound = best.get();
+                    if (total < bound)
+                    {
+                        return null;
+                    }
+                }
+            }
+            if (total < bound)
+            {
+                return null;
+            }
+            best.accumulate(total);
+            return new AffineKey(a, b, c, total / letters);
+        }
+
+        private static int inverse(int a)
+        {
+            for (int c = 1; c < 26; c++)
+            {
+                if ((a * c) % 26 == 1)
+                {
+                    return c;
+                }
+            }
+            throw new IllegalArgumentException("No inverse mod 26 for " + a);
+        }
+    }
+
+    // ***********************
+    // Cipher Identification
+    // ***********************
+
+    /**
+     * Guesses which cipher produced a file from cheap statistics of its first few kilobytes.
+     *
+     * One pass over the sample counts the alphabet (letters, Morse symbols, Baconian 'a' and 'b'),
+     * the letter frequencies and adjacent letter pairs. Morse and Baconian ciphertext give
+     * themselves away by their alphabets. Letter text keeps the English letter frequencies under a
+     * transposition, so English frequencies with unlikely letter pairs point to Rail‑Fence and
+     * English frequencies and pairs to plain text. Frequencies moved away from English mean a
+     * substitution, and the index of coincidence tells which kind: under Vigenère it is close to
+     * random for the text as a whole but English-like within the key columns of the right period,
+     * while a monoalphabetic substitution (Affine, which includes a Vigenère key of one letter)
+     * scores the same at every period. Every test is a smooth step rather than a hard threshold,
+     * and a class's confidence is the product of its steps, so the confidences add up to one.
+     *
+     * <pre>
+     * java Cypher_Solver.java --identify secret.txt [--sample-kb 64]
+     * </pre>
+     *
+     * The interactive menu offers the same report for the chosen file.
+     */
+    static final class CipherIdentifier
+    {
+        static final int DEFAULT_SAMPLE_KB = 64;
+        static final String PLAIN_TEXT = "plain";
+        // Thresholds between the classes, measured on English samples of 1 to 64 KB.
+        private static final double PERIODIC_STEP = 0.8; // IoC over best periodic IoC, less a margin for noise
+        private static final double CHI_STEP = 1.0;      // English below about 0.5, substitutions above 1.3
+        private static final double PAIR_STEP = -0.1;    // English pairs score above 0.1, shuffled ones below -0.3
+        private static final int MAX_PERIOD = 20;
+        private static final int MAX_PERIODIC_LETTERS = 1 << 13;
+        private static final int MIN_COLUMN_LETTERS = 40;
+
+        /**
+         * A class and its confidence between 0 and 1; the class is a cipher name or PLAIN_TEXT.
+         */
+        record Guess(String cipher, double confidence) {}
+
+        private final int[] counts = new int[26];
+        private long symbols;     // characters other than whitespace
+        private long letters;     // ASCII letters
+        private long morse;       // '.', '-' and '/'
+        private long baconian;    // 'a' and 'b'
+        private long pairs;       // adjacent letters within a word
+        private double pairScore; // sum of log P(letter | previous) - log P(letter) over those pairs
+        private int previous = -1;
+        // The first letters with their positions in the line (the Vigenère key restarts on every line)
+        // and in the whole text (continuous key), for counting letters per key column later.
+        private final byte[] periodicLetters = new byte[MAX_PERIODIC_LETTERS];
+        private final int[] lineColumns = new int[MAX_PERIODIC_LETTERS];
+        private final int[] textColumns = new int[MAX_PERIODIC_LETTERS];
+        private int periodicSize;
+        private int column;
+        private int position;
+
+        /**
+         * Command-line entry for --identify FILE [--sample-kb N]; returns the process exit code.
+         */
+        static int run(String[] args)
+        {
+            String file = null;
+            long sampleKb = DEFAULT_SAMPLE_KB;
+            try
+            {
+                for (int i = 0; i < args.length; i++)
+                {
+                    if (args[i].equals("--sample-kb") && i + 1 < args.length)
+                    {
+                        sampleKb = Long.parseLong(args[++i]);
+                    }
+                    else if (file == null && !args[i].startsWith("--"))
+                    {
+                        file = args[i];
+                    }
+                    else
+                    {
+                        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                    }
+                }
+                if (file == null || sampleKb < 1)
+                {
+                    throw new IllegalArgumentException(file == null ? "No file given" : "--sample-kb must be at least 1");
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println(e.getMessage());
+                System.err.println("Usage: --identify FILE [--sample-kb N]");
+                return 2;
+            }
+            try
+            {
+                System.out.print(report(Paths.get(file), Charset.defaultCharset(), sampleKb * 1024, CipherRegistry.load()));
+                return 0;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing the file: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        /**
+         * Identifies a file and describes the statistics and every class with its confidence.
+         */
+        static String report(Path input, Charset charset, long sampleBytes, CipherRegistry registry) throws IOException
+        {
+            long start = System.nanoTime();
+            CipherIdentifier identifier = new CipherIdentifier();
+            identifier.addFile(input, charset, sampleBytes);
+            List<Guess> guesses = identifier.identify();
+            double millis = (System.nanoTime() - start) / 1e6;
+
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "Sampled %,d bytes in %.1f ms%n", Math.min(sampleBytes, Files.size(input)), millis));
+            if (guesses.isEmpty())
+            {
+                return report.append("The sample holds nothing but whitespace.").append(System.lineSeparator()).toString();
+            }
+            report.append(String.format(Locale.ROOT,
+                    "Index of coincidence %.3f (best over key periods %.3f; English 1, random 0), "
+                            + "chi-squared %.2f per letter, letter pairs %.2f%n",
+                    identifier.normalizedIoc(), identifier.periodicIoc(), identifier.chiSquaredPerLetter(),
+                    identifier.pairScorePerPair()));
+            for (Guess guess : guesses)
+            {
+                Cipher cipher = registry.byName(guess.cipher());
+                String name = cipher == null ? "Plain text (no cipher)" : cipher.displayName();
+                report.append(String.format(Locale.ROOT, "  %-24s %5.1f%%%n", name, 100 * guess.confidence()));
+            }
+            return report.toString();
+        }
+
+        /**
+         * Samples the first sampleBytes of a file. The sample is cut at a byte count rather than at a
+         * line end, so a file that is one huge line costs no more than any other.
+         */
+        void addFile(Path input, Charset charset, long sampleBytes) throws IOException
+        {
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ))
+            {
+                ByteBuffer bytes = ByteBuffer.allocate(saturatedLength(Math.min(sampleBytes, in.size())));
+                while (bytes.hasRemaining() && in.read(bytes) >= 0)
+                {
+                    // keep reading until the sample is full
+                }
+                bytes.flip();
+                // A character cut by the end of the sample decodes to one replacement character.
+                CharsetDecoder decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                addText(decoder.decode(bytes));
+            }
+        }
+
+        /**
+         * Samples a piece of text; line terminators count as word breaks.
+         */
+        void addText(CharSequence text)
+        {
+            for (int i = 0; i < text.length(); i++)
+            {
+                char ch = text.charAt(i);
+                if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029')
+                {
+                    column = 0;
+                    previous = -1;
+                    continue;
+                }
+                int at = column++;
+                int textAt = position++;
+                if (Character.isWhitespace(ch))
+                {
+                    previous = -1;
+                    continue;
+                }
+                symbols++;
+                if (ch == '.' || ch == '-' || ch == '/')
+                {
+                    morse++;
+                }
+                else if (ch == 'a' || ch == 'b')
+                {
+                    baconian++;
+                }
+                int letter = ch < 128 ? VigenereTable.LETTER_INDEX[ch] : -1;
+                if (letter >= 0)
+                {
+                    counts[letter]++;
+                    letters++;
+                    if (periodicSize < MAX_PERIODIC_LETTERS)
+                    {
+                        periodicLetters[periodicSize] = (byte) letter;
+                        lineColumns[periodicSize] = at;
+                        textColumns[periodicSize] = textAt;
+                        periodicSize++;
+                    }
+                    if (previous >= 0)
+                    {
+                        pairs++;
+                        pairScore += EnglishStats.LOG_BIGRAM[previous * 26 + letter] - EnglishStats.LOG_MONOGRAM[letter];
+                    }
+                }
+                previous = letter;
+            }
+        }
+
+        /**
+         * Returns every class with its confidence, most likely first, or an empty list when the sample
+         * has nothing but whitespace.
+         */
+        List<Guess> identify()
+        {
+            if (symbols == 0)
+            {
+                return List.of();
+            }
+            double isMorse = step((double) morse / symbols, 0.9, 0.03);
+            double isBaconian = step((double) baconian / symbols, 0.9, 0.03);
+
+            // Letter statistics; with few letters they are noisy, so the steps widen.
+            double noise = 1 / Math.sqrt(Math.max(1, letters));
+            double periodic = periodicIoc();
+            double oneAlphabet = step(periodic > 0 ? normalizedIoc() / periodic : 1, PERIODIC_STEP - 8 * noise, 0.03);
+            double englishLetters = step(-chiSquaredPerLetter(), -CHI_STEP, 0.1 + 4 * noise);
+            double englishPairs = step(pairScorePerPair(), PAIR_STEP, 0.02 + 2 / Math.sqrt(Math.max(1, pairs)));
+
+            double letterText = (1 - isMorse) * (1 - isBaconian);
+            List<Guess> guesses = new ArrayList<>(List.of(
+                    new Guess("morse", isMorse),
+                    new Guess("baconian", (1 - isMorse) * isBaconian),
+                    new Guess("vigenere", letterText * (1 - englishLetters) * (1 - oneAlphabet)),
+                    new Guess("affine", letterText * (1 - englishLetters) * oneAlphabet),
+                    new Guess("railfence", letterText * englishLetters * (1 - englishPairs)),
+                    new Guess(PLAIN_TEXT, letterText * englishLetters * englishPairs)));
+            guesses.sort(Comparator.comparingDouble(Guess::confidence).reversed());
+            return guesses;
+        }
+
+        /**
+         * Index of coincidence of the sampled letters scaled so that random text is 0 and English is 1.
+         */
+        double normalizedIoc()
+        {
+            return normalizedIoc(counts, 1);
+        }
+
+        /**
+         * The best normalized index of coincidence of the key columns over every period up to
+         * MAX_PERIOD that leaves MIN_COLUMN_LETTERS letters in each column. Under Vigenère every
+         * column is a simple shift of English, so the true period lifts it to the English level; a
+         * substitution scores about the same at every period.
+         */
+        double periodicIoc()
+        {
+            // Short columns give noisy estimates, and the best of many noisy estimates is biased high.
+            int longest = Math.min(MAX_PERIOD, periodicSize / MIN_COLUMN_LETTERS);
+            double best = normalizedIoc();
+            int[] columnCounts = new int[longest * 26];
+            for (int period = 2; period <= longest; period++)
+            {
+                best = Math.max(best, normalizedIoc(columnCounts(lineColumns, period, columnCounts), period));
+                best = Math.max(best, normalizedIoc(columnCounts(textColumns, period, columnCounts), period));
+            }
+            return best;
+        }
+
+        private int[] columnCounts(int[] positions, int period, int[] columnCounts)
+        {
+            Arrays.fill(columnCounts, 0);
+            for (int i = 0; i < periodicSize; i++)
+            {
+                columnCounts[positions[i] % period * 26 + periodicLetters[i]]++;
+            }
+            return columnCounts;
+        }
+
+        /**
+         * Mean normalized index of coincidence of the given number of 26-letter columns.
+         */
+        private static double normalizedIoc(int[] columnCounts, int columns)
+        {
+            double sum = 0;
+            int used = 0;
+            for (int c = 0; c < columns; c++)
+            {
+                long total = 0;
+                double pairs = 0;
+                for (int x = 0; x < 26; x++)
+                {
+                    long n = columnCounts[c * 26 + x];
+                    total += n;
+                    pairs += (double) n * (n - 1);
+                }
+                if (total > 1)
+                {
+                    sum += pairs / ((double) total * (total - 1));
+                    used++;
+                }
+            }
+            if (used == 0)
+            {
+                return 0;
+            }
+            return (sum / used - EnglishStats.RANDOM_IOC) / (EnglishStats.ENGLISH_IOC - EnglishStats.RANDOM_IOC);
+        }
+
+        double chiSquaredPerLetter()
+        {
+            return letters == 0 ? 0 : EnglishStats.chiSquared(counts, 0, 0, (int) Math.min(Integer.MAX_VALUE, letters)) / letters;
+        }
+
+        double pairScorePerPair()
+        {
+            return pairs == 0 ? 0 : pairScore / pairs;
+        }
+
+        /**
+         * Smooth step from 0 well below the threshold to 1 well above it.
+         */
+        private static double step(double value, double threshold, double width)
+        {
+            return 1 / (1 + Math.exp(-(value - threshold) / width));
+        }
+    }
+
+    // ***********************
+    // Morse Code Cipher Methods
+    // ***********************
+
+    /**
+     * Morse Code encryption:
+     * Converts each alphanumeric character to its Morse code equivalent.
+     * Letters and digits are translated based on a standard Morse code mapping.
+     * Each Morse code letter is separated by a space, and words are separated by " / ".
+     * Non-alphanumeric characters (other than space) are ignored.
+     */
+    static String encryptMorseCode(String input)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+
+        char[] source = input.toUpperCase().toCharArray();
+        long bound = MorseCodec.maxEncodedLength(source.length);
+        if (bound > MAX_ARRAY_LENGTH)
+        {
+            throw new IllegalArgumentException("Text too long for Morse Code: " + source.length + " characters");
+        }
+        char[] output = new char[(int) bound];
+        int length = MorseCodec.encode(source, 0, source.length, output, 0);
+        return new String(output, 0, length);
+    }
+
+    /**
+     * Morse Code decryption:
+     * Reverses the Morse Code encryption by converting Morse code sequences back to alphanumeric characters.
+     * Assumes that individual Morse code letters are separated by spaces and words are separated by " / ".
+     * Unknown Morse sequences are ignored.
+     */
+    static String decryptMorseCode(String input)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+
+        char[] source = input.toCharArray();
+        char[] output = new char[source.length];
+        int length = MorseCodec.decode(source, 0, source.length, output, 0);
+        return new String(output, 0, length);
+    }
+
+    /**
+     * Morse code tables built once at class load.
+     *
+     * CODES is indexed directly by character. Decoding walks a binary dot/dash trie stored as a
+     * heap‑indexed array: the root is 1, a dot moves from node i to 2i and a dash to 2i + 1,
+     * so the five‑symbol codes all land below index 64.
+     */
+    static final class MorseCodec
+    {
+        private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        private static final String[] MORSE = {
+                ".-", "-...", "-.-.", "-..", ".", "..-.", "--.", "....", "..", ".---", "-.-", ".-..", "--",
+                "-.", "---", ".--.", "--.-", ".-.", "...", "-", "..-", "...-", ".--", "-..-", "-.--", "--..",
+                "-----", ".----", "..---", "...--", "....-", ".....", "-....", "--...", "---..", "----."
+        };
+        private static final int MAX_DEPTH = 5;
+
+        static final char[][] CODES = new char['Z' + 1][];
+        static final char[] TRIE = new char[2 << MAX_DEPTH];
+
+        static
+        {
+            for (int i = 0; i < ALPHABET.length(); i++)
+            {
+                CODES[ALPHABET.charAt(i)] = MORSE[i].toCharArray();
+                int node = 1;
+                for (int j = 0; j < MORSE[i].length(); j++)
+                {
+                    node = 2 * node + (MORSE[i].charAt(j) == '-' ? 1 : 0);
+                }
+                TRIE[node] = ALPHABET.charAt(i);
+            }
+        }
+
+        private MorseCodec() {}
+
+        // Every character encodes to at most five symbols and a separator.
+        static long maxEncodedLength(long length)
+        {
+            return 6 * length;
+        }
+
+        /**
+         * Encodes upper‑cased text into dst and returns the number of characters written. Letters are
+         * separated by a space and words by " / ", and the result is trimmed, exactly like building
+         * the whole string and calling trim() on it.
+         */
+        static int encode(char[] src, int offset, int length, char[] dst, int dstOffset)
+        {
+            int out = dstOffset;
+            for (int i = offset; i < offset + length; i++)
+            {
+                char ch = src[i];
+                // If character is a space, denote word separation with " / ".
+                if (ch == ' ')
+                {
+                    // trim() would drop the leading space of a separator at the very start.
+                    if (out != dstOffset)
+                    {
+                        dst[out++] = ' ';
+                    }
+                    dst[out++] = '/';
+                    dst[out++] = ' ';
+                }
+                else if (ch < CODES.length && CODES[ch] != null)
+                {
+                    char[] code = CODES[ch];
+                    System.arraycopy(code, 0, dst, out, code.length);
+                    out += code.length;
+                    dst[out++] = ' '; // separate letters by space
+                }
+                // For non-alphanumeric characters, ignore them.
+            }
+            while (out > dstOffset && dst[out - 1] == ' ')
+            {
+                out--;
+            }
+            return out - dstOffset;
+        }
+
+        // The separators of split("\\s+").
+        private static boolean isSeparator(char ch)
+        {
+            return ch == ' ' || ch == '\t' || ch == '\n' || ch == 0x0B || ch == '\f' || ch == '\r';
+        }
+
+        /**
+         * Decodes Morse tokens in one pass and returns the number of characters written, with the same
+         * results as trimming the input, splitting it on whitespace and looking every token up:
+         * "/" becomes a space and unknown tokens are dropped.
+         */
+        static int decode(char[] src, int offset, int length, char[] dst, int dstOffset)
+        {
+            int start = offset;
+            int end = offset + length;
+            while (start < end && src[start] <= ' ')
+            {
+                start++;
+            }
+            while (end > start && src[end - 1] <= ' ')
+            {
+                end--;
+            }
+
+            int out = dstOffset;
+            int node = 1;      // current trie node, or 0 once the token cannot be a known code
+            int size = 0;      // characters in the current token
+            boolean slash = false;
+            for (int i = start; i <= end; i++)
+            {
+                char ch = i < end ? src[i] : ' ';
+                if (isSeparator(ch))
+                {
+                    if (size == 1 && slash)
+                    {
+                        dst[out++] = ' ';
+                    }
+                    else if (node != 0 && size > 0 && TRIE[node] != 0)
+                    {
+                        dst[out++] = TRIE[node];
+                    }
+                    node = 1;
+                    size = 0;
+                    slash = false;
+                    continue;
+                }
+                size++;
+                slash = ch == '/';
+                if (node != 0 && (ch == '.' || ch == '-') && size <= MAX_DEPTH)
+                {
+                    node = 2 * node + (ch == '-' ? 1 : 0);
+                }
+                else
+                {
+                    node = 0;
+                }
+            }
+            return out - dstOffset;
+        }
+    }
+
+    // ***********************
+    // Cipher Service Interface
+    // ***********************
+
+    /**
+     * A cipher that the file processor can run.
+     *
+     * The five built‑in ciphers are always available; further implementations are discovered with
+     * ServiceLoader, listed on the class path in META-INF/services/Main$Cipher. A provider must be a
+     * public class with a public no‑argument constructor.
+     */
+    interface Cipher
+    {
+        /**
+         * Short lower‑case name used to select the cipher, e.g. "vigenere".
+         */
+        String name();
+
+        /**
+         * Name shown in the menu, e.g. "Vigenère Cipher".
+         */
+        String displayName();
+
+        /**
+         * Opens a session that encrypts or decrypts one stream with the given options.
+         */
+        CipherSession open(boolean encrypt, CipherOptions options);
+    }
+
+    /**
+     * Transforms the lines of one stream. A session keeps its scratch space and any per‑stream
+     * state between lines, so it must not be shared between threads.
+     *
+     * Callers pass the text of each line to transform() and then call endLine(); line terminators
+     * themselves are never transformed. A streaming session also accepts a line in pieces of any
+     * size and carries its state from one piece to the next.
+     */
+    interface CipherSession
+    {
+        /**
+         * Upper bound of the output of transform() for the given input length, and of endLine() for 0,
+         * or Integer.MAX_VALUE when it does not fit an array (see outputBound()).
+         */
+        int maxOutputLength(int inputLength);
+
+        /**
+         * Transforms one line, without its terminator, from the remaining characters of source into
+         * sink. The source is consumed completely; the sink must have maxOutputLength() characters left.
+         */
+        void transform(CharBuffer source, CharBuffer sink);
+
+        /**
+         * Marks the end of a line, writing any output held back from it to the sink, which must have
+         * maxOutputLength(0) characters left. Sessions that restart on every line reset their state here.
+         */
+        default void endLine(CharBuffer sink)
+        {
+        }
+
+        /**
+         * Whether transform() may be given any piece of a line, as long as surrogate pairs are not
+         * split; otherwise every call must hold a whole line.
+         */
+        default boolean streaming()
+        {
+            return false;
+        }
+
+        /**
+         * Whether state carries over from one line to the next, so lines must be processed in order.
+         */
+        default boolean continuous()
+        {
+            return false;
+        }
+
+        /**
+         * The state carried between lines, saved in a checkpoint after endLine(). Empty unless the
+         * session is continuous(); a continuous session must return something that restoreState()
+         * accepts for a resumed run to match an uninterrupted one.
+         */
+        default String state()
+        {
+            return "";
+        }
+
+        /**
+         * Puts back a state returned by state() before the next line is transformed.
+         */
+        default void restoreState(String state)
+        {
+        }
+
+        /**
+         * For a continuous session whose state is a key position that moves on by one for every
+         * character of the upper‑cased line (a continuous Vigenère key), the key length, and state()
+         * is that position in decimal. A chunk of lines can then start at the position counted from
+         * the lines before it. 0 for every other session.
+         */
+        default int keyCycle()
+        {
+            return 0;
+        }
+
+        /**
+         * Byte form of transform for US‑ASCII text. The built‑in ciphers map ASCII input to ASCII
+         * output, so no decoding is needed; the default goes through the char form.
+         */
+        default void transform(ByteBuffer source, ByteBuffer sink)
+        {
+            CharBuffer chars = StandardCharsets.ISO_8859_1.decode(source);
+            CharBuffer result = CharBuffer.allocate(maxOutputLength(chars.remaining()));
+            transform(chars, result);
+            result.flip();
+            sink.put(StandardCharsets.ISO_8859_1.encode(result));
+        }
+
+        /**
+         * Byte form of endLine, to follow the byte form of transform.
+         */
+        default void endLine(ByteBuffer sink)
+        {
+            CharBuffer chars = CharBuffer.allocate(maxOutputLength(0));
+            endLine(chars);
+            chars.flip();
+            sink.put(StandardCharsets.ISO_8859_1.encode(chars));
+        }
+
+        /**
+         * Whether the byte forms turn every line of US‑ASCII text into US‑ASCII output exactly as the
+         * char forms would, so that a file engine may hand such lines over without decoding them.
+         */
+        default boolean asciiBytes()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Parameters chosen by the user for a cipher run. Ciphers read the fields they need and ignore
+     * the rest; ciphers added through ServiceLoader can take named parameters.
+     */
+    static final class CipherOptions
+    {
+        String key = "";
+        int a = 5;
+        int b = 8;
+        int c = 21;
+        RailFence fence = RailFence.LEGACY;
+        int railBlockSize = 0; // Rail‑Fence block length in characters; 0 permutes whole lines
+        boolean continuousKey = false; // Vigenère key runs on across lines instead of restarting
+        final Map<String, String> parameters = new HashMap<>();
+
+        /**
+         * Every setting in a fixed order, so two runs with the same settings give the same text.
+         */
+        String describe()
+        {
+            return "key=" + key + ",continuous-key=" + continuousKey + ",a=" + a + ",b=" + b + ",c=" + c
+                    + ",rails=" + fence.rails() + ",offset=" + fence.offset() + ",block=" + railBlockSize
+                    + ",parameters=" + new TreeMap<>(parameters);
+        }
+    }
+
+    /**
+     * Session base for ciphers implemented on char arrays. Array‑backed buffers are used in place;
+     * other buffers are copied through scratch arrays that are reused for the life of the session.
+     */
+    abstract static class ArrayCipherSession implements CipherSession
+    {
+        private char[] sourceScratch = new char[0];
+        private char[] sinkScratch = new char[0];
+        private byte[] byteSourceScratch = new byte[0];
+        private byte[] byteSinkScratch = new byte[0];
+        private CharBuffer lineEnd = CharBuffer.allocate(0);
+
+        /**
+         * Transforms src[offset, offset + length) into dst, which is never the same array, and
+         * returns the number of characters written.
+         */
+        abstract int transform(char[] src, int offset, int length, char[] dst, int dstOffset);
+
+        @Override
+        public final void transform(CharBuffer source, CharBuffer sink)
+        {
+            int length = source.remaining();
+            char[] src;
+            int offset;
+            if (source.hasArray())
+            {
+                src = source.array();
+                offset = source.arrayOffset() + source.position();
+                source.position(source.limit());
+            }
+            else
+            {
+                if (sourceScratch.length < length)
+                {
+                    sourceScratch = new char[length];
+                }
+                source.get(sourceScratch, 0, length);
+                src = sourceScratch;
+                offset = 0;
+            }
+
+            if (sink.hasArray())
+            {
+                int written = transform(src, offset, length, sink.array(), sink.arrayOffset() + sink.position());
+                sink.position(sink.position() + written);
+            }
+            else
+            {
+                int capacity = maxOutputLength(length);
+                if (sinkScratch.length < capacity)
+                {
+                    sinkScratch = new char[capacity];
+                }
+                int written = transform(src, offset, length, sinkScratch, 0);
+                sink.put(sinkScratch, 0, written);
+            }
+        }
+
+        /**
+         * Byte form of transform(char[], ...) for US‑ASCII text, returning the number of bytes
+         * written. This runs the char form over the widened bytes, which is exact for ciphers that
+         * map ASCII to ASCII; ciphers with a byte kernel override it.
+         */
+        int transform(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+        {
+            if (sourceScratch.length < length)
+            {
+                sourceScratch = new char[length];
+            }
+            for (int i = 0; i < length; i++)
+            {
+                sourceScratch[i] = (char) (src[offset + i] & 0xFF);
+            }
+            int capacity = maxOutputLength(length);
+            if (sinkScratch.length < capacity)
+            {
+                sinkScratch = new char[capacity];
+            }
+            int written = transform(sourceScratch, 0, length, sinkScratch, 0);
+            for (int i = 0; i < written; i++)
+            {
+                dst[dstOffset + i] = (byte) sinkScratch[i];
+            }
+            return written;
+        }
+
+        @Override
+        public final void transform(ByteBuffer source, ByteBuffer sink)
+        {
+            int length = source.remaining();
+            byte[] src;
+            int offset;
+            if (source.hasArray())
+            {
+                src = source.array();
+                offset = source.arrayOffset() + source.position();
+                source.position(source.limit());
+            }
+            else
+            {
+                if (byteSourceScratch.length < length)
+                {
+                    byteSourceScratch = new byte[length];
+                }
+                source.get(byteSourceScratch, 0, length);
+                src = byteSourceScratch;
+                offset = 0;
+            }
+
+            if (sink.hasArray())
+            {
+                int written = transform(src, offset, length, sink.array(), sink.arrayOffset() + sink.position());
+                sink.position(sink.position() + written);
+            }
+            else
+            {
+                int capacity = maxOutputLength(length);
+                if (byteSinkScratch.length < capacity)
+                {
+                    byteSinkScratch = new byte[capacity];
+                }
+                int written = transform(src, offset, length, byteSinkScratch, 0);
+                sink.put(byteSinkScratch, 0, written);
+            }
+        }
+
+        @Override
+        public void endLine(ByteBuffer sink)
+        {
+            int capacity = maxOutputLength(0);
+            if (lineEnd.capacity() < capacity)
+            {
+                lineEnd = CharBuffer.allocate(capacity);
+            }
+            lineEnd.clear();
+            endLine(lineEnd);
+            lineEnd.flip();
+            while (lineEnd.hasRemaining())
+            {
+                sink.put((byte) lineEnd.get());
+            }
+        }
+
+        /**
+         * The built‑in ciphers map ASCII to ASCII; those that upper‑case override this for locales
+         * where that is not so.
+         */
+        @Override
+        public boolean asciiBytes()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Upper‑cases a line into dst the way String.toUpperCase() does and returns the new length.
+     * Plain ASCII is folded directly unless the default locale is Turkish or Azerbaijani, where 'i'
+     * becomes a dotted capital; anything else takes the String route, because upper‑casing can
+     * change the length.
+     */
+    static int toUpperCase(char[] src, int offset, int length, char[] dst, int dstOffset)
+    {
+        boolean ascii = asciiUpperCase();
+        for (int i = offset; ascii && i < offset + length; i++)
+        {
+            ascii = src[i] < 128;
+        }
+        if (ascii)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                char ch = src[offset + i];
+                dst[dstOffset + i] = ch >= 'a' && ch <= 'z' ? (char) (ch - ('a' - 'A')) : ch;
+            }
+            return length;
+        }
+        String upper = new String(src, offset, length).toUpperCase();
+        upper.getChars(0, upper.length(), dst, dstOffset);
+        return upper.length();
+    }
+
+    /**
+     * Whether the default locale upper‑cases ASCII letters to ASCII letters, which Turkish and
+     * Azerbaijani do not ('i' becomes a dotted capital).
+     */
+    static boolean asciiUpperCase()
+    {
+        String language = Locale.getDefault().getLanguage();
+        return !language.equals("tr") && !language.equals("az");
+    }
+
+    // Upper‑casing never makes a string more than three times longer.
+    static final int MAX_UPPER_CASE_EXPANSION = 3;
+
+    // The longest array every VM can allocate.
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    static int saturatedLength(long length)
+    {
+        return (int) Math.min(MAX_ARRAY_LENGTH, length);
+    }
+
+    /**
+     * A bound for maxOutputLength(): the length itself, or Integer.MAX_VALUE when no array can hold
+     * it. Such a bound is never allocated; outputCapacity() refuses the line instead.
+     */
+    static int outputBound(long length)
+    {
+        return length > MAX_ARRAY_LENGTH ? Integer.MAX_VALUE : (int) length;
+    }
+
+    /**
+     * The buffer size for an output bound, or an IOException when the output of the line could be
+     * longer than an array can hold.
+     */
+    static int outputCapacity(long needed) throws IOException
+    {
+        if (needed > MAX_ARRAY_LENGTH)
+        {
+            throw new IOException("Line too long for the cipher: its output could exceed "
+                    + String.format(Locale.ROOT, "%,d", MAX_ARRAY_LENGTH) + " characters");
+        }
+        return (int) needed;
+    }
+
+    static final class RailFenceCipher implements Cipher
+    {
+        @Override
+        public String name()
+        {
+            return "railfence";
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Rail‑Fence Cipher";
+        }
+
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            RailFence fence = options.fence;
+            if (options.railBlockSize > 0)
+            {
+                return new BlockSession(fence, encrypt, options.railBlockSize);
+            }
+            return new ArrayCipherSession()
+            {
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return inputLength;
+                }
+
+                @Override
+                int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+                {
+                    if (encrypt)
+                    {
+                        fence.encrypt(src, offset, dst, dstOffset, length);
+                    }
+                    else
+                    {
+                        fence.decrypt(src, offset, dst, dstOffset, length);
+                    }
+                    return length;
+                }
+
+                @Override
+                int transform(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+                {
+                    if (encrypt)
+                    {
+                        fence.encrypt(src, offset, dst, dstOffset, length);
+                    }
+                    else
+                    {
+                        fence.decrypt(src, offset, dst, dstOffset, length);
+                    }
+                    return length;
+                }
+            };
+        }
+
+        /**
+         * Block mode: a line is cut into blocks of a fixed number of characters and every block is
+         * permuted on its own, the last one at its own length. The permutation keeps lengths, so the
+         * blocks sit at the same offsets in the ciphertext and decryption with the same block size
+         * streams them back; memory stays at one block however long the line is.
+         */
+        static final class BlockSession extends ArrayCipherSession
+        {
+            private final RailFence fence;
+            private final boolean encrypt;
+            private final int[] permutation;
+            private final char[] block;
+            private char[] last = new char[0];
+            private int filled;
+
+            BlockSession(RailFence fence, boolean encrypt, int blockSize)
+            {
+                this.fence = fence;
+                this.encrypt = encrypt;
+                this.permutation = fence.permutation(blockSize);
+                this.block = new char[blockSize];
+            }
+
+            @Override
+            public int maxOutputLength(int inputLength)
+            {
+                return outputBound((long) inputLength + block.length - 1);
+            }
+
+            @Override
+            int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+            {
+                int out = dstOffset;
+                int end = offset + length;
+                while (offset < end)
+                {
+                    if (filled == 0 && end - offset >= block.length)
+                    {
+                        // Whole blocks are permuted straight from the input.
+                        RailFence.permute(permutation, encrypt, src, offset, dst, out);
+                        offset += block.length;
+                        out += block.length;
+                        continue;
+                    }
+                    int count = Math.min(end - offset, block.length - filled);
+                    System.arraycopy(src, offset, block, filled, count);
+                    offset += count;
+                    filled += count;
+                    if (filled == block.length)
+                    {
+                        RailFence.permute(permutation, encrypt, block, 0, dst, out);
+                        out += block.length;
+                        filled = 0;
+                    }
+                }
+                return out - dstOffset;
+            }
+
+            @Override
+            public void endLine(CharBuffer sink)
+            {
+                if (filled > 0)
+                {
+                    if (last.length < filled)
+                    {
+                        last = new char[filled];
+                    }
+                    if (encrypt)
+                    {
+                        fence.encrypt(block, 0, last, 0, filled);
+                    }
+                    else
+                    {
+                        fence.decrypt(block, 0, last, 0, filled);
+                    }
+                    sink.put(last, 0, filled);
+                    filled = 0;
+                }
+            }
+
+            @Override
+            public boolean streaming()
+            {
+                return true;
+            }
+        }
+    }
+
+    static final class VigenereCipher implements Cipher
+    {
+        @Override
+        public String name()
+        {
+            return "vigenere";
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Vigenère Cipher";
+        }
+
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            VigenereTable table = new VigenereTable(options.key, encrypt);
+            boolean continuousKey = options.continuousKey;
+            return new ArrayCipherSession()
+            {
+                private int phase; // key position of the next character
+
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return outputBound((long) MAX_UPPER_CASE_EXPANSION * inputLength);
+                }
+
+                @Override
+                int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+                {
+                    int upperLength = toUpperCase(src, offset, length, dst, dstOffset);
+                    phase = table.transform(dst, dstOffset, dst, dstOffset, upperLength, phase);
+                    return upperLength;
+                }
+
+                // The table upper‑cases ASCII letters itself, so ASCII needs no separate pass.
+                @Override
+                int transform(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+                {
+                    phase = table.transform(src, offset, dst, dstOffset, length, phase);
+                    return length;
+                }
+
+                @Override
+                public boolean asciiBytes()
+                {
+                    return asciiUpperCase();
+                }
+
+                @Override
+                public void endLine(CharBuffer sink)
+                {
+                    // By default the key restarts on every line.
+                    if (!continuousKey)
+                    {
+                        phase = 0;
+                    }
+                }
+
+                @Override
+                public boolean streaming()
+                {
+                    return true;
+                }
+
+                @Override
+                public boolean continuous()
+                {
+                    return continuousKey;
+                }
+
+                @Override
+                public String state()
+                {
+                    return continuousKey ? String.valueOf(phase) : "";
+                }
+
+                @Override
+                public void restoreState(String state)
+                {
+                    phase = state.isEmpty() ? 0 : Integer.parseInt(state);
+                }
+
+                @Override
+                public int keyCycle()
+                {
+                    return continuousKey ? table.keyLength() : 0;
+                }
+            };
+        }
+    }
+
+    static final class BaconianCipher implements Cipher
+    {
+        @Override
+        public String name()
+        {
+            return "baconian";
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Baconian Cipher";
+        }
+
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            return new ArrayCipherSession()
+            {
+                // A decryption group can straddle two pieces of a line: its symbols so far and their bits.
+                private int symbols;
+                private int value;
+
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return encrypt ? outputBound(5L * inputLength) : inputLength;
+                }
+
+                @Override
+                int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+                {
+                    if (encrypt)
+                    {
+                        return encryptBaconian(src, offset, length, dst, dstOffset);
+                    }
+                    // Same rules as decryptBaconian(): a space between groups is kept, and a group is
+                    // the next five characters, whatever they are, with 'a' setting bits LSB first.
+                    int out = dstOffset;
+                    for (int i = offset; i < offset + length; i++)
+                    {
+                        char ch = src[i];
+                        if (symbols == 0 && ch == ' ')
+                        {
+                            dst[out++] = ' ';
+                            continue;
+                        }
+                        if (ch == 'a')
+                        {
+                            value |= 1 << symbols;
+                        }
+                        if (++symbols == 5)
+                        {
+                            dst[out++] = (char) value;
+                            symbols = 0;
+                            value = 0;
+                        }
+                    }
+                    return out - dstOffset;
+                }
+
+                @Override
+                public void endLine(CharBuffer sink)
+                {
+                    // An incomplete group at the end of a line is dropped.
+                    symbols = 0;
+                    value = 0;
+                }
+
+                @Override
+                public boolean streaming()
+                {
+                    return true;
+                }
+            };
+        }
+    }
+
+    static final class AffineCipher implements Cipher
+    {
+        @Override
+        public String name()
+        {
+            return "affine";
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Affine Cipher";
+        }
+
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            AffineTable table = new AffineTable(options.a, options.b, options.c, encrypt);
+            return new ArrayCipherSession()
+            {
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return inputLength;
+                }
+
+                @Override
+                int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+                {
+                    table.transform(src, offset, dst, dstOffset, length);
+                    return length;
+                }
+
+                @Override
+                int transform(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+                {
+                    table.transform(src, offset, dst, dstOffset, length);
+                    return length;
+                }
+
+                @Override
+                public boolean streaming()
+                {
+                    return true;
+                }
+            };
+        }
+    }
+
+    static final class MorseCipher implements Cipher
+    {
+        @Override
+        public String name()
+        {
+            return "morse";
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Morse Code";
+        }
+
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            return new ArrayCipherSession()
+            {
+                private char[] upper = new char[0];
+
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    long upperCased = (long) MAX_UPPER_CASE_EXPANSION * inputLength;
+                    return encrypt ? outputBound(MorseCodec.maxEncodedLength(upperCased)) : inputLength;
+                }
+
+                @Override
+                int transform(char[] src, int offset, int length, char[] dst, int dstOffset)
+                {
+                    if (!encrypt)
+                    {
+                        return MorseCodec.decode(src, offset, length, dst, dstOffset);
+                    }
+                    // Fits, since the caller made room for maxOutputLength(length), which is six times more.
+                    int capacity = MAX_UPPER_CASE_EXPANSION * length;
+                    if (upper.length < capacity)
+                    {
+                        upper = new char[capacity];
+                    }
+                    int upperLength = toUpperCase(src, offset, length, upper, 0);
+                    return MorseCodec.encode(upper, 0, upperLength, dst, dstOffset);
+                }
+
+                @Override
+                public boolean asciiBytes()
+                {
+                    return asciiUpperCase();
+                }
+            };
+        }
+    }
+
+    /**
+     * The ciphers on offer, in menu order: the five built‑in ones followed by any found through
+     * ServiceLoader whose name is not already taken.
+     */
+    static final class CipherRegistry
+    {
+        private final List<Cipher> ciphers = new ArrayList<>();
+
+        static CipherRegistry load()
+        {
+            CipherRegistry registry = new CipherRegistry();
+            registry.register(new RailFenceCipher());
+            registry.register(new VigenereCipher());
+            registry.register(new BaconianCipher());
+            registry.register(new AffineCipher());
+            registry.register(new MorseCipher());
+            for (Cipher cipher : ServiceLoader.load(Cipher.class))
+            {
+                registry.register(cipher);
+            }
+            return registry;
+        }
+
+        private void register(Cipher cipher)
+        {
+            if (byName(cipher.name()) == null)
+            {
+                ciphers.add(cipher);
+            }
+        }
+
+        List<Cipher> all()
+        {
+            return Collections.unmodifiableList(ciphers);
+        }
+
+        Cipher byName(String name)
+        {
+            for (Cipher cipher : ciphers)
+            {
+                if (cipher.name().equalsIgnoreCase(name))
+                {
+                    return cipher;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the cipher for a 1‑based menu choice, or null if the choice is not on the menu.
+         */
+        Cipher byMenuChoice(String choice)
+        {
+            try
+            {
+                int index = Integer.parseInt(choice) - 1;
+                return index >= 0 && index < ciphers.size() ? ciphers.get(index) : null;
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * The menu choices as they are listed in the prompt, e.g. "1, 2, 3, 4, 5, or 6", counting the
+         * given number of entries that follow the ciphers.
+         */
+        String menuChoices(int extraChoices)
+        {
+            StringBuilder choices = new StringBuilder();
+            int count = ciphers.size() + extraChoices;
+            for (int i = 1; i <= count; i++)
+            {
+                if (i > 1)
+                {
+                    choices.append(i == count ? ", or " : ", ");
+                }
+                choices.append(i);
+            }
+            return choices.toString();
+        }
+    }
+
+    // ***********************
+    // Cipher Pipelines
+    // ***********************
+
+    /**
+     * Several ciphers applied one after another in a single pass, written as stages joined by '+',
+     * each a cipher name with optional settings after a colon:
+     *
+     * <pre>
+     * vigenere:key=LEMON+affine:a=5,b=8,c=21+railfence:rails=4,offset=1,block=65536
+     * </pre>
+     *
+     * Encryption runs the stages from left to right and decryption runs them from right to left, each
+     * one decrypting, so the same chain undoes itself. Settings are key and continuous-key
+     * (Vigenère), a, b and c (Affine), rails, offset and block (Rail‑Fence); anything else is handed to
+     * the cipher as a named parameter. Every line goes through the whole chain as one unit, the same
+     * as running the ciphers one at a time on each other's output.
+     */
+    static final class CipherChain implements Cipher
+    {
+        record Stage(Cipher cipher, CipherOptions options)
+        {
+        }
+
+        private final List<Stage> stages;
+
+        CipherChain(List<Stage> stages)
+        {
+            if (stages.isEmpty())
+            {
+                throw new IllegalArgumentException("A pipeline needs at least one cipher");
+            }
+            this.stages = List.copyOf(stages);
+        }
+
+        /**
+         * Parses a chain specification, checking every stage's settings the way batch mode does.
+         */
+        static CipherChain parse(String specification, CipherRegistry registry)
+        {
+            List<Stage> stages = new ArrayList<>();
+            for (String part : specification.split("\\+"))
+            {
+                String stage = part.trim();
+                int colon = stage.indexOf(':');
+                String name = colon < 0 ? stage : stage.substring(0, colon).trim();
+                Cipher cipher = registry.byName(name);
+                if (cipher == null)
+                {
+                    throw new IllegalArgumentException("Unknown cipher " + (name.isEmpty() ? "(none)" : name));
+                }
+
+                CipherOptions options = new CipherOptions();
+                Integer rails = null;
+                Integer offset = null;
+                String settings = colon < 0 ? "" : stage.substring(colon + 1);
+                for (String setting : settings.split(","))
+                {
+                    if (setting.isBlank())
+                    {
+                        continue;
+                    }
+                    int equals = setting.indexOf('=');
+                    String key = (equals < 0 ? setting : setting.substring(0, equals)).trim();
+                    String value = equals < 0 ? "" : setting.substring(equals + 1).trim();
+                    switch (key)
+                    {
+                        case "key" -> options.key = value;
+                        case "continuous-key" -> options.continuousKey = value.isEmpty() || Boolean.parseBoolean(value);
+                        case "a" -> options.a = Integer.parseInt(value);
+                        case "b" -> options.b = Integer.parseInt(value);
+                        case "c" -> options.c = Integer.parseInt(value);
+                        case "rails" -> rails = Integer.parseInt(value);
+                        case "offset" -> offset = Integer.parseInt(value);
+                        case "block" -> options.railBlockSize = Integer.parseInt(value);
+                        default -> options.parameters.put(key, value);
+                    }
+                }
+                if (rails != null || offset != null)
+                {
+                    options.fence = new RailFence(rails == null ? 3 : rails, offset == null ? 0 : offset);
+                }
+                if (options.railBlockSize < 0)
+                {
+                    throw new IllegalArgumentException("block must not be negative");
+                }
+                if (cipher.name().equals("vigenere") && options.key.isEmpty())
+                {
+                    throw new IllegalArgumentException("The Vigenère cipher needs key=...");
+                }
+                if (cipher.name().equals("affine") && (options.a * options.c) % 26 != 1)
+                {
+                    throw new IllegalArgumentException("Affine parameters need (a * c) mod 26 = 1");
+                }
+                stages.add(new Stage(cipher, options));
+            }
+            return new CipherChain(stages);
+        }
+
+        List<Stage> stages()
+        {
+            return stages;
+        }
+
+        @Override
+        public String name()
+        {
+            return "pipeline:" + stages.stream().map(stage -> stage.cipher().name()).collect(Collectors.joining("+"));
+        }
+
+        @Override
+        public String displayName()
+        {
+            return "Pipeline: " + stages.stream().map(stage -> stage.cipher().displayName()).collect(Collectors.joining(" → "));
+        }
+
+        /**
+         * Opens one session per stage; the options given here are ignored, since every stage has its own.
+         */
+        @Override
+        public CipherSession open(boolean encrypt, CipherOptions options)
+        {
+            CipherSession[] sessions = new CipherSession[stages.size()];
+            for (int i = 0; i < sessions.length; i++)
+            {
+                Stage stage = stages.get(encrypt ? i : sessions.length - 1 - i);
+                sessions[i] = stage.cipher().open(encrypt, stage.options());
+            }
+            return new ChainSession(sessions);
+        }
+
+        /**
+         * Turns the state() of a session opened for one direction into that of a session opened for
+         * the other, whose stages run in the opposite order.
+         */
+        static String reverseState(String state)
+        {
+            List<String> parts = new ArrayList<>();
+            for (int at = 0; at < state.length(); )
+            {
+                int colon = state.indexOf(':', at);
+                int end = colon + 1 + Integer.parseInt(state.substring(at, colon));
+                parts.add(state.substring(at, end));
+                at = end;
+            }
+            Collections.reverse(parts);
+            return String.join("", parts);
+        }
+    }
+
+    /**
+     * Runs the sessions of a chain over each line. Intermediate text lives in two char arrays that the
+     * stages take turns to read and write, so nothing is written to disk or turned into a String.
+     *
+     * When every stage streams, a line is pushed through the chain a slice of a few thousand
+     * characters at a time: the slice is still in the L1 cache when the next stage reads it, so
+     * character-local stages such as Vigenère and Affine run back to back over cached data rather
+     * than each making its own trip through memory, and a permuting stage in block mode holds at
+     * most one block. A stage that needs whole lines, such as
+     * Morse code or Rail‑Fence without a block size, makes the chain take whole lines, and each
+     * stage then finishes the line before the next one starts.
+     */
+    static final class ChainSession implements CipherSession
+    {
+        private static final int SLICE = 4096;
+
+        private final CipherSession[] stages;
+        private final boolean streaming;
+        private final boolean continuous;
+        private final CharBuffer empty = CharBuffer.allocate(0);
+        private char[] front = new char[0];
+        private char[] back = new char[0];
+
+        ChainSession(CipherSession[] stages)
+        {
+            this.stages = stages;
+            boolean streaming = true;
+            boolean continuous = false;
+            for (CipherSession stage : stages)
+            {
+                streaming &= stage.streaming();
+                continuous |= stage.continuous();
+            }
+            this.streaming = streaming;
+            this.continuous = continuous;
+        }
+
+        @Override
+        public int maxOutputLength(int inputLength)
+        {
+            // Each stage may add what it held back from earlier pieces, which endLine() bounds.
+            long length = inputLength;
+            for (CipherSession stage : stages)
+            {
+                if (length > MAX_ARRAY_LENGTH)
+                {
+                    return Integer.MAX_VALUE;
+                }
+                length = (long) stage.maxOutputLength((int) length) + stage.maxOutputLength(0);
+            }
+            return outputBound(length);
+        }
+
+        @Override
+        public void transform(CharBuffer source, CharBuffer sink)
+        {
+            if (!streaming)
+            {
+                run(source, sink, true);
+                return;
+            }
+            int end = source.limit();
+            while (source.position() < end)
+            {
+                int sliceEnd = Math.min(end, source.position() + SLICE);
+                if (sliceEnd < end && Character.isHighSurrogate(source.get(sliceEnd - 1)))
+                {
+                    sliceEnd++; // keep the pair together
+                }
+                source.limit(sliceEnd);
+                run(source, sink, false);
+                source.limit(end);
+            }
+        }
+
+        @Override
+        public void endLine(CharBuffer sink)
+        {
+            if (!streaming)
+            {
+                return; // transform() already ended the line in every stage
+            }
+            // Whatever a stage releases at the end of the line still has to go through the stages after it.
+            CharBuffer carry = empty;
+            for (int i = 0; i < stages.length; i++)
+            {
+                CipherSession stage = stages[i];
+                if (i == stages.length - 1)
+                {
+                    stage.transform(carry, sink);
+                    stage.endLine(sink);
+                    break;
+                }
+                CharBuffer target = scratch(i, Math.toIntExact((long) stage.maxOutputLength(carry.remaining())
+                        + stage.maxOutputLength(0)));
+                stage.transform(carry, target);
+                stage.endLine(target);
+                carry = target.flip();
+            }
+        }
+
+        /**
+         * Passes the source through every stage into the sink. For whole lines each stage also ends the
+         * line, so that anything it held back reaches the next stage as part of the same line.
+         */
+        private void run(CharBuffer source, CharBuffer sink, boolean wholeLine)
+        {
+            CharBuffer input = source;
+            for (int i = 0; i < stages.length; i++)
+            {
+                CipherSession stage = stages[i];
+                if (i == stages.length - 1)
+                {
+                    stage.transform(input, sink);
+                    if (wholeLine)
+                    {
+                        stage.endLine(sink);
+                    }
+                    return;
+                }
+                long capacity = stage.maxOutputLength(input.remaining());
+                if (wholeLine)
+                {
+                    capacity += stage.maxOutputLength(0);
+                }
+                // Fits, since the caller made room for maxOutputLength() of the whole chain.
+                CharBuffer target = scratch(i, Math.toIntExact(capacity));
+                stage.transform(input, target);
+                if (wholeLine)
+                {
+                    stage.endLine(target);
+                }
+                input = target.flip();
+            }
+        }
+
+        /**
+         * The buffer stage i writes into: even stages use one array and odd stages the other, so a
+         * stage never writes over its own input.
+         */
+        private CharBuffer scratch(int stage, int capacity)
+        {
+            if (stage % 2 == 0)
+            {
+                if (front.length < capacity)
+                {
+                    front = new char[capacity];
+                }
+                return CharBuffer.wrap(front, 0, capacity);
+            }
+            if (back.length < capacity)
+            {
+                back = new char[capacity];
+            }
+            return CharBuffer.wrap(back, 0, capacity);
+        }
+
+        @Override
+        public boolean streaming()
+        {
+            return streaming;
+        }
+
+        @Override
+        public boolean continuous()
+        {
+            return continuous;
+        }
+
+        // Each stage's state prefixed with its length, so any characters may appear in it.
+        @Override
+        public String state()
+        {
+            StringBuilder state = new StringBuilder();
+            for (CipherSession stage : stages)
+            {
+                String part = stage.state();
+                state.append(part.length()).append(':').append(part);
+            }
+            return state.toString();
+        }
+
+        @Override
+        public void restoreState(String state)
+        {
+            int at = 0;
+            for (CipherSession stage : stages)
+            {
+                if (at >= state.length())
+                {
+                    stage.restoreState("");
+                    continue;
+                }
+                int colon = state.indexOf(':', at);
+                int end = colon + 1 + Integer.parseInt(state.substring(at, colon));
+                stage.restoreState(state.substring(colon + 1, end));
+                at = end;
+            }
+        }
+    }
+
+    // ***********************
+    // Cipher Streams
+    // ***********************
+
+    /**
+     * Receives transformed characters; Writer::write fits.
+     */
+    interface CharSink
+    {
+        void write(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Runs a session over text that arrives in pieces of any size, the core of CipherWriter and
+     * CipherOutputStream. Lines end where Scanner.nextLine() ends them (\r\n, \n, \r, U+0085, U+2028,
+     * U+2029) and each is followed by System.lineSeparator(), a last line without a terminator
+     * included, so the output is what processFile() writes for the same text. A streaming session
+     * is given every piece straight away (holding back only a high surrogate whose partner has not
+     * arrived); any other session is given whole lines, so its memory grows with the longest line.
+     */
+    static final class StreamTransformer
+    {
+        private static final int SLICE = 8192;
+
+        private final CipherSession session;
+        private final boolean streaming;
+        private final char[] lineSeparator = System.lineSeparator().toCharArray();
+        private char[] pending = new char[16]; // the unfinished line, or a held high surrogate
+        private int pendingLength;
+        private boolean lineStarted; // characters of the current line have been seen
+        private boolean skipLineFeed; // the previous character was '\r', so a following '\n' belongs to it
+        private char[] output = new char[0];
+
+        StreamTransformer(CipherSession session)
+        {
+            this.session = session;
+            this.streaming = session.streaming();
+        }
+
+        /**
+         * Transforms the next piece of the text into the sink.
+         */
+        void write(char[] src, int offset, int length, CharSink sink) throws IOException
+        {
+            int start = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++)
+            {
+                char ch = src[i];
+                if (skipLineFeed)
+                {
+                    skipLineFeed = false;
+                    if (ch == '\n')
+                    {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029')
+                {
+                    piece(src, start, i - start, sink);
+                    endLine(sink);
+                    skipLineFeed = ch == '\r';
+                    start = i + 1;
+                }
+            }
+            piece(src, start, end - start, sink);
+        }
+
+        /**
+         * Ends the text: a last line without a terminator is transformed now.
+         */
+        void finish(CharSink sink) throws IOException
+        {
+            if (lineStarted)
+            {
+                endLine(sink);
+            }
+        }
+
+        private void piece(char[] src, int offset, int length, CharSink sink) throws IOException
+        {
+            if (length == 0)
+            {
+                return;
+            }
+            lineStarted = true;
+            if (!streaming)
+            {
+                hold(src, offset, length);
+                return;
+            }
+            if (pendingLength > 0)
+            {
+                if (Character.isLowSurrogate(src[offset]))
+                {
+                    hold(src, offset, 1);
+                    offset++;
+                    length--;
+                }
+                apply(pending, 0, pendingLength, sink);
+                pendingLength = 0;
+            }
+            if (length > 0 && Character.isHighSurrogate(src[offset + length - 1]))
+            {
+                length--;
+                hold(src, offset + length, 1);
+            }
+            if (length > 0)
+            {
+                apply(src, offset, length, sink);
+            }
+        }
+
+        private void endLine(CharSink sink) throws IOException
+        {
+            if (pendingLength > 0 || !streaming)
+            {
+                apply(pending, 0, pendingLength, sink);
+                pendingLength = 0;
+            }
+            int capacity = outputCapacity(session.maxOutputLength(0));
+            if (output.length < capacity)
+            {
+                output = new char[capacity];
+            }
+            CharBuffer held = CharBuffer.wrap(output);
+            session.endLine(held);
+            sink.write(output, 0, held.position());
+            sink.write(lineSeparator, 0, lineSeparator.length);
+            lineStarted = false;
+        }
+
+        private void hold(char[] src, int offset, int length)
+        {
+            if (pending.length - pendingLength < length)
+            {
+                pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingLength + length));
+            }
+            System.arraycopy(src, offset, pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        // Streaming sessions get long pieces in slices, so the output buffer stays small.
+        private void apply(char[] src, int offset, int length, CharSink sink) throws IOException
+        {
+            do
+            {
+                int n = length;
+                if (streaming && n > SLICE)
+                {
+                    n = Character.isHighSurrogate(src[offset + SLICE - 1]) ? SLICE - 1 : SLICE;
+                }
+                int capacity = outputCapacity(session.maxOutputLength(n));
+                if (output.length < capacity)
+                {
+                    output = new char[capacity];
+                }
+                CharBuffer result = CharBuffer.wrap(output);
+                session.transform(CharBuffer.wrap(src, offset, n), result);
+                sink.write(output, 0, result.position());
+                offset += n;
+                length -= n;
+            }
+            while (length > 0);
+        }
+    }
+
+    /**
+     * Writer that encrypts or decrypts everything written to it into another Writer. State such as
+     * the Vigenère key position carries across writes of any size. flush() cannot push out the
+     * unfinished line of a cipher that needs whole lines (Rail‑Fence, Morse); close() does.
+     */
+    static final class CipherWriter extends Writer
+    {
+        private final Writer out;
+        private final StreamTransformer transformer;
+        private boolean closed;
+
+        CipherWriter(Writer out, CipherSession session)
+        {
+            this.out = out;
+            this.transformer = new StreamTransformer(session);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException
+        {
+            Objects.checkFromIndexSize(offset, length, buffer.length);
+            if (closed)
+            {
+                throw new IOException("Stream closed");
+            }
+            transformer.write(buffer, offset, length, out::write);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                try
+                {
+                    transformer.finish(out::write);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Byte stream form of CipherWriter: bytes written are decoded with the charset (malformed input
+     * is an error that gives its offset in the stream), transformed and encoded back (unmappable
+     * output is replaced), like the file engine.
+     */
+    static final class CipherOutputStream extends OutputStream
+    {
+        private final CharsetDecoder decoder;
+        private final CipherWriter writer;
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        private final CharBuffer chars = CharBuffer.allocate(8192);
+        private long decoded; // bytes of the stream before those in the buffer
+        private boolean closed;
+
+        CipherOutputStream(OutputStream out, CipherSession session, Charset charset)
+        {
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharsetEncoder encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.writer = new CipherWriter(new OutputStreamWriter(out, encoder), session);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException
+        {
+            Objects.checkFromIndexSize(offset, length, buffer.length);
+            if (closed)
+            {
+                throw new IOException("Stream closed");
+            }
+            while (length > 0)
+            {
+                int n = Math.min(length, bytes.remaining());
+                bytes.put(buffer, offset, n);
+                offset += n;
+                length -= n;
+                decode(false);
+            }
+        }
+
+        private void decode(boolean endOfInput) throws IOException
+        {
+            bytes.flip();
+            CoderResult result;
+            do
+            {
+                result = decoder.decode(bytes, chars, endOfInput);
+                if (result.isError())
+                {
+                    throw MappedFileEngine.invalidInput(result, decoder.charset(), decoded + bytes.position());
+                }
+                drain();
+            }
+            while (result.isOverflow());
+            decoded += bytes.position();
+            bytes.compact();
+        }
+
+        private void drain() throws IOException
+        {
+            chars.flip();
+            writer.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+            chars.clear();
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                try
+                {
+                    decode(true);
+                    decoder.flush(chars);
+                    drain();
+                }
+                finally
+                {
+                    writer.close();
+                }
+            }
+        }
+    }
+
+    // ***********************
+    // Memory‑Mapped File Engine
+    // ***********************
+
+    /**
+     * Receives the lines of a file one at a time. The line is only valid during the call.
+     */
+    interface LineSink
+    {
+        void accept(CharSequence line) throws IOException;
+    }
+
+    /**
+     * Transforms a byte range of a file that starts at the beginning of a line; implemented by every
+     * file engine, so that processFile() and the checkpoints can pick one without caring which.
+     */
+    interface FileEngine
+    {
+        void process(FileChannel in, long from, long to, WritableByteChannel out) throws IOException;
+
+        /**
+         * Processes the whole input file and writes the result to the output file, replacing any
+         * previous content.
+         */
+        default void process(Path input, Path output) throws IOException
+        {
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                process(in, 0, in.size(), out);
+            }
+        }
+    }
+
+    /**
+     * Streams a file through a cipher session using large buffers instead of Scanner/FileWriter.
+     *
+     * The input is mapped in windows of WINDOW_BYTES and decoded into a fixed CharBuffer; the output is
+     * encoded into a fixed direct ByteBuffer and written with a single FileChannel call per buffer.
+     * Lines are split exactly like Scanner.nextLine() splits them (\r\n, \n, \r, \u2028, \u2029, \u0085),
+     * and every processed line is followed by System.lineSeparator(), so the output is byte‑identical
+     * to the old line loop. Lines are handed to the session as views of the decode buffer, so no
+     * String is created per line; only a line longer than the decode buffer is collected on the heap.
+     *
+     * When the charset leaves US‑ASCII unchanged (UTF‑8, ISO‑8859‑1, US‑ASCII and most others) and
+     * the session's byte forms are exact for ASCII (CipherSession.asciiBytes()), lines made only of
+     * ASCII bytes skip the decoder and the encoder altogether: they go from the mapped window to the
+     * session's byte form and into the output buffer. A line with any other byte, or one too long for
+     * the output buffer, takes the char path, and the next line is tried as bytes again.
+     */
+    static final class MappedFileEngine implements FileEngine
+    {
+        static final int WINDOW_BYTES = 64 << 20;
+        static final int CHAR_BUFFER_SIZE = 1 << 16;
+        static final int BYTE_BUFFER_SIZE = 1 << 20;
+
+        private final CipherSession session;
+        private final CharsetDecoder decoder;
+        private final CharsetEncoder encoder;
+        private final String lineSeparator = System.lineSeparator();
+        private final byte[] asciiLineSeparator = lineSeparator.getBytes(StandardCharsets.US_ASCII);
+        private final boolean asciiCharset; // US‑ASCII text is the same bytes in this charset
+
+        private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);   // decoded input
+        private final CharBuffer pending = CharBuffer.allocate(CHAR_BUFFER_SIZE); // output waiting to be encoded
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        private char[] carry = new char[CHAR_BUFFER_SIZE]; // a line that spans two decode buffers
+        private int carryLength;
+        private CharBuffer lineOutput = CharBuffer.allocate(0); // output of a line too long for pending
+        private boolean skipLineFeed; // the previous character was '\r', so a following '\n' belongs to it
+        private boolean lineOpen; // part of the current line has already been given to a streaming session
+        private long windowStart; // input offset of the window being decoded, for error messages
+        private WritableByteChannel out;
+        private LineSink sink; // set while readLines() hands lines to a caller instead of writing them
+
+        // Counted locally and handed to the shared statistics once per decode buffer.
+        private final ProcessingStats stats;
+        private long lineCount;
+        private long bytesWritten;
+        private long writeNanos;
+
+        MappedFileEngine(CipherSession session)
+        {
+            this(session, Charset.defaultCharset());
+        }
+
+        MappedFileEngine(CipherSession session, Charset charset)
+        {
+            this(session, charset, null);
+        }
+
+        MappedFileEngine(CipherSession session, Charset charset, ProcessingStats stats)
+        {
+            this.session = session;
+            this.stats = stats;
+            // Malformed input is reported rather than silently ending the file early like Scanner did.
+            this.decoder = charset.newDecoder();
+            // FileWriter replaces unmappable output (e.g. a surrogate split by Rail‑Fence) with '?'.
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.asciiCharset = asciiTransparent(charset);
+        }
+
+        /**
+         * Whether every US‑ASCII character is encoded as its own single byte in the charset, and
+         * those bytes decode back to it. Only stateless charsets qualify: UTF‑8 and single‑byte ones.
+         */
+        static boolean asciiTransparent(Charset charset)
+        {
+            if (!charset.canEncode()
+                    || !charset.equals(StandardCharsets.UTF_8) && charset.newEncoder().maxBytesPerChar() != 1)
+            {
+                return false;
+            }
+            byte[] ascii = new byte[128];
+            for (int i = 0; i < ascii.length; i++)
+            {
+                ascii[i] = (byte) i;
+            }
+            String text = new String(ascii, StandardCharsets.US_ASCII);
+            return Arrays.equals(text.getBytes(charset), ascii) && new String(ascii, charset).equals(text);
+        }
+
+        /**
+         * Splits the input into lines the same way process() does and hands each one to the sink
+         * instead of transforming and writing it.
+         */
+        void readLines(Path input, LineSink sink) throws IOException
+        {
+            readLines(input, Long.MAX_VALUE, sink);
+        }
+
+        /**
+         * Like readLines(), but stops at the last line feed within the first maxBytes of the input
+         * when the charset allows cutting there; otherwise the whole input is read.
+         */
+        void readLines(Path input, long maxBytes, LineSink sink) throws IOException
+        {
+            this.sink = sink;
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ))
+            {
+                long to = in.size();
+                if (to > maxBytes && ParallelFileEngine.supports(decoder.charset()))
+                {
+                    to = ParallelFileEngine.lastLineEnd(in, 0, maxBytes, to);
+                }
+                process(in, 0, to, null);
+            }
+            finally
+            {
+                this.sink = null;
+            }
+        }
+
+        /**
+         * Processes the bytes [from, to) of the input, which must start at the beginning of a line,
+         * and writes the transformed lines to out. The engine can be reused for another range afterwards.
+         */
+        @Override
+        public void process(FileChannel in, long from, long to, WritableByteChannel out) throws IOException
+        {
+            this.out = out;
+            try
+            {
+                long position = from;
+                boolean last;
+                do
+                {
+                    long length = Math.min(WINDOW_BYTES, to - position);
+                    last = position + length == to;
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    windowStart = position;
+                    decode(window, last);
+                    // Bytes of a character cut by the window end are left in the window and mapped again.
+                    position += window.position();
+                }
+                while (!last);
+                endOfInput();
+            }
+            finally
+            {
+                reset();
+            }
+        }
+
+        /**
+         * Processes a buffer that holds whole lines, the first starting at its beginning, and writes
+         * the transformed lines to out. The engine can be reused afterwards.
+         */
+        void process(ByteBuffer input, WritableByteChannel out) throws IOException
+        {
+            this.out = out;
+            try
+            {
+                windowStart = -input.position();
+                decode(input, true);
+                endOfInput();
+            }
+            finally
+            {
+                reset();
+            }
+        }
+
+        private void endOfInput() throws IOException
+        {
+            long started = clock();
+            while (decoder.flush(chars).isOverflow())
+            {
+                splitLines();
+            }
+            splitLines();
+
+            // Like Scanner, a last line without a terminator is still a line, but an empty tail is not.
+            if (carryLength > 0 || lineOpen)
+            {
+                emitLine(chars.array(), 0, 0);
+            }
+            finish();
+            report(0, 0, clock() - started);
+        }
+
+        private void reset()
+        {
+            this.out = null;
+            chars.clear();
+            pending.clear();
+            bytes.clear();
+            carryLength = 0;
+            skipLineFeed = false;
+            lineOpen = false;
+            decoder.reset();
+            encoder.reset();
+            lineCount = 0;
+            bytesWritten = 0;
+            writeNanos = 0;
+        }
+
+        private void decode(ByteBuffer window, boolean endOfInput) throws IOException
+        {
+            if (asciiCharset && sink == null && session.asciiBytes())
+            {
+                int limit = window.limit();
+                while (window.hasRemaining())
+                {
+                    if (carryLength == 0 && !lineOpen)
+                    {
+                        transformAsciiLines(window);
+                    }
+                    // The line the byte path stopped at is decoded up to its line feed, after which
+                    // the byte path takes over again.
+                    int lineFeed = indexOf(window, (byte) '\n');
+                    if (lineFeed < 0)
+                    {
+                        break;
+                    }
+                    window.limit(lineFeed + 1);
+                    decodeChars(window, false);
+                    window.limit(limit);
+                }
+            }
+            decodeChars(window, endOfInput);
+        }
+
+        /**
+         * The error for bytes the charset cannot decode, with their offset in the input; the
+         * CharacterCodingException of the decoder only gives their length.
+         */
+        static IOException invalidInput(CoderResult result, Charset charset, long offset)
+        {
+            return new IOException(String.format(Locale.ROOT, "%s at byte %,d (%d byte%s)",
+                    result.isMalformed() ? "Input is not valid " + charset.name()
+                            : "Input has a character with no mapping in " + charset.name(),
+                    offset, result.length(), result.length() == 1 ? "" : "s"));
+        }
+
+        private static int indexOf(ByteBuffer buffer, byte value)
+        {
+            for (int i = buffer.position(); i < buffer.limit(); i++)
+            {
+                if (buffer.get(i) == value)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Transforms the complete lines of ASCII bytes at the start of the window without decoding
+        // them, and stops at the first line that holds another byte, is too long or is unfinished.
+        private void transformAsciiLines(ByteBuffer window) throws IOException
+        {
+            long started = clock();
+            int consumed = window.position();
+            int limit = window.limit();
+            int start = window.position();
+            if (skipLineFeed && start < limit)
+            {
+                // Second half of a "\r\n" terminator cut by the previous window or line.
+                start += window.get(start) == '\n' ? 1 : 0;
+                skipLineFeed = false;
+            }
+            // Every line must fit the output buffer together with anything endLine() adds.
+            long fixed = (long) session.maxOutputLength(0) + asciiLineSeparator.length;
+            for (int i = start; i < limit; i++)
+            {
+                byte b = window.get(i);
+                if (b < 0)
+                {
+                    break;
+                }
+                if (b != '\n' && b != '\r')
+                {
+                    continue;
+                }
+                int length = i - start;
+                long needed = session.maxOutputLength(length) + fixed;
+                if (needed > BYTE_BUFFER_SIZE)
+                {
+                    break;
+                }
+                if (pending.position() > 0)
+                {
+                    encodePending(false);
+                }
+                if (bytes.remaining() < needed)
+                {
+                    long draining = clock();
+                    drain();
+                    writeNanos += clock() - draining;
+                }
+                session.transform(window.slice(start, length), bytes);
+                session.endLine(bytes);
+                bytes.put(asciiLineSeparator);
+                lineCount++;
+                if (b == '\r')
+                {
+                    if (i + 1 == limit)
+                    {
+                        skipLineFeed = true;
+                    }
+                    else if (window.get(i + 1) == '\n')
+                    {
+                        i++;
+                    }
+                }
+                start = i + 1;
+            }
+            window.position(start);
+            report(start - consumed, 0, clock() - started);
+        }
+
+        private void decodeChars(ByteBuffer window, boolean endOfInput) throws IOException
+        {
+            while (true)
+            {
+                int consumed = window.position();
+                long started = clock();
+                CoderResult result = decoder.decode(window, chars, endOfInput);
+                long decoded = clock();
+                if (result.isError())
+                {
+                    throw invalidInput(result, decoder.charset(), windowStart + window.position());
+                }
+                splitLines();
+                report(window.position() - consumed, decoded - started, clock() - decoded);
+                if (result.isUnderflow())
+                {
+                    return;
+                }
+            }
+        }
+
+        // Timing costs a clock read per buffer, and only when statistics are being gathered.
+        private long clock()
+        {
+            return stats == null ? 0 : System.nanoTime();
+        }
+
+        // Hands the counts since the last report to the statistics; the split time includes writing.
+        private void report(long bytesRead, long readNanos, long splitNanos)
+        {
+            if (stats != null)
+            {
+                stats.record(bytesRead, bytesWritten, lineCount, readNanos, splitNanos - writeNanos, writeNanos);
+            }
+            lineCount = 0;
+            bytesWritten = 0;
+            writeNanos = 0;
+        }
+
+        // Emits every complete line in the decode buffer and keeps the unfinished tail in carry.
+        private void splitLines() throws IOException
+        {
+            chars.flip();
+            char[] array = chars.array();
+            int limit = chars.limit();
+            int start = 0;
+            for (int i = 0; i < limit; i++)
+            {
+                char ch = array[i];
+                if (ch == '\n' && skipLineFeed)
+                {
+                    // Second half of a "\r\n" terminator.
+                    skipLineFeed = false;
+                    start = i + 1;
+                    continue;
+                }
+                skipLineFeed = false;
+                if (ch == '\n' || ch == '\r' || ch == '\u2028' || ch == '\u2029' || ch == '\u0085')
+                {
+                    emitLine(array, start, i);
+                    start = i + 1;
+                    skipLineFeed = ch == '\r';
+                }
+            }
+            appendCarry(array, start, limit - start);
+            chars.clear();
+
+            // A streaming session takes a long line in pieces, so memory does not grow with the line.
+            if (carryLength >= CHAR_BUFFER_SIZE && sink == null && session.streaming())
+            {
+                int length = Character.isHighSurrogate(carry[carryLength - 1]) ? carryLength - 1 : carryLength;
+                transform(CharBuffer.wrap(carry, 0, length), false);
+                System.arraycopy(carry, length, carry, 0, carryLength - length);
+                carryLength -= length;
+                lineOpen = true;
+            }
+        }
+
+        private void appendCarry(char[] array, int start, int length)
+        {
+            if (carryLength + length > carry.length)
+            {
+                carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+            }
+            System.arraycopy(array, start, carry, carryLength, length);
+            carryLength += length;
+        }
+
+        private void emitLine(char[] array, int start, int end) throws IOException
+        {
+            CharBuffer line;
+            if (carryLength == 0)
+            {
+                line = CharBuffer.wrap(array, start, end - start);
+            }
+            else
+            {
+                appendCarry(array, start, end - start);
+                line = CharBuffer.wrap(carry, 0, carryLength);
+                carryLength = 0;
+            }
+
+            lineCount++;
+            lineOpen = false;
+            if (sink != null)
+            {
+                sink.accept(line);
+            }
+            else
+            {
+                transform(line, true);
+            }
+
+            // Do not hold on to the backing array of an unusually long line.
+            if (carry.length > CHAR_BUFFER_SIZE)
+            {
+                carry = new char[CHAR_BUFFER_SIZE];
+            }
+        }
+
+        // Transforms a line, or a piece of one for a streaming session, and ends the line if asked.
+        private void transform(CharBuffer piece, boolean endOfLine) throws IOException
+        {
+            long needed = session.maxOutputLength(piece.remaining());
+            if (endOfLine)
+            {
+                needed += session.maxOutputLength(0) + lineSeparator.length();
+            }
+            int capacity = outputCapacity(needed);
+            if (pending.remaining() < capacity)
+            {
+                encodePending(false);
+            }
+            CharBuffer target = pending;
+            if (pending.remaining() < capacity)
+            {
+                // The output does not fit the pending buffer, so it is written through in pieces.
+                if (lineOutput.capacity() < capacity)
+                {
+                    lineOutput = CharBuffer.allocate(capacity);
+                }
+                lineOutput.clear();
+                target = lineOutput;
+            }
+
+            session.transform(piece, target);
+            if (endOfLine)
+            {
+                session.endLine(target);
+                target.put(lineSeparator);
+            }
+
+            if (target == lineOutput)
+            {
+                lineOutput.flip();
+                write(lineOutput);
+                if (lineOutput.capacity() > BYTE_BUFFER_SIZE)
+                {
+                    lineOutput = CharBuffer.allocate(0);
+                }
+            }
+        }
+
+        private void write(CharBuffer text) throws IOException
+        {
+            while (text.hasRemaining())
+            {
+                int count = Math.min(pending.remaining(), text.remaining());
+                pending.put(pending.position(), text, text.position(), count);
+                pending.position(pending.position() + count);
+                text.position(text.position() + count);
+                if (!pending.hasRemaining())
+                {
+                    encodePending(false);
+                }
+            }
+        }
+
+        private void encodePending(boolean endOfInput) throws IOException
+        {
+            long started = clock();
+            pending.flip();
+            while (encoder.encode(pending, bytes, endOfInput).isOverflow())
+            {
+                drain();
+            }
+            // A high surrogate at the very end stays in the buffer until its low half arrives.
+            pending.compact();
+            writeNanos += clock() - started;
+        }
+
+        private void finish() throws IOException
+        {
+            encodePending(true);
+            long started = clock();
+            while (encoder.flush(bytes).isOverflow())
+            {
+                drain();
+            }
+            drain();
+            writeNanos += clock() - started;
+        }
+
+        private void drain() throws IOException
+        {
+            bytes.flip();
+            bytesWritten += bytes.remaining();
+            while (bytes.hasRemaining())
+            {
+                out.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+
+    // ***********************
+    // Parallel File Engine
+    // ***********************
+
+    /**
+     * Transforms one large file on a ForkJoinPool by splitting it into chunks that end on a '\n' byte.
+     *
+     * Every chunk starts at the beginning of a line and all five ciphers work one line at a time, so the
+     * chunks are independent: Affine, Baconian, Morse and Rail‑Fence have no state between lines, and
+     * Vigenère restarts its key on every line, which puts the key offset of every chunk at 0. A
+     * continuous Vigenère key (see CipherSession.keyCycle()) instead starts each chunk at the key
+     * position reached by the chunks before it, which the calling thread counts from their lengths as
+     * it cuts them, far faster than the workers transform; the session given to the engine supplies
+     * the first position and is left at the last, so checkpoints record it as usual.
+     * Chunk results are written back in input order, so the output matches MappedFileEngine byte for
+     * byte. At most two chunks per worker are held in memory at any time.
+     */
+    static final class ParallelFileEngine implements FileEngine
+    {
+        static final int CHUNK_BYTES = 1 << 20;
+        static final long PARALLEL_THRESHOLD = 16L << 20;
+        static final long MAX_BUFFERED_CHUNK = 64L << 20;
+
+        private final ForkJoinPool pool;
+        private final ThreadLocal<Worker> workers;
+        private final ProcessingStats stats;
+        private final Charset charset;
+        private final CipherSession session;
+        private final int keyCycle;
+
+        // A worker's own session and the engine running it.
+        private record Worker(CipherSession session, MappedFileEngine engine) {}
+
+        ParallelFileEngine(Supplier<CipherSession> sessions, Charset charset, ForkJoinPool pool)
+        {
+            this(sessions.get(), sessions, charset, pool, null);
+        }
+
+        /**
+         * The session carries the key position of a continuous Vigenère key into and out of process();
+         * the workers' sessions come from sessions.
+         */
+        ParallelFileEngine(CipherSession session, Supplier<CipherSession> sessions, Charset charset, ForkJoinPool pool,
+                ProcessingStats stats)
+        {
+            this.pool = pool;
+            this.stats = stats;
+            this.charset = charset;
+            this.session = session;
+            this.keyCycle = session.keyCycle();
+            // Sessions keep scratch state, so every worker gets its own; the statistics are shared.
+            this.workers = ThreadLocal.withInitial(() ->
+            {
+                CipherSession own = sessions.get();
+                return new Worker(own, new MappedFileEngine(own, charset, stats));
+            });
+        }
+
+        /**
+         * Whether the engine can take the session: any that treats lines on their own, and a
+         * continuous one whose state is a key position it can count.
+         */
+        static boolean supports(CipherSession session)
+        {
+            return !session.continuous() || session.keyCycle() > 0;
+        }
+
+        /**
+         * Chunking on '\n' bytes is only safe when that byte is a line feed and never part of a longer character.
+         */
+        static boolean supports(Charset charset)
+        {
+            boolean asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1;
+            return asciiCompatible && Arrays.equals("\n".getBytes(charset), new byte[] { '\n' });
+        }
+
+        /**
+         * Processes the bytes [from, to) of the input, which must start at the beginning of a line,
+         * and writes the result to out; every chunk has been written when this returns.
+         */
+        @Override
+        public void process(FileChannel in, long from, long to, WritableByteChannel out) throws IOException
+        {
+            int maxInFlight = 2 * pool.getParallelism();
+            ArrayDeque<ForkJoinTask<ChunkOutput>> inFlight = new ArrayDeque<>();
+            long position = keyCycle > 0 ? Long.parseLong(session.state()) : 0;
+            long start = from;
+            while (start < to)
+            {
+                final long chunkFrom = start;
+                final long chunkTo = chunkEnd(in, start, to);
+                final String state = keyCycle > 0 ? String.valueOf(position) : "";
+                if (keyCycle > 0)
+                {
+                    position = (position + upperCaseLength(in, chunkFrom, chunkTo, charset)) % keyCycle;
+                }
+                if (chunkTo - chunkFrom > MAX_BUFFERED_CHUNK)
+                {
+                    // An enormous line would not fit a chunk buffer; it is streamed straight to the file.
+                    while (!inFlight.isEmpty())
+                    {
+                        write(await(inFlight.poll()), out);
+                    }
+                    Worker worker = workers.get();
+                    worker.session().restoreState(state);
+                    worker.engine().process(in, chunkFrom, chunkTo, out);
+                    start = chunkTo;
+                    continue;
+                }
+                inFlight.add(pool.submit(() ->
+                {
+                    Worker worker = workers.get();
+                    worker.session().restoreState(state);
+                    ChunkOutput chunk = new ChunkOutput((int) Math.min(chunkTo - chunkFrom, CHUNK_BYTES));
+                    worker.engine().process(in, chunkFrom, chunkTo, chunk);
+                    return chunk;
+                }));
+                if (inFlight.size() >= maxInFlight)
+                {
+                    write(await(inFlight.poll()), out);
+                }
+                start = chunkTo;
+            }
+            while (!inFlight.isEmpty())
+            {
+                write(await(inFlight.poll()), out);
+            }
+            if (keyCycle > 0)
+            {
+                session.restoreState(String.valueOf(position));
+            }
+        }
+
+        /**
+         * The number of characters the lines in [from, to) have once upper‑cased, terminators left
+         * out: how far they move a continuous Vigenère key. Pure ASCII is counted from the bytes;
+         * anything else is decoded, with malformed input replaced, since the workers report it anyway.
+         */
+        static long upperCaseLength(FileChannel in, long from, long to, Charset charset) throws IOException
+        {
+            boolean ascii = asciiUpperCase();
+            CharsetDecoder decoder = null;
+            CharBuffer chars = null;
+            long count = 0;
+            long position = from;
+            while (position < to)
+            {
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(CHUNK_BYTES, to - position));
+                if (decoder == null)
+                {
+                    long length = ascii ? asciiLength(window) : -1;
+                    if (length >= 0)
+                    {
+                        count += length;
+                        position += window.limit();
+                        continue;
+                    }
+                    // Every window so far was ASCII, so this one starts on a character.
+                    decoder = charset.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                    chars = CharBuffer.allocate(CHUNK_BYTES);
+                }
+                // A character cut off at the end of the window is decoded with the next one.
+                decoder.decode(window, chars, position + window.limit() >= to);
+                chars.flip();
+                count += upperCaseLength(chars, ascii);
+                chars.clear();
+                position += window.position();
+            }
+            return count;
+        }
+
+        // Characters other than '\n' and '\r' in a window of ASCII bytes, or -1 if it holds any other byte.
+        private static long asciiLength(MappedByteBuffer window)
+        {
+            long count = 0;
+            for (int i = 0; i < window.limit(); i++)
+            {
+                byte b = window.get(i);
+                if (b < 0)
+                {
+                    return -1;
+                }
+                if (b != '\n' && b != '\r')
+                {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static long upperCaseLength(CharBuffer chars, boolean ascii)
+        {
+            long count = 0;
+            int start = 0;
+            boolean plain = ascii;
+            for (int i = 0; i <= chars.limit(); i++)
+            {
+                char ch = i < chars.limit() ? chars.get(i) : '\n';
+                if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029')
+                {
+                    count += plain ? i - start : chars.subSequence(start, i).toString().toUpperCase().length();
+                    start = i + 1;
+                    plain = ascii;
+                }
+                else if (ch >= 128)
+                {
+                    plain = false;
+                }
+            }
+            return count;
+        }
+
+        // Returns the position just after the last line feed before start + CHUNK_BYTES, or after the
+        // first one beyond it when a single line is longer than a chunk.
+        private static long chunkEnd(FileChannel in, long start, long size) throws IOException
+        {
+            return lastLineEnd(in, start, Math.min(size, start + CHUNK_BYTES), size);
+        }
+
+        /**
+         * Returns the position just after the last line feed in [start, target), or after the first
+         * one at or beyond target when there is none, or size when the input has no more line feeds.
+         */
+        static long lastLineEnd(FileChannel in, long start, long target, long size) throws IOException
+        {
+            if (target >= size)
+            {
+                return size;
+            }
+            long from = Math.max(start, target - CHUNK_BYTES);
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, from, target - from);
+            for (int i = window.limit() - 1; i >= 0; i--)
+            {
+                if (window.get(i) == '\n')
+                {
+                    return from + i + 1;
+                }
+            }
+            long position = target;
+            while (position < size)
+            {
+                int length = (int) Math.min(CHUNK_BYTES, size - position);
+                window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++)
+                {
+                    if (window.get(i) == '\n')
+                    {
+                        return position + i + 1;
+                    }
+                }
+                position += length;
+            }
+            return size;
+        }
+
+        // The workers encode into memory; copying their output to the file is timed here.
+        private void write(ChunkOutput chunk, WritableByteChannel out) throws IOException
+        {
+            long started = System.nanoTime();
+            chunk.writeTo(out);
+            if (stats != null)
+            {
+                stats.record(0, 0, 0, 0, 0, System.nanoTime() - started);
+            }
+        }
+
+        private static ChunkOutput await(ForkJoinTask<ChunkOutput> task) throws IOException
+        {
+            try
+            {
+                return task.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while processing the file");
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Growable in‑memory channel holding the encoded output of one chunk until it is its turn to be written.
+     */
+    static final class ChunkOutput implements WritableByteChannel
+    {
+        private byte[] data;
+        private int size;
+
+        ChunkOutput(int initialCapacity)
+        {
+            data = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        @Override
+        public int write(ByteBuffer source)
+        {
+            int count = source.remaining();
+            if (size + count > data.length)
+            {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + count));
+            }
+            source.get(data, size, count);
+            size += count;
+            return count;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        void writeTo(WritableByteChannel target) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+            while (buffer.hasRemaining())
+            {
+                target.write(buffer);
+            }
+        }
+
+        /**
+         * Empties the channel for reuse, keeping the array it has grown to.
+         */
+        void clear()
+        {
+            size = 0;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Runs the cipher over the whole input file, on all cores when the file is large enough to benefit
+     * and the cipher treats every line on its own or carries only a key position between them.
+     */
+    static void processFile(Path input, Path output, Supplier<CipherSession> sessions) throws IOException
+    {
+        processFile(input, output, sessions, null);
+    }
+
+    /**
+     * Like processFile(), recording throughput and timings in stats when it is not null.
+     */
+    static void processFile(Path input, Path output, Supplier<CipherSession> sessions, ProcessingStats stats)
+            throws IOException
+    {
+        processFile(input, output, sessions, stats, null);
+    }
+
+    /**
+     * Like processFile(), taking checkpoints as the policy says when it is not null. Checkpoints need
+     * a charset in which a line feed is a single byte; with any other charset the file is processed
+     * in one go.
+     */
+    static void processFile(Path input, Path output, Supplier<CipherSession> sessions, ProcessingStats stats,
+            CheckpointPolicy checkpoints) throws IOException
+    {
+        processFile(input, output, sessions, stats, checkpoints, null);
+    }
+
+    /**
+     * Like processFile(), running the three-stage PipelinedFileEngine with the given settings when
+     * they are not null. The pipeline cuts the input at line feeds, so like the checkpoints it needs
+     * a charset in which a line feed is a single byte; with any other charset the usual engine runs.
+     * Compressed input, and output named for a compressed format, always take the pipeline (see
+     * processCompressed()).
+     */
+    static void processFile(Path input, Path output, Supplier<CipherSession> sessions, ProcessingStats stats,
+            CheckpointPolicy checkpoints, PipelinedFileEngine.Settings pipeline) throws IOException
+    {
+        Charset charset = Charset.defaultCharset();
+        CipherSession session = sessions.get();
+        Compression inputFormat = Compression.detect(input);
+        Compression outputFormat = Compression.forOutput(output);
+        if (inputFormat != Compression.NONE || outputFormat != Compression.NONE)
+        {
+            processCompressed(input, inputFormat, output, outputFormat, session, sessions, charset, stats, pipeline);
+            return;
+        }
+        boolean lineFeeds = ParallelFileEngine.supports(charset);
+        FileEngine engine;
+        if (pipeline != null && lineFeeds)
+        {
+            engine = new PipelinedFileEngine(session, sessions, charset, pipeline, stats);
+        }
+        else if (Files.size(input) >= ParallelFileEngine.PARALLEL_THRESHOLD && lineFeeds
+                && ForkJoinPool.commonPool().getParallelism() > 1 && ParallelFileEngine.supports(session))
+        {
+            engine = new ParallelFileEngine(session, sessions, charset, ForkJoinPool.commonPool(), stats);
+        }
+        else
+        {
+            engine = new MappedFileEngine(session, charset, stats);
+        }
+
+        if (checkpoints != null && checkpoints.intervalBytes() > 0 && lineFeeds)
+        {
+            processWithCheckpoints(input, output, engine, session, stats, checkpoints);
+        }
+        else
+        {
+            engine.process(input, output);
+        }
+    }
+
+    // ***********************
+    // Pipelined File Engine
+    // ***********************
+
+    /**
+     * Transforms a file in three stages that overlap, so the disk and the cipher are busy at the same
+     * time: a reader thread fills pooled buffers with whole lines, transformer threads run the cipher
+     * over them into pooled output buffers, and the calling thread writes the results to the file in
+     * input order and returns the buffers to the pool.
+     *
+     * The stages are connected by queues of queueDepth buffers. A full queue or an empty pool stops
+     * the stage in front of it, so at most 2 * queueDepth + transformers + 1 buffers exist however the
+     * stages compare in speed, and nothing is allocated once they have all been created. Buffers end
+     * on a '\n' byte and are independent like the chunks of ParallelFileEngine; a session that carries
+     * state from line to line (a continuous Vigenère key) gets a single transformer, so it still sees
+     * the lines in order. A line longer than MAX_BUFFERED_LINE is not buffered: the pipeline drains
+     * and the writer streams the line straight to the file.
+     */
+    static final class PipelinedFileEngine implements FileEngine
+    {
+        static final int DEFAULT_QUEUE_DEPTH = 4;
+        static final int DEFAULT_BUFFER_KB = 1024;
+        static final long MAX_BUFFERED_LINE = ParallelFileEngine.MAX_BUFFERED_CHUNK;
+
+        /**
+         * Buffers per queue, bytes per input buffer and the number of transformer threads.
+         */
+        record Settings(int queueDepth, int bufferBytes, int transformers)
+        {
+            static Settings of(int queueDepth, int bufferKb)
+            {
+                if (queueDepth < 1 || bufferKb < 1 || bufferKb > (1 << 20))
+                {
+                    throw new IllegalArgumentException("queue depth must be at least 1 and the buffer 1 KB to 1 GB");
+                }
+                return new Settings(queueDepth, bufferKb << 10, ForkJoinPool.commonPool().getParallelism());
+            }
+        }
+
+        // Input lines and their output; the unit handed from stage to stage and back to the pool.
+        private static final class Block
+        {
+            ByteBuffer input;
+            ChunkOutput output;
+            long sequence;
+            long streamFrom = -1; // a line too long to buffer, streamed by the writer from the file
+            long streamTo;
+
+            Block(int capacity)
+            {
+                input = ByteBuffer.allocate(capacity);
+                output = new ChunkOutput(capacity);
+            }
+        }
+
+        private static final Block END = new Block(0);    // the stage in front has no more blocks
+        private static final Block FAILED = new Block(0); // a stage failed; the cause is in failure
+
+        private final Settings settings;
+        private final MappedFileEngine[] engines; // one per transformer
+        private final ProcessingStats stats;
+        private final ArrayBlockingQueue<Block> pool;
+        private final int poolSize;
+        private int allocated; // blocks created so far; only the reader creates them
+
+        PipelinedFileEngine(CipherSession session, Supplier<CipherSession> sessions, Charset charset, Settings settings,
+                ProcessingStats stats)
+        {
+            this.settings = settings;
+            this.stats = stats;
+            int transformers = session.continuous() ? 1 : Math.max(1, settings.transformers());
+            this.engines = new MappedFileEngine[transformers];
+            engines[0] = new MappedFileEngine(session, charset, stats);
+            for (int i = 1; i < transformers; i++)
+            {
+                engines[i] = new MappedFileEngine(sessions.get(), charset, stats);
+            }
+            this.poolSize = 2 * settings.queueDepth() + transformers + 1;
+            this.pool = new ArrayBlockingQueue<>(poolSize);
+        }
+
+        /**
+         * Processes the bytes [from, to) of the input, which must start at the beginning of a line,
+         * and writes the result to out; every block has been written and every thread has ended when
+         * this returns.
+         */
+        @Override
+        public void process(FileChannel in, long from, long to, WritableByteChannel out) throws IOException
+        {
+            run(in, out, (filled, streamed) -> read(in, from, to, filled, streamed));
+        }
+
+        /**
+         * Processes input that can only be read in order, such as a file being decompressed. The
+         * reader moves the bytes after the last line feed of a block to the front of the next one, and
+         * a line longer than the buffer gets a larger one, up to MAX_BUFFERED_LINE.
+         */
+        void process(ReadableByteChannel in, WritableByteChannel out) throws IOException
+        {
+            run(null, out, (filled, streamed) -> read(in, filled));
+        }
+
+        private interface Source
+        {
+            void read(BlockingQueue<Block> filled, Semaphore streamed) throws IOException, InterruptedException;
+        }
+
+        private void run(FileChannel in, WritableByteChannel out, Source source) throws IOException
+        {
+            ArrayBlockingQueue<Block> filled = new ArrayBlockingQueue<>(settings.queueDepth());
+            ArrayBlockingQueue<Block> transformed = new ArrayBlockingQueue<>(settings.queueDepth());
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Semaphore streamed = new Semaphore(0); // the writer has streamed a long line, so reading goes on
+            List<Thread> stages = new ArrayList<>();
+            stages.add(stage("cipher-reader", failure, transformed, () -> source.read(filled, streamed)));
+            for (int i = 0; i < engines.length; i++)
+            {
+                MappedFileEngine engine = engines[i];
+                stages.add(stage("cipher-transformer-" + (i + 1), failure, transformed,
+                        () -> transform(engine, filled, transformed)));
+            }
+
+            boolean completed = false;
+            try
+            {
+                stages.forEach(Thread::start);
+                write(in, out, transformed, failure, streamed);
+                completed = true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while processing the file");
+            }
+            finally
+            {
+                if (!completed)
+                {
+                    // The blocks the other stages hold are dropped, so the pool starts afresh.
+                    stages.forEach(Thread::interrupt);
+                }
+                joinAll(stages);
+                if (!completed)
+                {
+                    pool.clear();
+                    allocated = 0;
+                }
+            }
+        }
+
+        private interface Stage
+        {
+            void run() throws IOException, InterruptedException;
+        }
+
+        // A failed stage records the cause and wakes the writer; an interrupted one was cancelled by it.
+        private static Thread stage(String name, AtomicReference<Throwable> failure, BlockingQueue<Block> transformed,
+                Stage stage)
+        {
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    stage.run();
+                }
+                catch (InterruptedException e)
+                {
+                    // The writer gave up and is waiting for this thread to end.
+                }
+                catch (Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                    try
+                    {
+                        transformed.put(FAILED);
+                    }
+                    catch (InterruptedException cancelled)
+                    {
+                        // As above.
+                    }
+                }
+            }, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        // Reader: cuts the range into blocks that end on a line feed and queues them in order.
+        private void read(FileChannel in, long from, long to, BlockingQueue<Block> filled, Semaphore streamed)
+                throws IOException, InterruptedException
+        {
+            long position = from;
+            long sequence = 0;
+            while (position < to)
+            {
+                Block block = takeBlock();
+                block.sequence = sequence++;
+                long started = clock();
+                ByteBuffer buffer = block.input;
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+                readFully(in, buffer, position);
+                long end = position + buffer.limit();
+                if (end < to)
+                {
+                    int cut = lastLineFeed(buffer);
+                    end = cut > 0 ? position + cut : ParallelFileEngine.lastLineEnd(in, end, end, to);
+                    if (end - position > MAX_BUFFERED_LINE)
+                    {
+                        block.streamFrom = position;
+                        block.streamTo = end;
+                        filled.put(block);
+                        streamed.acquire();
+                        position = end;
+                        continue;
+                    }
+                    if (cut == 0)
+                    {
+                        // A line longer than the buffer gets a buffer of its own until the block is recycled.
+                        block.input = ByteBuffer.allocate((int) (end - position));
+                        block.output = new ChunkOutput(block.input.capacity());
+                        readFully(in, block.input, position);
+                    }
+                }
+                // Bytes after the cut are read again as the start of the next block.
+                block.input.limit((int) (end - position)).position(0);
+                if (stats != null)
+                {
+                    stats.record(0, 0, 0, clock() - started, 0, 0);
+                }
+                filled.put(block);
+                position = end;
+            }
+            for (int i = 0; i < engines.length; i++)
+            {
+                filled.put(END);
+            }
+        }
+
+        // Reader for input without positions: a block ends after its last line feed and the rest
+        // starts the next block.
+        private void read(ReadableByteChannel in, BlockingQueue<Block> filled) throws IOException, InterruptedException
+        {
+            long sequence = 0;
+            Block block = takeBlock();
+            block.input.clear();
+            boolean endOfInput = false;
+            while (!endOfInput)
+            {
+                long started = clock();
+                ByteBuffer buffer = block.input;
+                endOfInput = fill(in, buffer);
+                buffer.flip();
+                int cut = endOfInput ? buffer.limit() : lastLineFeed(buffer);
+                if (cut == 0 && !endOfInput)
+                {
+                    if (buffer.capacity() >= MAX_BUFFERED_LINE)
+                    {
+                        throw new IOException("The input has a line longer than " + (MAX_BUFFERED_LINE >> 20) + " MB");
+                    }
+                    // Like a long line read by position, it keeps the larger buffer until the block is recycled.
+                    block.input = ByteBuffer.allocate((int) Math.min(MAX_BUFFERED_LINE, 2L * buffer.capacity())).put(buffer);
+                    block.output = new ChunkOutput(block.input.capacity());
+                    continue;
+                }
+                if (cut == 0)
+                {
+                    pool.add(block);
+                    break;
+                }
+                Block next = null;
+                if (!endOfInput)
+                {
+                    next = takeBlock();
+                    next.input.clear();
+                    int rest = buffer.limit() - cut;
+                    if (rest > next.input.capacity())
+                    {
+                        next.input = ByteBuffer.allocate(Math.max(rest, 2 * next.input.capacity()));
+                        next.output = new ChunkOutput(next.input.capacity());
+                    }
+                    next.input.put(buffer.array(), cut, rest);
+                }
+                block.sequence = sequence++;
+                buffer.limit(cut);
+                if (stats != null)
+                {
+                    stats.record(0, 0, 0, clock() - started, 0, 0);
+                }
+                filled.put(block);
+                block = next;
+            }
+            for (int i = 0; i < engines.length; i++)
+            {
+                filled.put(END);
+            }
+        }
+
+        // Transformer: runs its own session over each block; the writer puts them back in order.
+        private static void transform(MappedFileEngine engine, BlockingQueue<Block> filled, BlockingQueue<Block> transformed)
+                throws IOException, InterruptedException
+        {
+            for (Block block = filled.take(); block != END; block = filled.take())
+            {
+                if (block.streamFrom < 0)
+                {
+                    engine.process(block.input, block.output);
+                }
+                transformed.put(block);
+            }
+            transformed.put(END);
+        }
+
+        // Writer: writes blocks in sequence, holding those that finished early, until every transformer ended.
+        private void write(FileChannel in, WritableByteChannel out, BlockingQueue<Block> transformed,
+                AtomicReference<Throwable> failure, Semaphore streamed) throws IOException, InterruptedException
+        {
+            Map<Long, Block> early = new HashMap<>();
+            long next = 0;
+            int running = engines.length;
+            while (running > 0)
+            {
+                Block block = transformed.take();
+                if (block == FAILED)
+                {
+                    throw asIOException(failure.get());
+                }
+                if (block == END)
+                {
+                    running--;
+                    continue;
+                }
+                early.put(block.sequence, block);
+                for (Block ready = early.remove(next); ready != null; ready = early.remove(++next))
+                {
+                    if (ready.streamFrom >= 0)
+                    {
+                        // Everything before the line has been written and the reader waits, so the
+                        // first transformer's engine is idle and its session state is current.
+                        engines[0].process(in, ready.streamFrom, ready.streamTo, out);
+                        recycle(ready);
+                        streamed.release();
+                    }
+                    else
+                    {
+                        long started = clock();
+                        ready.output.writeTo(out);
+                        if (stats != null)
+                        {
+                            stats.record(0, 0, 0, 0, 0, clock() - started);
+                        }
+                        recycle(ready);
+                    }
+                }
+            }
+        }
+
+        private Block takeBlock() throws InterruptedException
+        {
+            Block block = pool.poll();
+            if (block == null && allocated < poolSize)
+            {
+                allocated++;
+                return new Block(settings.bufferBytes());
+            }
+            return block != null ? block : pool.take();
+        }
+
+        private void recycle(Block block)
+        {
+            if (block.input.capacity() != settings.bufferBytes())
+            {
+                block.input = ByteBuffer.allocate(settings.bufferBytes());
+                block.output = new ChunkOutput(settings.bufferBytes());
+            }
+            block.output.clear();
+            block.streamFrom = -1;
+            pool.add(block);
+        }
+
+        private long clock()
+        {
+            return stats == null ? 0 : System.nanoTime();
+        }
+
+        // Reads until the buffer is full or the input ends, and tells which.
+        private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                if (in.read(buffer) < 0)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                if (in.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new EOFException("The input file became shorter while it was being read");
+                }
+            }
+        }
+
+        // Returns the index just after the last '\n' of the buffer's content, or 0 when there is none.
+        private static int lastLineFeed(ByteBuffer buffer)
+        {
+            byte[] array = buffer.array();
+            for (int i = buffer.limit() - 1; i >= 0; i--)
+            {
+                if (array[i] == '\n')
+                {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+
+        private static IOException asIOException(Throwable failure)
+        {
+            if (failure instanceof IOException io)
+            {
+                return io;
+            }
+            if (failure instanceof RuntimeException runtime)
+            {
+                throw runtime;
+            }
+            if (failure instanceof Error error)
+            {
+                throw error;
+            }
+            return new IOException(failure);
+        }
+
+        private static void joinAll(List<Thread> threads)
+        {
+            boolean interrupted = false;
+            for (Thread thread : threads)
+            {
+                while (true)
+                {
+                    try
+                    {
+                        thread.join();
+                        break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ***********************
+    // Compressed Files
+    // ***********************
+
+    /**
+     * The compressed formats processFile() can read and write. Gzip input is recognised by its magic
+     * bytes and method, whatever its name; output is compressed when its name ends with the format's
+     * suffix. DEFLATE is taken in its zlib wrapper, and only from a file named .zz or .zlib: its
+     * two header bytes are also plain text in Latin‑1 ("xÚ", "xœ"), so they prove nothing alone.
+     */
+    enum Compression
+    {
+        NONE(""),
+        GZIP(".gz"),
+        DEFLATE(".zz");
+
+        private static final int BUFFER_BYTES = 1 << 16;
+        private static final String ZLIB_SUFFIX = ".zlib";
+
+        final String suffix;
+
+        Compression(String suffix)
+        {
+            this.suffix = suffix;
+        }
+
+        static Compression detect(Path input) throws IOException
+        {
+            byte[] head = new byte[3];
+            try (InputStream in = Files.newInputStream(input))
+            {
+                if (in.readNBytes(head, 0, 3) < 2)
+                {
+                    return NONE;
+                }
+            }
+            int first = head[0] & 0xFF;
+            int second = head[1] & 0xFF;
+            if (first == 0x1F && second == 0x8B && head[2] == 8)
+            {
+                return GZIP;
+            }
+            // A zlib header: method 8 with a window of at most 32 KB, and a multiple of 31 as a check.
+            String name = input.getFileName().toString();
+            boolean named = name.endsWith(DEFLATE.suffix) || name.endsWith(ZLIB_SUFFIX);
+            return named && (first & 0x8F) == 0x08 && ((first << 8) | second) % 31 == 0 ? DEFLATE : NONE;
+        }
+
+        static Compression forOutput(Path output)
+        {
+            String name = output.getFileName().toString();
+            return name.endsWith(GZIP.suffix) ? GZIP : name.endsWith(DEFLATE.suffix) ? DEFLATE : NONE;
+        }
+
+        /**
+         * The name of a file in this format without its suffix (.zlib as well as .zz for DEFLATE), or
+         * the name itself when it has none, as for plain text or gzip recognised by its magic bytes.
+         */
+        String plainName(String name)
+        {
+            String dropped = this == DEFLATE && name.endsWith(ZLIB_SUFFIX) ? ZLIB_SUFFIX : suffix;
+            return name.endsWith(dropped) ? name.substring(0, name.length() - dropped.length()) : name;
+        }
+
+        InputStream open(Path input) throws IOException
+        {
+            InputStream in = Files.newInputStream(input);
+            try
+            {
+                if (this == GZIP)
+                {
+                    return new GZIPInputStream(in, BUFFER_BYTES);
+                }
+                if (this == NONE)
+                {
+                    return in;
+                }
+                Inflater inflater = new Inflater();
+                return new InflaterInputStream(in, inflater, BUFFER_BYTES)
+                {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        try
+                        {
+                            super.close();
+                        }
+                        finally
+                        {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+            catch (IOException | RuntimeException e)
+            {
+                in.close();
+                throw e;
+            }
+        }
+
+        OutputStream create(Path output) throws IOException
+        {
+            OutputStream out = Files.newOutputStream(output);
+            try
+            {
+                if (this == GZIP)
+                {
+                    return new GZIPOutputStream(out, BUFFER_BYTES);
+                }
+                if (this == NONE)
+                {
+                    return out;
+                }
+                Deflater deflater = new Deflater();
+                return new DeflaterOutputStream(out, deflater, BUFFER_BYTES)
+                {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        try
+                        {
+                            super.close();
+                        }
+                        finally
+                        {
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+            catch (IOException | RuntimeException e)
+            {
+                out.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * processFile() for a compressed input or output. Neither can be read or written by position,
+     * so the file streams through PipelinedFileEngine: its reader thread decompresses, the
+     * transformers run the cipher and the writer compresses, all at once. The parallel engine and
+     * checkpoints need positions and are not used. With a charset in which a line feed is not a
+     * single byte the input cannot be cut into blocks, so it streams through a CipherOutputStream
+     * on the calling thread instead; lines are not counted on that path.
+     */
+    static void processCompressed(Path input, Compression inputFormat, Path output, Compression outputFormat,
+            CipherSession session, Supplier<CipherSession> sessions, Charset charset, ProcessingStats stats,
+            PipelinedFileEngine.Settings pipeline) throws IOException
+    {
+        try (InputStream in = inputFormat.open(input);
+             OutputStream out = outputFormat.create(output))
+        {
+            if (ParallelFileEngine.supports(charset))
+            {
+                PipelinedFileEngine.Settings settings = pipeline != null ? pipeline : PipelinedFileEngine.Settings.of(
+                        PipelinedFileEngine.DEFAULT_QUEUE_DEPTH, PipelinedFileEngine.DEFAULT_BUFFER_KB);
+                new PipelinedFileEngine(session, sessions, charset, settings, stats)
+                        .process(Channels.newChannel(in), Channels.newChannel(out));
+            }
+            else
+            {
+                long[] written = new long[1];
+                OutputStream counted = new FilterOutputStream(out)
+                {
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException
+                    {
+                        out.write(buffer, offset, length);
+                        written[0] += length;
+                    }
+                };
+                byte[] buffer = new byte[Compression.BUFFER_BYTES];
+                long recorded = 0;
+                try (CipherOutputStream cipher = new CipherOutputStream(counted, session, charset))
+                {
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                    {
+                        long started = System.nanoTime();
+                        cipher.write(buffer, 0, n);
+                        if (stats != null)
+                        {
+                            stats.record(n, written[0] - recorded, 0, 0, System.nanoTime() - started, 0);
+                        }
+                        recorded = written[0];
+                    }
+                }
+                if (stats != null)
+                {
+                    // Closing wrote out the last line.
+                    stats.record(0, written[0] - recorded, 0, 0, 0, 0);
+                }
+            }
+        }
+    }
+
+    // ***********************
+    // Checkpoints
+    // ***********************
+
+    /**
+     * How a long run is checkpointed: every intervalBytes of input the output is forced to disk and
+     * the position reached is recorded in a journal next to it (see CheckpointJournal). With resume,
+     * a run that finds a journal for the same input and job continues from it instead of starting
+     * over; with keepCompleted the journal of a finished file is kept, marked complete, so a resumed
+     * batch can skip the file. The job is a fingerprint of the cipher settings (see fingerprint()).
+     */
+    record CheckpointPolicy(long intervalBytes, boolean resume, boolean keepCompleted, String job)
+    {
+        static final int DEFAULT_INTERVAL_MB = 256;
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        /**
+         * SHA-256 of the cipher, direction and settings, so that a journal is only resumed by the same
+         * job. It includes the key, so it is never written out as it is; sidecar files store seal()
+         * of it instead.
+         */
+        static String fingerprint(Cipher cipher, boolean encrypt, CipherOptions options)
+        {
+            StringBuilder job = new StringBuilder(cipher.name()).append(encrypt ? " encrypt" : " decrypt");
+            if (cipher instanceof CipherChain chain)
+            {
+                for (CipherChain.Stage stage : chain.stages())
+                {
+                    job.append(" | ").append(stage.cipher().name()).append(' ').append(stage.options().describe());
+                }
+            }
+            else
+            {
+                job.append(' ').append(options.describe());
+            }
+            return HexFormat.of().formatHex(sha256().digest(job.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * A fresh random salt for one sidecar file.
+         */
+        static byte[] newSalt()
+        {
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            return salt;
+        }
+
+        /**
+         * SHA-256 of the salt followed by the job fingerprint, as a sidecar file stores it: with a
+         * salt of its own in every file, a short key cannot be looked up in a table built once, and
+         * files of the same job do not show that they share it.
+         */
+        static String seal(String job, byte[] salt)
+        {
+            MessageDigest digest = sha256();
+            digest.update(salt);
+            return HexFormat.of().formatHex(digest.digest(job.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * The sidecar journal of a checkpointed run, stored as OUTPUT.ckpt in Properties format. A
+     * checkpoint is only taken at the end of a line, after the output has been forced to disk, so
+     * the recorded offsets always describe a consistent prefix of both files and the session state
+     * is the state between two lines. The journal is replaced atomically, so a crash while writing
+     * it leaves the previous checkpoint in place.
+     */
+    static final class CheckpointJournal
+    {
+        final byte[] salt;
+        final String sealedJob;
+        final long inputSize;
+        final long inputModified;
+        final long inputOffset;
+        final long outputOffset;
+        final String state;
+        final boolean complete;
+
+        CheckpointJournal(String job, long inputSize, long inputModified, long inputOffset, long outputOffset,
+                String state, boolean complete)
+        {
+            this.salt = CheckpointPolicy.newSalt();
+            this.sealedJob = CheckpointPolicy.seal(job, salt);
+            this.inputSize = inputSize;
+            this.inputModified = inputModified;
+            this.inputOffset = inputOffset;
+            this.outputOffset = outputOffset;
+            this.state = state;
+            this.complete = complete;
+        }
+
+        private CheckpointJournal(byte[] salt, String sealedJob, long inputSize, long inputModified, long inputOffset,
+                long outputOffset, String state, boolean complete)
+        {
+            this.salt = salt;
+            this.sealedJob = sealedJob;
+            this.inputSize = inputSize;
+            this.inputModified = inputModified;
+            this.inputOffset = inputOffset;
+            this.outputOffset = outputOffset;
+            this.state = state;
+            this.complete = complete;
+        }
+
+        static Path pathFor(Path output)
+        {
+            return output.resolveSibling(output.getFileName() + ".ckpt");
+        }
+
+        /**
+         * Reads the journal of an output, or returns null when there is none.
+         */
+        static CheckpointJournal read(Path output) throws IOException
+        {
+            Path path = pathFor(output);
+            if (!Files.exists(path))
+            {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+            {
+                properties.load(reader);
+                // A journal from before salts were stored has none and no longer matches any job.
+                return new CheckpointJournal(HexFormat.of().parseHex(properties.getProperty("salt", "")),
+                        properties.getProperty("job", ""),
+                        Long.parseLong(properties.getProperty("inputSize")),
+                        Long.parseLong(properties.getProperty("inputModified")),
+                        Long.parseLong(properties.getProperty("inputOffset")),
+                        Long.parseLong(properties.getProperty("outputOffset")),
+                        properties.getProperty("state", ""),
+                        Boolean.parseBoolean(properties.getProperty("complete")));
+            }
+            catch (IllegalArgumentException | NullPointerException e)
+            {
+                throw new IOException("Damaged checkpoint " + path + "; delete it to start over");
+            }
+        }
+
+        void write(Path output) throws IOException
+        {
+            Properties properties = new Properties();
+            properties.setProperty("salt", HexFormat.of().formatHex(salt));
+            properties.setProperty("job", sealedJob);
+            properties.setProperty("inputSize", String.valueOf(inputSize));
+            properties.setProperty("inputModified", String.valueOf(inputModified));
+            properties.setProperty("inputOffset", String.valueOf(inputOffset));
+            properties.setProperty("outputOffset", String.valueOf(outputOffset));
+            properties.setProperty("state", state);
+            properties.setProperty("complete", String.valueOf(complete));
+            StringWriter text = new StringWriter();
+            properties.store(text, "Cipher solver checkpoint");
+
+            Path path = pathFor(output);
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer bytes = StandardCharsets.ISO_8859_1.encode(text.toString());
+                while (bytes.hasRemaining())
+                {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Throws unless this journal belongs to the given job and input and the output still holds
+         * everything it records.
+         */
+        void check(Path output, String job, long inputSize, long inputModified, long outputSize) throws IOException
+        {
+            String problem = !sealedJob.equals(CheckpointPolicy.seal(job, salt)) ? "was made with different cipher settings"
+                    : this.inputSize != inputSize || this.inputModified != inputModified ? "was made for a different input"
+                    : outputSize < outputOffset ? "records more output than the file holds"
+                    : null;
+            if (problem != null)
+            {
+                throw new IOException("Checkpoint " + pathFor(output) + " " + problem + "; delete it to start over");
+            }
+        }
+    }
+
+    /**
+     * processFile() in segments of policy.intervalBytes() that end on a line feed, with a checkpoint
+     * after each one. Segments are processed by the engine processFile() chose, so the output is the
+     * same as without checkpoints; the parallel and pipelined engines drain at every checkpoint. The
+     * session is the one whose state the journal records.
+     */
+    static void processWithCheckpoints(Path input, Path output, FileEngine engine, CipherSession session,
+            ProcessingStats stats, CheckpointPolicy policy) throws IOException
+    {
+        long modified = Files.getLastModifiedTime(input).toMillis();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            long size = in.size();
+            long start = 0;
+            CheckpointJournal journal = policy.resume() ? CheckpointJournal.read(output) : null;
+            if (journal != null)
+            {
+                journal.check(output, policy.job(), size, modified, out.size());
+                if (stats != null)
+                {
+                    stats.resumed(journal.inputOffset);
+                }
+                if (journal.complete)
+                {
+                    return;
+                }
+                start = journal.inputOffset;
+                out.truncate(journal.outputOffset);
+                out.position(journal.outputOffset);
+                session.restoreState(journal.state);
+            }
+            else
+            {
+                out.truncate(0);
+            }
+
+            boolean checkpointed = journal != null;
+            while (start < size)
+            {
+                long end = ParallelFileEngine.lastLineEnd(in, start, Math.min(size, start + policy.intervalBytes()), size);
+                engine.process(in, start, end, out);
+                start = end;
+                if (start < size)
+                {
+                    out.force(true);
+                    new CheckpointJournal(policy.job(), size, modified, start, out.position(), session.state(), false)
+                            .write(output);
+                    checkpointed = true;
+                }
+            }
+            out.force(true);
+            if (checkpointed && policy.keepCompleted())
+            {
+                new CheckpointJournal(policy.job(), size, modified, size, out.position(), session.state(), true)
+                        .write(output);
+                return;
+            }
+        }
+        Files.deleteIfExists(CheckpointJournal.pathFor(output));
+    }
+
+    /**
+     * Writes an output to the path it is given.
+     */
+    interface OutputWriter
+    {
+        void write(Path output) throws IOException;
+    }
+
+    /**
+     * Where replaceOutput() writes an output until it is complete: a hidden name in the same
+     * directory that keeps the suffix, which picks the output compression.
+     */
+    static Path partialOutput(Path output)
+    {
+        return output.resolveSibling(".partial-" + output.getFileName());
+    }
+
+    /**
+     * Runs the writer on partialOutput(output) and renames the result to output once it is
+     * complete, so a run that fails leaves neither a partial output nor a damaged earlier one. A
+     * run that reached a checkpoint keeps the partial output and its journal for --resume to
+     * continue; a finished output's journal and line index move with it. When resuming, an output
+     * whose journal says it was finished is handed to the writer where it is.
+     */
+    static void replaceOutput(Path output, boolean resume, OutputWriter writer) throws IOException
+    {
+        if (resume && Files.exists(CheckpointJournal.pathFor(output)))
+        {
+            writer.write(output);
+            return;
+        }
+        Path temporary = partialOutput(output);
+        Path journal = CheckpointJournal.pathFor(temporary);
+        boolean finished = false;
+        try
+        {
+            writer.write(temporary);
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            if (Files.exists(journal))
+            {
+                Files.move(journal, CheckpointJournal.pathFor(output), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            // Renaming keeps the size and time the index was written for; an older one no longer fits.
+            if (Files.exists(LineIndex.pathFor(temporary)))
+            {
+                Files.move(LineIndex.pathFor(temporary), LineIndex.pathFor(output), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            else
+            {
+                Files.deleteIfExists(LineIndex.pathFor(output));
+            }
+        }
+        finally
+        {
+            if (finished || !Files.exists(journal))
+            {
+                Files.deleteIfExists(temporary);
+            }
+            Files.deleteIfExists(LineIndex.pathFor(temporary));
+        }
+    }
+
+    // ***********************
+    // Delta Re-encryption
+    // ***********************
+
+    /**
+     * The sidecar manifest of a delta run, stored as OUTPUT.delta. It lists every block of the input
+     * with its length, its SHA-256, the length of its output and the session state after it, together
+     * with the salted job fingerprint (see CheckpointPolicy.seal()) and the size and modification
+     * time of the output it describes, so that output made with other settings, or changed since,
+     * is never reused.
+     *
+     * Blocks are cut where the content says so rather than at fixed offsets, so that an insertion
+     * or a deletion only changes the blocks around it: a gear hash rolls over the last 64 bytes,
+     * and once it hits after MIN_BLOCK_BYTES the block ends at the next line feed. A block that
+     * reaches MAX_BLOCK_BYTES without a hit ends at the next line feed as well.
+     */
+    static final class DeltaManifest
+    {
+        static final int MIN_BLOCK_BYTES = 8 << 10;
+        static final int MAX_BLOCK_BYTES = 128 << 10;
+        // A hit is a hash whose top 14 bits are all zero, about once every 16K bytes after the minimum.
+        private static final int CUT_SHIFT = Long.SIZE - 14;
+        private static final long[] GEAR = new SplittableRandom(0x5EEDL).longs(256).toArray();
+        private static final String HEADER = "cipher-solver-delta 3";
+
+        record Block(long length, String hash, long outputLength, String state) {}
+
+        final String job;
+        final long outputSize;
+        final long outputModified;
+        final List<Block> blocks;
+
+        DeltaManifest(String job, long outputSize, long outputModified, List<Block> blocks)
+        {
+            this.job = job;
+            this.outputSize = outputSize;
+            this.outputModified = outputModified;
+            this.blocks = blocks;
+        }
+
+        static Path pathFor(Path output)
+        {
+            return output.resolveSibling(output.getFileName() + ".delta");
+        }
+
+        /**
+         * Returns the end of the block that starts at start: just after a line feed, or size.
+         */
+        static long blockEnd(FileChannel in, long start, long size) throws IOException
+        {
+            long hash = 0;
+            boolean cut = false;
+            for (long position = start; position < size; )
+            {
+                int length = (int) Math.min(MappedFileEngine.WINDOW_BYTES, size - position);
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++)
+                {
+                    byte b = window.get(i);
+                    long blockLength = position + i + 1 - start;
+                    if (b == '\n' && (cut || blockLength >= MAX_BLOCK_BYTES))
+                    {
+                        return position + i + 1;
+                    }
+                    hash = (hash << 1) + GEAR[b & 0xFF];
+                    cut |= blockLength >= MIN_BLOCK_BYTES && hash >>> CUT_SHIFT == 0;
+                }
+                position += length;
+            }
+            return size;
+        }
+
+        /**
+         * Reads the manifest of an output, or returns null when there is none, it is damaged, or it
+         * does not describe the output as it is now for the given job.
+         */
+        static DeltaManifest read(Path output, String job) throws IOException
+        {
+            Path path = pathFor(output);
+            if (!Files.exists(path) || !Files.exists(output))
+            {
+                return null;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+            {
+                String[] jobLine = reader.readLine().equals(HEADER) ? reader.readLine().split(" ") : null;
+                boolean sameJob = jobLine != null && jobLine.length == 3 && jobLine[0].equals("job")
+                        && jobLine[2].equals(CheckpointPolicy.seal(job, HexFormat.of().parseHex(jobLine[1])));
+                String[] outputLine = sameJob ? reader.readLine().split(" ") : null;
+                if (outputLine == null || outputLine.length != 3 || !outputLine[0].equals("output")
+                        || Long.parseLong(outputLine[1]) != Files.size(output)
+                        || Long.parseLong(outputLine[2]) != Files.getLastModifiedTime(output).toMillis())
+                {
+                    return null;
+                }
+                List<Block> blocks = new ArrayList<>();
+                for (String line = reader.readLine(); line != null; line = reader.readLine())
+                {
+                    String[] fields = line.split(" ", -1);
+                    blocks.add(new Block(Long.parseLong(fields[0]), fields[1], Long.parseLong(fields[2]),
+                            URLDecoder.decode(fields[3], StandardCharsets.UTF_8)));
+                }
+                return new DeltaManifest(job, Long.parseLong(outputLine[1]), Long.parseLong(outputLine[2]), blocks);
+            }
+            catch (RuntimeException e)
+            {
+                // A damaged manifest only costs a full run, which writes a new one.
+                return null;
+            }
+        }
+
+        void write(Path output) throws IOException
+        {
+            Path path = pathFor(output);
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))
+            {
+                byte[] salt = CheckpointPolicy.newSalt();
+                writer.write(HEADER + "\n" + "job " + HexFormat.of().formatHex(salt) + " " + CheckpointPolicy.seal(job, salt)
+                        + "\n" + "output " + outputSize + " " + outputModified + "\n");
+                for (Block block : blocks)
+                {
+                    writer.write(block.length() + " " + block.hash() + " " + block.outputLength() + " "
+                            + URLEncoder.encode(block.state(), StandardCharsets.UTF_8) + "\n");
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * processFile() for a file that was processed before by the same job, reusing what it can.
+     *
+     * The input is cut into content-defined blocks that end on a line feed (see DeltaManifest), and
+     * every block is hashed. A block whose length and hash match a block of the manifest, wherever
+     * it was, and which starts in the session state that block started in, is copied from the
+     * previous output; every other block goes through the cipher. The state check is what keeps a
+     * continuous Vigenère key exact: once a change shifts the key, the blocks after it are
+     * transformed again. The result is always the output of a full run.
+     *
+     * The new blocks are put together in a temporary file, so a run that fails leaves the old output
+     * as it was. When the only blocks to reuse are an unchanged prefix, as for a file that was
+     * appended to, the temporary file only holds what follows the prefix and is spliced onto the
+     * old output after it (see spliceOutput()). Otherwise, and also when there is nothing to reuse,
+     * it holds the whole output and replaces the old one. Blocks are transformed one at a time on
+     * the calling thread. With a charset in which a line feed is not a single byte, or a compressed
+     * input or output, the file is simply processed in full.
+     */
+    static void processDelta(Path input, Path output, Supplier<CipherSession> sessions, ProcessingStats stats, String job)
+            throws IOException
+    {
+        Charset charset = Charset.defaultCharset();
+        Path manifestPath = DeltaManifest.pathFor(output);
+        if (!ParallelFileEngine.supports(charset) || Compression.detect(input) != Compression.NONE
+                || Compression.forOutput(output) != Compression.NONE)
+        {
+            Files.deleteIfExists(manifestPath);
+            replaceOutput(output, false, target -> processFile(input, target, sessions, stats));
+            return;
+        }
+
+        CipherSession session = sessions.get();
+        String initialState = session.state();
+        MappedFileEngine engine = new MappedFileEngine(session, charset, stats);
+        List<DeltaManifest.Block> blocks = new ArrayList<>();
+        Path temporary = output.resolveSibling(output.getFileName() + ".delta-output.tmp");
+        boolean splice;
+        long keptBytes = 0; // the output of the reused prefix, when splicing
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ))
+        {
+            long size = in.size();
+            List<Long> ends = new ArrayList<>();
+            List<String> hashes = new ArrayList<>();
+            MessageDigest digest = sha256();
+            for (long start = 0; start < size; )
+            {
+                long end = DeltaManifest.blockEnd(in, start, size);
+                hashes.add(hash(in, start, end, digest));
+                ends.add(end);
+                start = end;
+            }
+
+            DeltaManifest previous = DeltaManifest.read(output, job);
+            List<DeltaManifest.Block> old = previous == null ? List.of() : previous.blocks;
+            // Where each old block starts in the old output, and the old blocks by length and hash.
+            long[] oldStarts = new long[old.size() + 1];
+            Map<String, List<Integer>> oldByContent = new HashMap<>();
+            for (int j = 0; j < old.size(); j++)
+            {
+                oldStarts[j + 1] = oldStarts[j] + old.get(j).outputLength();
+                oldByContent.computeIfAbsent(old.get(j).length() + " " + old.get(j).hash(), k -> new ArrayList<>()).add(j);
+            }
+            int count = ends.size();
+            List<List<Integer>> same = new ArrayList<>(count); // old blocks with the same length and hash
+            int prefix = 0;
+            boolean sameAfterPrefix = false;
+            for (int i = 0; i < count; i++)
+            {
+                long length = ends.get(i) - (i == 0 ? 0 : ends.get(i - 1));
+                List<Integer> matches = oldByContent.getOrDefault(length + " " + hashes.get(i), List.of());
+                same.add(matches);
+                prefix += prefix == i && matches.contains(i) ? 1 : 0;
+                sameAfterPrefix |= !matches.isEmpty() && i >= prefix;
+            }
+            // Only appending after a reused prefix is worth splicing onto the old output.
+            splice = prefix > 0 && !sameAfterPrefix;
+
+            // The output is about to change, so the manifest no longer describes it.
+            Files.deleteIfExists(manifestPath);
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel oldOutput = splice || old.isEmpty() ? null : FileChannel.open(output, StandardOpenOption.READ))
+            {
+                int first = 0;
+                if (splice)
+                {
+                    keptBytes = oldStarts[prefix];
+                    blocks.addAll(old.subList(0, prefix));
+                    session.restoreState(old.get(prefix - 1).state());
+                    if (stats != null)
+                    {
+                        stats.resumed(ends.get(prefix - 1));
+                    }
+                    first = prefix;
+                }
+
+                long start = first == 0 ? 0 : ends.get(first - 1);
+                for (int i = first; i < count; i++)
+                {
+                    long end = ends.get(i);
+                    long written = out.position();
+                    int reuse = -1;
+                    for (int j : splice ? List.<Integer>of() : same.get(i))
+                    {
+                        if (session.state().equals(j == 0 ? initialState : old.get(j - 1).state()))
+                        {
+                            reuse = j;
+                            break;
+                        }
+                    }
+                    if (reuse >= 0)
+                    {
+                        DeltaManifest.Block block = old.get(reuse);
+                        transfer(oldOutput, oldStarts[reuse], block.outputLength(), out);
+                        session.restoreState(block.state());
+                        if (stats != null)
+                        {
+                            stats.resumed(end - start);
+                        }
+                    }
+                    else
+                    {
+                        engine.process(in, start, end, out);
+                    }
+                    blocks.add(new DeltaManifest.Block(end - start, hashes.get(i), out.position() - written, session.state()));
+                    start = end;
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        if (splice)
+        {
+            try
+            {
+                spliceOutput(output, keptBytes, temporary);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        else
+        {
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        new DeltaManifest(job, Files.size(output), Files.getLastModifiedTime(output).toMillis(), blocks).write(output);
+    }
+
+    /**
+     * Replaces everything in the output from offset on with the content of tail. The bytes the output
+     * had there are first copied aside, so when writing the tail fails (a full disk, say) the output
+     * is cut back to offset and they are put back.
+     */
+    private static void spliceOutput(Path output, long offset, Path tail) throws IOException
+    {
+        Path replaced = output.resolveSibling(output.getFileName() + ".delta-replaced.tmp");
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel in = FileChannel.open(tail, StandardOpenOption.READ);
+             FileChannel kept = FileChannel.open(replaced, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            transfer(out, offset, out.size() - offset, kept);
+            try
+            {
+                out.truncate(offset);
+                transfer(in, 0, in.size(), out.position(offset));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                try
+                {
+                    out.truncate(offset);
+                    transfer(kept, 0, kept.size(), out.position(offset));
+                }
+                catch (IOException | RuntimeException suppressed)
+                {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(replaced);
+        }
+    }
+
+    // Writes count bytes of from, starting at position, to the current position of to.
+    private static void transfer(FileChannel from, long position, long count, FileChannel to) throws IOException
+    {
+        for (long copied = 0; copied < count; )
+        {
+            copied += from.transferTo(position + copied, count - copied, to);
+        }
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // SHA-256 of the bytes [from, to), mapped a window at a time because a block can be one huge line.
+    private static String hash(FileChannel in, long from, long to, MessageDigest digest) throws IOException
+    {
+        for (long position = from; position < to; )
+        {
+            long length = Math.min(MappedFileEngine.WINDOW_BYTES, to - position);
+            digest.update(in.map(FileChannel.MapMode.READ_ONLY, position, length));
+            position += length;
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // ***********************
+    // Line Index
+    // ***********************
+
+    /**
+     * A sparse index of an encrypted file, stored next to it as OUTPUT.idx, that lets a range of its
+     * lines be decrypted without reading everything before them.
+     *
+     * Every entry holds a line number of the output, the byte offset where that line starts and the
+     * session state at that point, so a decrypting session can start there as if it had read all the
+     * lines before. States repeat (a Vigenère key has only so many positions), so entries refer to a
+     * table of distinct states. The file is big-endian binary with fixed-size entries and is read by
+     * mapping it; binary search finds the entry at or before a line. The header keeps the salted
+     * fingerprint of the job and the size and modification time of the output, so an index that no
+     * longer fits is refused rather than misread.
+     *
+     * <pre>
+     * int magic, int version, int interval, long outputSize, long outputModified, byte[16] salt, byte[32] job,
+     * int entries, int states, then per entry: long line, long offset, int state,
+     * then per state: int length, UTF‑8 bytes
+     * </pre>
+     */
+    static final class LineIndex
+    {
+        static final int DEFAULT_INTERVAL = 1000;
+        private static final int MAGIC = 0x43534958; // "CSIX"
+        private static final int VERSION = 2;
+        private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8 + 16 + 32 + 4 + 4;
+        private static final int ENTRY_BYTES = 8 + 8 + 4;
+
+        record Entry(long line, long offset, String state) {}
+
+        private final ByteBuffer entries;
+        private final int count;
+        private final String[] states;
+
+        private LineIndex(ByteBuffer entries, int count, String[] states)
+        {
+            this.entries = entries;
+            this.count = count;
+            this.states = states;
+        }
+
+        static Path pathFor(Path output)
+        {
+            return output.resolveSibling(output.getFileName() + ".idx");
+        }
+
+        /**
+         * Writes the index of an output file with an entry every interval lines. offsets and states
+         * give the line starts at which a continuous session's state was taken, in order; when they
+         * are null the session had no state to keep and every interval‑th line gets an entry.
+         */
+        static void write(Path output, int interval, String job, List<Long> offsets, List<String> states)
+                throws IOException
+        {
+            // Line numbers come from the output itself: one '\n' ends every line the engines write.
+            List<long[]> found = new ArrayList<>();
+            List<Integer> stateOfEntry = new ArrayList<>();
+            Map<String, Integer> stateIds = new LinkedHashMap<>();
+            try (FileChannel in = FileChannel.open(output, StandardOpenOption.READ))
+            {
+                long size = in.size();
+                long line = 0;
+                int next = 0;
+                long lineStart = 0;
+                for (long position = 0; position < size; )
+                {
+                    long length = Math.min(MappedFileEngine.WINDOW_BYTES, size - position);
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    for (int i = 0; i < length; i++)
+                    {
+                        if (lineStart >= 0)
+                        {
+                            boolean taken = offsets == null ? line % interval == 0
+                                    : next < offsets.size() && offsets.get(next) == lineStart;
+                            if (taken)
+                            {
+                                String state = offsets == null ? "" : states.get(next++);
+                                found.add(new long[] {line, lineStart});
+                                stateOfEntry.add(stateIds.computeIfAbsent(state, key -> stateIds.size()));
+                            }
+                            lineStart = -1;
+                        }
+                        if (window.get(i) == '\n')
+                        {
+                            line++;
+                            lineStart = position + i + 1;
+                        }
+                    }
+                    position += length;
+                }
+            }
+
+            byte[][] encoded = stateIds.keySet().stream().map(state -> state.getBytes(StandardCharsets.UTF_8))
+                    .toArray(byte[][]::new);
+            int stateBytes = 0;
+            for (byte[] state : encoded)
+            {
+                stateBytes += 4 + state.length;
+            }
+            byte[] salt = CheckpointPolicy.newSalt();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + found.size() * ENTRY_BYTES + stateBytes);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(interval)
+                    .putLong(Files.size(output)).putLong(Files.getLastModifiedTime(output).toMillis())
+                    .put(salt).put(HexFormat.of().parseHex(CheckpointPolicy.seal(job, salt))).putInt(found.size()).putInt(encoded.length);
+            for (int i = 0; i < found.size(); i++)
+            {
+                buffer.putLong(found.get(i)[0]).putLong(found.get(i)[1]).putInt(stateOfEntry.get(i));
+            }
+            for (byte[] state : encoded)
+            {
+                buffer.putInt(state.length).put(state);
+            }
+            Path path = pathFor(output);
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, buffer.array());
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Maps the index of an encrypted file, or returns null when there is none. Throws an
+         * IOException when it was written for other cipher settings or the file has changed since.
+         */
+        static LineIndex open(Path output, String job) throws IOException
+        {
+            Path path = pathFor(output);
+            if (!Files.exists(path))
+            {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.remaining() < HEADER_BYTES || index.getInt() != MAGIC || index.getInt() != VERSION)
+                {
+                    throw new IOException(path + " is not a line index");
+                }
+                index.getInt(); // the interval, for information
+                if (index.getLong() != Files.size(output) || index.getLong() != Files.getLastModifiedTime(output).toMillis())
+                {
+                    throw new IOException(output + " has changed since it was indexed");
+                }
+                byte[] salt = new byte[16];
+                byte[] fingerprint = new byte[32];
+                index.get(salt).get(fingerprint);
+                if (!HexFormat.of().formatHex(fingerprint).equals(CheckpointPolicy.seal(job, salt)))
+                {
+                    throw new IOException(output + " was indexed for other cipher settings");
+                }
+                int count = index.getInt();
+                String[] states = new String[index.getInt()];
+                ByteBuffer entries = index.slice(index.position(), count * ENTRY_BYTES);
+                index.position(index.position() + count * ENTRY_BYTES);
+                for (int i = 0; i < states.length; i++)
+                {
+                    byte[] state = new byte[index.getInt()];
+                    index.get(state);
+                    states[i] = new String(state, StandardCharsets.UTF_8);
+                }
+                return new LineIndex(entries, count, states);
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException e)
+            {
+                throw new IOException(path + " is damaged", e);
+            }
+        }
+
+        /**
+         * The last entry at or before the line (counted from 0); the index always has one for line 0
+         * unless the file is empty, in which case this returns null.
+         */
+        Entry floor(long line)
+        {
+            int low = 0;
+            int high = count - 1;
+            int found = -1;
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                if (entries.getLong(middle * ENTRY_BYTES) <= line)
+                {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            if (found < 0)
+            {
+                return null;
+            }
+            int at = found * ENTRY_BYTES;
+            return new Entry(entries.getLong(at), entries.getLong(at + 8), states[entries.getInt(at + 16)]);
+        }
+
+        /**
+         * Returns the position just after the given number of '\n' bytes from position from, or to
+         * when the range has fewer.
+         */
+        static long skipLines(FileChannel in, long from, long lines, long to) throws IOException
+        {
+            if (lines <= 0)
+            {
+                return from;
+            }
+            long remaining = lines;
+            for (long position = from; position < to; )
+            {
+                long length = Math.min(MappedFileEngine.WINDOW_BYTES, to - position);
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for (int i = 0; i < length; i++)
+                {
+                    if (window.get(i) == '\n' && --remaining == 0)
+                    {
+                        return position + i + 1;
+                    }
+                }
+                position += length;
+            }
+            return to;
+        }
+    }
+
+    /**
+     * processFile() for encryption that also writes a LineIndex of the output with an entry about
+     * every interval lines, and returns whether it could.
+     *
+     * A session without state between lines needs only the line offsets, so the file is processed
+     * as usual and the output scanned afterwards. A continuous session is run over the input
+     * interval lines at a time on the calling thread, and its state is taken between the pieces;
+     * checkpoints and the pipeline are not used then. An index needs output that can be read by
+     * position with single‑byte line feeds, and a continuous session also needs input that can, so
+     * with a compressed file or any other charset no index is written.
+     */
+    static boolean processIndexed(Path input, Path output, Supplier<CipherSession> sessions, ProcessingStats stats,
+            CheckpointPolicy checkpoints, PipelinedFileEngine.Settings pipeline, int interval, String job)
+            throws IOException
+    {
+        Charset charset = Charset.defaultCharset();
+        Files.deleteIfExists(LineIndex.pathFor(output));
+        CipherSession session = sessions.get();
+        boolean indexable = ParallelFileEngine.supports(charset) && Compression.forOutput(output) == Compression.NONE;
+        if (!session.continuous() || !indexable || Compression.detect(input) != Compression.NONE)
+        {
+            processFile(input, output, sessions, stats, checkpoints, pipeline);
+            if (indexable && !session.continuous())
+            {
+                LineIndex.write(output, interval, job, null, null);
+                return true;
+            }
+            return false;
+        }
+
+        List<Long> offsets = new ArrayList<>();
+        List<String> states = new ArrayList<>();
+        MappedFileEngine engine = new MappedFileEngine(session, charset, stats);
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            long size = in.size();
+            for (long start = 0; start < size; )
+            {
+                long end = LineIndex.skipLines(in, start, interval, size);
+                offsets.add(out.position());
+                states.add(session.state());
+                engine.process(in, start, end, out);
+                start = end;
+            }
+        }
+        LineIndex.write(output, interval, job, offsets, states);
+        return true;
+    }
+
+    /**
+     * The --range mode: decrypts some lines of a file that was encrypted with an index.
+     *
+     * <pre>
+     * java Cypher_Solver.java --range --cipher vigenere --key LEMON --continuous-key \
+     *         --input archive.txt --lines 3000000-3000010 [--output lines.txt]
+     * </pre>
+     *
+     * Lines are counted from 1 and the range includes both ends. The cipher options are those of
+     * --batch, given as they were for the encryption. Decryption starts at the index entry at or
+     * before the first line; a session with state runs through the lines up to it (at most the
+     * interval) with its output dropped, while any other session skips them unread. The lines go to
+     * stdout unless --output is given.
+     */
+    static final class RangeDecryptor
+    {
+        private static final String USAGE = "Usage: --range --cipher NAME|--chain SPEC --input FILE --lines FIRST[-LAST] "
+                + "[--key K] [--continuous-key] [--a N --b N --c N] [--rails N --offset N --block N] [--param NAME=VALUE] "
+                + "[--output FILE]";
+
+        static int run(String[] args)
+        {
+            Map<String, String> values = new HashMap<>();
+            CipherOptions options = new CipherOptions();
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("--continuous-key"))
+                {
+                    options.continuousKey = true;
+                }
+                else if (arg.startsWith("--") && i + 1 < args.length)
+                {
+                    String value = args[++i];
+                    if (arg.equals("--param"))
+                    {
+                        int equals = value.indexOf('=');
+                        if (equals <= 0)
+                        {
+                            return usage("Invalid --param " + value);
+                        }
+                        options.parameters.put(value.substring(0, equals), value.substring(equals + 1));
+                    }
+                    else
+                    {
+                        values.put(arg.substring(2), value);
+                    }
+                }
+                else
+                {
+                    return usage("Unexpected argument " + arg);
+                }
+            }
+            values.put("action", "decrypt");
+            CipherJob job;
+            try
+            {
+                job = CipherJob.parse(values, options, CipherRegistry.load());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return usage(e.getMessage());
+            }
+            if (!values.containsKey("input") || !values.containsKey("lines"))
+            {
+                return usage("Both --input and --lines are required");
+            }
+            long first;
+            long last;
+            try
+            {
+                String lines = values.get("lines");
+                int dash = lines.indexOf('-');
+                first = Long.parseLong(dash < 0 ? lines : lines.substring(0, dash));
+                last = dash < 0 ? first : Long.parseLong(lines.substring(dash + 1));
+            }
+            catch (NumberFormatException e)
+            {
+                return usage("Invalid --lines " + values.get("lines"));
+            }
+            if (first < 1 || last < first)
+            {
+                return usage("--lines needs 1 <= FIRST <= LAST");
+            }
+            if (!ParallelFileEngine.supports(Charset.defaultCharset()))
+            {
+                System.err.println("--range needs a charset in which a line feed is a single byte");
+                return 2;
+            }
+
+            Path input = Paths.get(values.get("input"));
+            try
+            {
+                LineIndex index = LineIndex.open(input, CheckpointPolicy.fingerprint(job.cipher(), true, options));
+                if (index == null)
+                {
+                    System.err.println("No index found for " + input + "; encrypt it with --index-lines N first");
+                    return 1;
+                }
+                long started = System.nanoTime();
+                long bytes;
+                if (values.containsKey("output"))
+                {
+                    Path output = Paths.get(values.get("output"));
+                    if (Files.exists(output) && Files.isSameFile(input, output))
+                    {
+                        System.err.println("The output would overwrite the input");
+                        return 2;
+                    }
+                    long[] written = new long[1];
+                    try
+                    {
+                        replaceOutput(output, false, target ->
+                        {
+                            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+                            {
+                                written[0] = decrypt(input, index, job, first - 1, last, out);
+                            }
+                            if (written[0] == 0)
+                            {
+                                // Leaves an earlier output alone rather than replacing it with nothing.
+                                throw new EOFException();
+                            }
+                        });
+                    }
+                    catch (EOFException e)
+                    {
+                        written[0] = 0;
+                    }
+                    bytes = written[0];
+                }
+                else
+                {
+                    bytes = decrypt(input, index, job, first - 1, last, Channels.newChannel(System.out));
+                    System.out.flush();
+                }
+                if (bytes == 0)
+                {
+                    System.err.println("Line " + first + " is past the end of " + input);
+                    return 1;
+                }
+                System.err.printf(Locale.ROOT, "Decrypted lines %,d to %,d (%,d bytes) in %.3f ms%n",
+                        first, last, bytes, (System.nanoTime() - started) / 1e6);
+                return 0;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing the file: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        /**
+         * Decrypts the lines [from, to) (counted from 0), or those of them the file has, into out and
+         * returns the number of encrypted bytes they took.
+         */
+        static long decrypt(Path input, LineIndex index, CipherJob job, long from, long to, WritableByteChannel out)
+                throws IOException
+        {
+            CipherSession session = job.open();
+            MappedFileEngine engine = new MappedFileEngine(session, Charset.defaultCharset());
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ))
+            {
+                LineIndex.Entry entry = index.floor(from);
+                if (entry == null)
+                {
+                    return 0;
+                }
+                long size = in.size();
+                session.restoreState(job.cipher() instanceof CipherChain ? CipherChain.reverseState(entry.state())
+                        : entry.state());
+                long start = LineIndex.skipLines(in, entry.offset(), from - entry.line(), size);
+                if (session.continuous())
+                {
+                    engine.process(in, entry.offset(), start, Channels.newChannel(OutputStream.nullOutputStream()));
+                }
+                long end = LineIndex.skipLines(in, start, to - from, size);
+                engine.process(in, start, end, out);
+                return end - start;
+            }
+        }
+
+        private static int usage(String message)
+        {
+            System.err.println(message);
+            System.err.println(USAGE);
+            return 2;
+        }
+    }
+
+    // ***********************
+    // Instrumentation
+    // ***********************
+
+    /**
+     * Management interface of ProcessingStats, published over JMX while files are processed.
+     * Times are summed over all workers, so with the parallel engine they can exceed the elapsed time.
+     */
+    public interface ProcessingStatsMBean
+    {
+        String getCipher();
+
+        long getTotalBytes();
+
+        long getBytesRead();
+
+        long getBytesResumed();
+
+        long getBytesWritten();
+
+        long getLines();
+
+        double getElapsedSeconds();
+
+        double getReadSeconds();
+
+        double getTransformSeconds();
+
+        double getWriteSeconds();
+
+        double getBytesPerSecond();
+
+        double getLinesPerSecond();
+
+        double getPercentComplete();
+
+        double getEtaSeconds();
+    }
+
+    /**
+     * Counters for one run over one or more files. The engines count in plain fields and add their
+     * totals here once per decode buffer, so the LongAdders see a few updates per 64K characters even
+     * when every fork/join worker reports at once.
+     */
+    static final class ProcessingStats implements ProcessingStatsMBean
+    {
+        private final String cipher;
+        private final long totalBytes;
+        private final long startNanos = System.nanoTime();
+        private volatile long stopNanos;
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesResumed = new LongAdder(); // input a resumed run did not read again
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder lines = new LongAdder();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder transformNanos = new LongAdder();
+        private final LongAdder writeNanos = new LongAdder();
+
+        ProcessingStats(String cipher, long totalBytes)
+        {
+            this.cipher = cipher;
+            this.totalBytes = totalBytes;
+        }
+
+        void record(long read, long written, long lineCount, long readTime, long transformTime, long writeTime)
+        {
+            bytesRead.add(read);
+            bytesWritten.add(written);
+            lines.add(lineCount);
+            readNanos.add(readTime);
+            transformNanos.add(transformTime);
+            writeNanos.add(writeTime);
+        }
+
+        /**
+         * Counts input whose output an earlier run already made, either before it was interrupted or
+         * as a block a delta run reuses: it counts towards completion but not towards throughput.
+         */
+        void resumed(long bytes)
+        {
+            bytesResumed.add(bytes);
+        }
+
+        /**
+         * Freezes the elapsed time at the end of the run.
+         */
+        void stop()
+        {
+            stopNanos = System.nanoTime();
+        }
+
+        @Override
+        public String getCipher()
+        {
+            return cipher;
+        }
+
+        @Override
+        public long getTotalBytes()
+        {
+            return totalBytes;
+        }
+
+        @Override
+        public long getBytesRead()
+        {
+            return bytesRead.sum();
+        }
+
+        @Override
+        public long getBytesResumed()
+        {
+            return bytesResumed.sum();
+        }
+
+        @Override
+        public long getBytesWritten()
+        {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public long getLines()
+        {
+            return lines.sum();
+        }
+
+        @Override
+        public double getElapsedSeconds()
+        {
+            long end = stopNanos == 0 ? System.nanoTime() : stopNanos;
+            return (end - startNanos) / 1e9;
+        }
+
+        @Override
+        public double getReadSeconds()
+        {
+            return readNanos.sum() / 1e9;
+        }
+
+        @Override
+        public double getTransformSeconds()
+        {
+            return transformNanos.sum() / 1e9;
+        }
+
+        @Override
+        public double getWriteSeconds()
+        {
+            return writeNanos.sum() / 1e9;
+        }
+
+        @Override
+        public double getBytesPerSecond()
+        {
+            return getBytesRead() / Math.max(1e-9, getElapsedSeconds());
+        }
+
+        @Override
+        public double getLinesPerSecond()
+        {
+            return getLines() / Math.max(1e-9, getElapsedSeconds());
+        }
+
+        @Override
+        public double getPercentComplete()
+        {
+            return totalBytes <= 0 ? 100 : Math.min(100, 100.0 * (getBytesRead() + getBytesResumed()) / totalBytes);
+        }
+
+        @Override
+        public double getEtaSeconds()
+        {
+            double rate = getBytesPerSecond();
+            return rate <= 0 ? -1 : Math.max(0, totalBytes - getBytesRead() - getBytesResumed()) / rate;
+        }
+
+        /**
+         * One-line human-readable progress report.
+         */
+        String progressLine()
+        {
+            double eta = getEtaSeconds();
+            return String.format(Locale.ROOT, "[%s] %5.1f%%  %,.1f of %,.1f MB  %.1f MB/s  %,.0f lines/s  ETA %s",
+                    cipher, getPercentComplete(), (getBytesRead() + getBytesResumed()) / 1048576.0, totalBytes / 1048576.0,
+                    getBytesPerSecond() / 1048576.0, getLinesPerSecond(), eta < 0 ? "?" : Math.round(eta) + " s");
+        }
+
+        /**
+         * Summary as a JSON object; extra entries (strings or numbers) come first.
+         */
+        String toJson(Map<String, Object> extra)
+        {
+            Map<String, Object> fields = new LinkedHashMap<>(extra);
+            fields.put("cipher", cipher);
+            fields.put("totalBytes", totalBytes);
+            fields.put("bytesRead", getBytesRead());
+            fields.put("bytesResumed", getBytesResumed());
+            fields.put("bytesWritten", getBytesWritten());
+            fields.put("lines", getLines());
+            fields.put("elapsedSeconds", getElapsedSeconds());
+            fields.put("readSeconds", getReadSeconds());
+            fields.put("transformSeconds", getTransformSeconds());
+            fields.put("writeSeconds", getWriteSeconds());
+            fields.put("bytesPerSecond", getBytesPerSecond());
+            fields.put("linesPerSecond", getLinesPerSecond());
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, Object> field : fields.entrySet())
+            {
+                json.append(json.length() > 1 ? ",\n  " : "\n  ");
+                appendJsonString(json, field.getKey()).append(": ");
+                Object value = field.getValue();
+                if (value instanceof Double)
+                {
+                    json.append(String.format(Locale.ROOT, "%.6f", (Double) value));
+                }
+                else if (value instanceof Number)
+                {
+                    json.append(value);
+                }
+                else
+                {
+                    appendJsonString(json, String.valueOf(value));
+                }
+            }
+            return json.append("\n}\n").toString();
+        }
+
+        private static StringBuilder appendJsonString(StringBuilder json, String text)
+        {
+            json.append('"');
+            for (int i = 0; i < text.length(); i++)
+            {
+                char ch = text.charAt(i);
+                if (ch == '"' || ch == '\\')
+                {
+                    json.append('\\').append(ch);
+                }
+                else if (ch < 0x20)
+                {
+                    json.append(String.format("\\u%04x", (int) ch));
+                }
+                else
+                {
+                    json.append(ch);
+                }
+            }
+            return json.append('"');
+        }
+    }
+
+    /**
+     * Publishes a run's statistics as the MBean "CipherSolver:type=Processing" and prints a progress
+     * line to stderr every second (rewritten in place on a terminal, every fifth one otherwise) until
+     * closed. While another run in the same JVM holds that name, the MBean gets a key of its own,
+     * "CipherSolver:type=Processing,run=N". Registration problems only disable the MBean; they never
+     * stop the run.
+     */
+    static final class ProcessingMonitor implements AutoCloseable
+    {
+        private static final long INTERVAL_MILLIS = 1000;
+        private static final AtomicLong RUNS = new AtomicLong();
+
+        private final ProcessingStats stats;
+        private final Thread reporter;
+        private ObjectName name;
+        private boolean printed;
+
+        ProcessingMonitor(ProcessingStats stats)
+        {
+            this.stats = stats;
+            try
+            {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                StandardMBean bean = new StandardMBean(stats, ProcessingStatsMBean.class);
+                ObjectName candidate = new ObjectName("CipherSolver:type=Processing");
+                try
+                {
+                    server.registerMBean(bean, candidate);
+                }
+                catch (InstanceAlreadyExistsException e)
+                {
+                    candidate = new ObjectName("CipherSolver:type=Processing,run=" + RUNS.incrementAndGet());
+                    server.registerMBean(bean, candidate);
+                }
+                name = candidate;
+            }
+            catch (JMException e)
+            {
+                System.err.println("Statistics are not published over JMX: " + e.getMessage());
+            }
+            boolean terminal = System.console() != null;
+            reporter = new Thread(() ->
+            {
+                try
+                {
+                    for (int tick = 1; ; tick++)
+                    {
+                        Thread.sleep(INTERVAL_MILLIS);
+                        if (terminal)
+                        {
+                            System.err.print("\r" + stats.progressLine());
+                            printed = true;
+                        }
+                        else if (tick % 5 == 0)
+                        {
+                            System.err.println(stats.progressLine());
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // Closed.
+                }
+            }, "cipher-progress");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        @Override
+        public void close()
+        {
+            stats.stop();
+            reporter.interrupt();
+            try
+            {
+                reporter.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (printed)
+            {
+                System.err.println("\r" + stats.progressLine());
+            }
+            if (name != null)
+            {
+                try
+                {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+                }
+                catch (JMException e)
+                {
+                    // Already gone.
+                }
+            }
+        }
+    }
+
+    // ***********************
+    // Batch Mode
+    // ***********************
+
+    /**
+     * What to run over a file or a text: the cipher (or chain), the direction and the options. Shared
+     * by --batch, the cipher service and its client, which all describe a job with the same names.
+     */
+    record CipherJob(Cipher cipher, boolean encrypt, CipherOptions options)
+    {
+        /**
+         * Reads cipher or chain, action, key, a, b, c, block, rails and offset from values into
+         * options, which already holds the flags and parameters, and checks them; throws
+         * IllegalArgumentException with a message for the user.
+         */
+        static CipherJob parse(Map<String, String> values, CipherOptions options, CipherRegistry registry)
+        {
+            Cipher cipher = registry.byName(values.getOrDefault("cipher", ""));
+            if (values.containsKey("chain"))
+            {
+                if (values.containsKey("cipher"))
+                {
+                    throw new IllegalArgumentException("Give either --cipher or --chain, not both");
+                }
+                try
+                {
+                    cipher = CipherChain.parse(values.get("chain"), registry);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IllegalArgumentException("Invalid --chain: " + e.getMessage());
+                }
+            }
+            String action = values.getOrDefault("action", "");
+            if (cipher == null)
+            {
+                throw new IllegalArgumentException("Unknown cipher " + values.getOrDefault("cipher", "(none)"));
+            }
+            if (!action.equals("encrypt") && !action.equals("decrypt"))
+            {
+                throw new IllegalArgumentException("Action must be encrypt or decrypt");
+            }
+            try
+            {
+                options.key = values.getOrDefault("key", "");
+                options.a = Integer.parseInt(values.getOrDefault("a", "5"));
+                options.b = Integer.parseInt(values.getOrDefault("b", "8"));
+                options.c = Integer.parseInt(values.getOrDefault("c", "21"));
+                options.railBlockSize = Integer.parseInt(values.getOrDefault("block", "0"));
+                if (values.containsKey("rails") || values.containsKey("offset"))
+                {
+                    options.fence = new RailFence(Integer.parseInt(values.getOrDefault("rails", "3")),
+                            Integer.parseInt(values.getOrDefault("offset", "0")));
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+            }
+            if (options.railBlockSize < 0)
+            {
+                throw new IllegalArgumentException("--block must not be negative");
+            }
+            if (cipher.name().equals("vigenere") && options.key.isEmpty())
+            {
+                throw new IllegalArgumentException("The Vigenère cipher needs --key");
+            }
+            if (cipher.name().equals("affine") && (options.a * options.c) % 26 != 1)
+            {
+                throw new IllegalArgumentException("Affine parameters need (a * c) mod 26 = 1");
+            }
+            return new CipherJob(cipher, action.equals("encrypt"), options);
+        }
+
+        CipherSession open()
+        {
+            return cipher.open(encrypt, options);
+        }
+    }
+
+    /**
+     * Non-interactive mode: one JVM processes every file of a directory or glob.
+     *
+     * <pre>
+     * java Cypher_Solver.java --batch --cipher vigenere --action decrypt --key LEMON \
+     *         --input 'logs/*.txt' --output out [--jobs 8]
+     * </pre>
+     *
+     * Other options: --continuous-key (Vigenère), --a/--b/--c (Affine), --rails/--offset/--block
+     * (Rail‑Fence), --packed (Baconian) and --param name=value for plugin ciphers. --chain SPEC takes
+     * the place of --cipher to run several ciphers in one pass (see CipherChain). Files are read and
+     * written on virtual threads when the runtime has them and on a fixed pool otherwise; at most
+     * --jobs files are in flight at once, and large files are transformed on the common fork/join
+     * pool by processFile(). Each output keeps the input's path relative to the directory (or the
+     * fixed part of the glob); a batch in which two inputs would share an output, or an output would
+     * replace another input, is refused before any file is written. Outputs are written under a
+     * temporary name and renamed when complete (see replaceOutput()). Progress goes to stderr, the
+     * statistics are published over JMX while the batch runs, and --summary writes them as JSON at
+     * the end.
+     *
+     * Files larger than --checkpoint-mb (256 by default, 0 for none) are checkpointed as they are
+     * written. After a crash, running the same command with --resume continues every checkpointed
+     * file where it stopped (its temporary output is kept for that) and skips those that had finished;
+     * the journals are removed once the whole batch succeeds.
+     *
+     * --pipeline runs every file through PipelinedFileEngine; --queue-depth (4 by default) and
+     * --buffer-kb (1024 by default) size its queues and buffers and imply --pipeline.
+     *
+     * --delta re-runs a batch over inputs that changed since the last one, reusing the unchanged
+     * blocks of every output (see processDelta()); it takes the place of checkpoints and the pipeline.
+     *
+     * Gzip inputs, and zlib inputs named .zz or .zlib, are decompressed as they are read, and their
+     * outputs lose the .gz, .zz or .zlib suffix; a file that only has such a name is plain text and
+     * keeps it. --compress gzips every output and adds .gz instead. Compressed files stream through
+     * the pipeline and are never checkpointed (see processCompressed()).
+     *
+     * With --action encrypt, --index-lines N writes a LineIndex next to every output so that --range
+     * can decrypt parts of it later.
+     */
+    static final class BatchRunner
+    {
+        private static final String USAGE = "Usage: --batch --cipher NAME|--chain SPEC --action encrypt|decrypt --input DIR|GLOB "
+                + "--output DIR [--key K] [--continuous-key] [--a N --b N --c N] [--rails N --offset N --block N] [--packed] "
+                + "[--param NAME=VALUE] [--jobs N] [--summary FILE.json] [--checkpoint-mb N] [--resume] "
+                + "[--pipeline] [--queue-depth N] [--buffer-kb N] [--delta] [--compress] [--index-lines N]";
+
+        private final Cipher cipher;
+        private final boolean encrypt;
+        private final CipherOptions options;
+        private final boolean packed;
+        private final Path output;
+        private final int jobs;
+        private final CheckpointPolicy checkpoints;
+        private final PipelinedFileEngine.Settings pipeline;
+        private final boolean delta;
+        private final boolean compress;
+        private final int indexLines;
+        private ProcessingStats stats;
+
+        BatchRunner(Cipher cipher, boolean encrypt, CipherOptions options, boolean packed, Path output, int jobs,
+                CheckpointPolicy checkpoints, PipelinedFileEngine.Settings pipeline, boolean delta, boolean compress,
+                int indexLines)
+        {
+            this.cipher = cipher;
+            this.encrypt = encrypt;
+            this.options = options;
+            this.packed = packed;
+            this.output = output;
+            this.jobs = jobs;
+            this.checkpoints = checkpoints;
+            this.pipeline = pipeline;
+            this.delta = delta;
+            this.compress = compress;
+            this.indexLines = indexLines;
+        }
+
+        /**
+         * Parses the arguments that follow --batch, runs the batch and returns the process exit code:
+         * 0 when every file succeeded, 1 when some failed and 2 for invalid arguments.
+         */
+        static int run(String[] args)
+        {
+            Map<String, String> values = new HashMap<>();
+            CipherOptions options = new CipherOptions();
+            boolean packed = false;
+            boolean resume = false;
+            boolean pipelined = false;
+            boolean delta = false;
+            boolean compress = false;
+            int indexLines = 0;
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("--packed"))
+                {
+                    packed = true;
+                }
+                else if (arg.equals("--delta"))
+                {
+                    delta = true;
+                }
+                else if (arg.equals("--compress"))
+                {
+                    compress = true;
+                }
+                else if (arg.equals("--pipeline"))
+                {
+                    pipelined = true;
+                }
+                else if (arg.equals("--resume"))
+                {
+                    resume = true;
+                }
+                else if (arg.equals("--continuous-key"))
+                {
+                    options.continuousKey = true;
+                }
+                else if (arg.startsWith("--") && i + 1 < args.length)
+                {
+                    String value = args[++i];
+                    if (arg.equals("--param"))
+                    {
+                        int equals = value.indexOf('=');
+                        if (equals <= 0)
+                        {
+                            return usage("Invalid --param " + value);
+                        }
+                        options.parameters.put(value.substring(0, equals), value.substring(equals + 1));
+                    }
+                    else
+                    {
+                        values.put(arg.substring(2), value);
+                    }
+                }
+                else
+                {
+                    return usage("Unexpected argument " + arg);
+                }
+            }
+
+            CipherJob job;
+            try
+            {
+                job = CipherJob.parse(values, options, CipherRegistry.load());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return usage(e.getMessage());
+            }
+            Cipher cipher = job.cipher();
+            String action = job.encrypt() ? "encrypt" : "decrypt";
+            if (!values.containsKey("input") || !values.containsKey("output"))
+            {
+                return usage("Both --input and --output are required");
+            }
+            int jobs;
+            long checkpointMb;
+            PipelinedFileEngine.Settings pipeline = null;
+            try
+            {
+                jobs = Integer.parseInt(values.getOrDefault("jobs",
+                        String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+                checkpointMb = Long.parseLong(values.getOrDefault("checkpoint-mb",
+                        String.valueOf(CheckpointPolicy.DEFAULT_INTERVAL_MB)));
+                if (pipelined || values.containsKey("queue-depth") || values.containsKey("buffer-kb"))
+                {
+                    pipeline = PipelinedFileEngine.Settings.of(
+                            Integer.parseInt(values.getOrDefault("queue-depth", String.valueOf(PipelinedFileEngine.DEFAULT_QUEUE_DEPTH))),
+                            Integer.parseInt(values.getOrDefault("buffer-kb", String.valueOf(PipelinedFileEngine.DEFAULT_BUFFER_KB))));
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                return usage("Invalid number: " + e.getMessage());
+            }
+            if (values.containsKey("index-lines"))
+            {
+                try
+                {
+                    indexLines = Integer.parseInt(values.get("index-lines"));
+                }
+                catch (NumberFormatException e)
+                {
+                    return usage("Invalid number: " + e.getMessage());
+                }
+                if (indexLines < 1 || !job.encrypt() || delta || packed)
+                {
+                    return usage("--index-lines needs a positive count, --action encrypt and neither --delta nor --packed");
+                }
+            }
+            if (jobs < 1)
+            {
+                return usage("--jobs must be at least 1");
+            }
+            if (checkpointMb < 0)
+            {
+                return usage("--checkpoint-mb must not be negative");
+            }
+            if (packed && !cipher.name().equals("baconian"))
+            {
+                return usage("--packed only applies to the Baconian cipher");
+            }
+            if (packed && (delta || compress))
+            {
+                return usage((delta ? "--delta" : "--compress") + " does not apply to --packed");
+            }
+
+            try
+            {
+                CheckpointPolicy checkpoints = new CheckpointPolicy(checkpointMb << 20, resume, true,
+                        CheckpointPolicy.fingerprint(cipher, job.encrypt(), options));
+                BatchRunner runner = new BatchRunner(cipher, job.encrypt(), options, packed,
+                        Paths.get(values.get("output")), jobs, checkpoints, pipeline, delta, compress, indexLines);
+                int status = runner.process(values.get("input"));
+                if (values.containsKey("summary"))
+                {
+                    Map<String, Object> run = new LinkedHashMap<>();
+                    run.put("action", action);
+                    run.put("input", values.get("input"));
+                    run.put("output", values.get("output"));
+                    run.put("exitCode", status);
+                    Files.writeString(Paths.get(values.get("summary")), runner.stats.toJson(run));
+                }
+                return status;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing the batch: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        private static int usage(String message)
+        {
+            System.err.println(message);
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        /**
+         * Processes every input of the specification and prints a summary; returns the exit code.
+         */
+        int process(String inputSpec) throws IOException
+        {
+            Path base = baseDirectory(inputSpec);
+            List<Path> inputs = resolveInputs(inputSpec, base);
+            Map<Path, Path> targets = targets(base, inputs);
+            List<String> failures = Collections.synchronizedList(new ArrayList<>());
+            LongAdder bytes = new LongAdder();
+            Semaphore permits = new Semaphore(jobs);
+            long start = System.nanoTime();
+            long totalBytes = 0;
+            for (Path input : inputs)
+            {
+                totalBytes += Files.size(input);
+            }
+            stats = new ProcessingStats(cipher.name(), totalBytes);
+
+            ExecutorService executor = newFileExecutor(jobs);
+            ProcessingMonitor monitor = new ProcessingMonitor(stats);
+            try
+            {
+                List<Future<?>> tasks = new ArrayList<>(inputs.size());
+                for (Path input : inputs)
+                {
+                    permits.acquireUninterruptibly();
+                    tasks.add(executor.submit(() ->
+                    {
+                        try
+                        {
+                            processOne(input, targets.get(input));
+                            bytes.add(Files.size(input));
+                        }
+                        catch (IOException | RuntimeException e)
+                        {
+                            failures.add(input + ": " + e.getMessage());
+                        }
+                        finally
+                        {
+                            permits.release();
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks)
+                {
+                    try
+                    {
+                        task.get();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while processing the batch");
+                    }
+                    catch (ExecutionException e)
+                    {
+                        failures.add(e.getCause().toString());
+                    }
+                }
+            }
+            finally
+            {
+                monitor.close();
+                executor.shutdown();
+            }
+
+            double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.out.printf(Locale.ROOT, "Processed %d of %d files, %d bytes in %.3f s (%.1f MB/s)%n",
+                    inputs.size() - failures.size(), inputs.size(), bytes.sum(), seconds,
+                    bytes.sum() / seconds / (1 << 20));
+            Collections.sort(failures);
+            for (String failure : failures)
+            {
+                System.out.println("FAILED " + failure);
+            }
+            if (!failures.isEmpty())
+            {
+                return 1;
+            }
+            // Finished files kept their journals in case the batch had to be resumed; it does not.
+            for (Path target : targets.values())
+            {
+                Files.deleteIfExists(CheckpointJournal.pathFor(target));
+            }
+            return 0;
+        }
+
+        /**
+         * The output of every input, in input order. Fails before anything is written when two inputs
+         * would get the same output (a.txt and a.txt.gz both give a.txt) or an output would replace
+         * another input.
+         */
+        private Map<Path, Path> targets(Path base, List<Path> inputs) throws IOException
+        {
+            Map<Path, Path> targets = new LinkedHashMap<>();
+            Map<Path, Path> writers = new HashMap<>();
+            Set<Path> sources = new HashSet<>();
+            for (Path input : inputs)
+            {
+                sources.add(input.toAbsolutePath().normalize());
+            }
+            for (Path input : inputs)
+            {
+                Path target = outputFor(base, input);
+                Path key = target.toAbsolutePath().normalize();
+                Path other = writers.putIfAbsent(key, input);
+                if (other != null)
+                {
+                    throw new IOException(other + " and " + input + " would both be written to " + target);
+                }
+                if (sources.contains(key) && !key.equals(input.toAbsolutePath().normalize()))
+                {
+                    throw new IOException("the output of " + input + " would overwrite the input " + target);
+                }
+                targets.put(input, target);
+            }
+            return targets;
+        }
+
+        private void processOne(Path input, Path target) throws IOException
+        {
+            if (Files.exists(target) && Files.isSameFile(input, target))
+            {
+                throw new IOException("output would overwrite the input");
+            }
+            Path parent = target.getParent();
+            if (parent != null)
+            {
+                Files.createDirectories(parent);
+            }
+            if (delta)
+            {
+                // processDelta() replaces the output its own way.
+                write(input, target);
+                return;
+            }
+            replaceOutput(target, checkpoints.resume(), temporary -> write(input, temporary));
+        }
+
+        private void write(Path input, Path target) throws IOException
+        {
+            if (packed && encrypt)
+            {
+                BaconianPacked.encodeFile(input, target, Charset.defaultCharset());
+            }
+            else if (packed)
+            {
+                BaconianPacked.decodeFile(input, target, Charset.defaultCharset());
+            }
+            else if (delta)
+            {
+                processDelta(input, target, () -> cipher.open(encrypt, options), stats, checkpoints.job());
+            }
+            else if (indexLines > 0)
+            {
+                processIndexed(input, target, () -> cipher.open(encrypt, options), stats, checkpoints, pipeline,
+                        indexLines, checkpoints.job());
+            }
+            else
+            {
+                processFile(input, target, () -> cipher.open(encrypt, options), stats, checkpoints, pipeline);
+            }
+        }
+
+        private Path outputFor(Path base, Path input) throws IOException
+        {
+            Path relative = base == null ? input.getFileName() : base.relativize(input);
+            if (packed)
+            {
+                String name = relative.getFileName().toString();
+                name = encrypt ? name + ".bac" : name.endsWith(".bac") ? name.substring(0, name.length() - 4) : name;
+                relative = relative.resolveSibling(name);
+            }
+            else
+            {
+                String name = relative.getFileName().toString();
+                name = Compression.detect(input).plainName(name);
+                relative = relative.resolveSibling(compress ? name + Compression.GZIP.suffix : name);
+            }
+            return output.resolve(relative);
+        }
+
+        // The directory itself, the part of a glob before its first wildcard, or null for a single file.
+        private static Path baseDirectory(String spec)
+        {
+            Path path = Paths.get(spec);
+            if (Files.isDirectory(path))
+            {
+                return path;
+            }
+            int wildcard = firstWildcard(spec);
+            if (wildcard < 0)
+            {
+                return null;
+            }
+            int separator = spec.lastIndexOf(File.separatorChar, wildcard);
+            return separator < 0 ? Paths.get("") : Paths.get(spec.substring(0, separator + 1));
+        }
+
+        private static int firstWildcard(String spec)
+        {
+            for (int i = 0; i < spec.length(); i++)
+            {
+                if ("*?[{".indexOf(spec.charAt(i)) >= 0)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static List<Path> resolveInputs(String spec, Path base) throws IOException
+        {
+            Path path = Paths.get(spec);
+            if (base == null)
+            {
+                if (!Files.isRegularFile(path))
+                {
+                    throw new IOException("No such file or directory: " + spec);
+                }
+                return List.of(path);
+            }
+            PathMatcher matcher = Files.isDirectory(path) ? file -> true
+                    : FileSystems.getDefault().getPathMatcher("glob:" + spec);
+            try (Stream<Path> files = Files.walk(base))
+            {
+                return files.filter(Files::isRegularFile)
+                        .filter(matcher::matches)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+
+        // Virtual threads when the runtime provides them (Java 21+), otherwise a fixed pool.
+        static ExecutorService newFileExecutor(int jobs)
+        {
+            try
+            {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                return Executors.newFixedThreadPool(jobs);
+            }
+        }
+    }
+
+    // ***********************
+    // Cipher Service
+    // ***********************
+
+    /**
+     * Long-running local service, so that small jobs do not pay for JVM startup and for running the
+     * ciphers cold in the interpreter.
+     *
+     * <pre>
+     * java Cypher_Solver.java --serve [--port N] [--max-jobs N]
+     * java Cypher_Solver.java --submit --cipher vigenere --action encrypt --key LEMON --input a.txt --output a.enc
+     * echo "ATTACK AT DAWN" | java Cypher_Solver.java --submit --cipher affine --action encrypt
+     * java Cypher_Solver.java --submit --shutdown
+     * </pre>
+     *
+     * The service answers POST /job with the job in the query string, under the names --batch uses
+     * (cipher or chain, action, key, continuous-key=true, a, b, c, rails, offset, block and
+     * param=NAME=VALUE). With input and output paths it processes the file and answers with the JSON
+     * summary of the run; without them the request body is the text, in UTF‑8, and the response body
+     * is its transformation, line by line as in a file. POST /shutdown stops the service.
+     *
+     * It listens on the loopback address only, on the given port or a free one, and runs jobs on
+     * virtual threads where the runtime has them, at most --max-jobs at a time; further requests
+     * wait for a slot. Because any local user can reach a loopback port, every request must carry the
+     * random token that the service writes, with its port, to SERVICE_FILE, readable by its owner
+     * only; --submit reads both from there. Ciphers are warmed up before the port opens.
+     */
+    static final class CipherService
+    {
+        static final Path SERVICE_FILE = Paths.get(System.getProperty("user.home"), ".cipher-solver", "service");
+        static final String TOKEN_HEADER = "X-Cipher-Token";
+        static final int MAX_INLINE_BYTES = 64 << 20;
+        private static final String USAGE = "Usage: --serve [--port N] [--max-jobs N]";
+
+        private final HttpServer server;
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final byte[] token;
+        private final CipherRegistry registry = CipherRegistry.load();
+        private final CountDownLatch stopping = new CountDownLatch(1);
+        private final LongAdder served = new LongAdder();
+
+        CipherService(int port, int maxJobs, String token) throws IOException
+        {
+            this.token = token.getBytes(StandardCharsets.US_ASCII);
+            this.permits = new Semaphore(maxJobs);
+            this.executor = BatchRunner.newFileExecutor(maxJobs);
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/job", this::handleJob);
+            server.createContext("/shutdown", this::handleShutdown);
+            server.setExecutor(executor);
+        }
+
+        /**
+         * Command-line entry for --serve; runs until /shutdown and returns the process exit code.
+         */
+        static int run(String[] args)
+        {
+            int port = 0;
+            int maxJobs = 2 * Runtime.getRuntime().availableProcessors();
+            try
+            {
+                for (int i = 0; i < args.length; i++)
+                {
+                    if (args[i].equals("--port") && i + 1 < args.length)
+                    {
+                        port = Integer.parseInt(args[++i]);
+                    }
+                    else if (args[i].equals("--max-jobs") && i + 1 < args.length)
+                    {
+                        maxJobs = Integer.parseInt(args[++i]);
+                    }
+                    else
+                    {
+                        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                    }
+                }
+                if (port < 0 || port > 65535 || maxJobs < 1)
+                {
+                    throw new IllegalArgumentException("The port must be 0 to 65535 and --max-jobs at least 1");
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println(e.getMessage());
+                System.err.println(USAGE);
+                return 2;
+            }
+
+            try
+            {
+                warmUp();
+                byte[] random = new byte[16];
+                new SecureRandom().nextBytes(random);
+                String token = HexFormat.of().formatHex(random);
+                CipherService service = new CipherService(port, maxJobs, token);
+                service.serve(token);
+                return 0;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error running the service: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        /**
+         * Starts answering requests on the calling process's behalf and returns the port.
+         */
+        int start()
+        {
+            server.start();
+            return server.getAddress().getPort();
+        }
+
+        /**
+         * Stops answering requests; jobs that are running are given a second to finish.
+         */
+        void stop()
+        {
+            server.stop(1);
+            executor.shutdown();
+        }
+
+        private void serve(String token) throws IOException
+        {
+            int port = start();
+            Thread cleanup = new Thread(() -> deleteServiceFile(port));
+            Runtime.getRuntime().addShutdownHook(cleanup);
+            writeServiceFile(port, token);
+            System.out.printf(Locale.ROOT, "Cipher service on http://127.0.0.1:%d/ running up to %d jobs at a time; "
+                    + "port and token in %s%n", port, permits.availablePermits(), SERVICE_FILE);
+            try
+            {
+                stopping.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            stop();
+            deleteServiceFile(port);
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+            System.out.printf(Locale.ROOT, "Served %,d jobs%n", served.sum());
+        }
+
+        // Runs every built-in cipher both ways over some text, so the first jobs find them compiled.
+        private static void warmUp() throws IOException
+        {
+            byte[] text = Benchmarks.text("mixed", 64 << 10).getBytes(StandardCharsets.UTF_8);
+            CipherOptions options = new CipherOptions();
+            options.key = "LEMON";
+            for (Cipher cipher : CipherRegistry.load().all())
+            {
+                for (int round = 0; round < 20; round++)
+                {
+                    for (boolean encrypt : new boolean[] {true, false})
+                    {
+                        new MappedFileEngine(cipher.open(encrypt, options), StandardCharsets.UTF_8)
+                                .process(ByteBuffer.wrap(text), new ChunkOutput(text.length));
+                    }
+                }
+            }
+        }
+
+        private void handleJob(HttpExchange exchange) throws IOException
+        {
+            try (exchange)
+            {
+                if (!authorized(exchange))
+                {
+                    return;
+                }
+                Map<String, String> values = new HashMap<>();
+                CipherOptions options = new CipherOptions();
+                CipherJob job;
+                try
+                {
+                    parseQuery(exchange.getRequestURI().getRawQuery(), values, options);
+                    job = CipherJob.parse(values, options, registry);
+                    if (values.containsKey("input") != values.containsKey("output"))
+                    {
+                        throw new IllegalArgumentException("Give both input and output, or neither for inline text");
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    respond(exchange, 400, e.getMessage());
+                    return;
+                }
+
+                try
+                {
+                    permits.acquire();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    respond(exchange, 503, "The service is stopping");
+                    return;
+                }
+                try
+                {
+                    if (values.containsKey("input"))
+                    {
+                        runFile(exchange, job, Paths.get(values.get("input")), Paths.get(values.get("output")));
+                    }
+                    else
+                    {
+                        runInline(exchange, job);
+                    }
+                    served.increment();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    System.err.println("Job failed: " + e);
+                    respond(exchange, 500, "Error processing the job: " + e.getMessage());
+                }
+                finally
+                {
+                    permits.release();
+                }
+            }
+        }
+
+        private void runFile(HttpExchange exchange, CipherJob job, Path input, Path output) throws IOException
+        {
+            if (!Files.isRegularFile(input))
+            {
+                respond(exchange, 400, "No such file: " + input);
+                return;
+            }
+            if (Files.exists(output) && Files.isSameFile(input, output))
+            {
+                respond(exchange, 400, "The output would overwrite the input");
+                return;
+            }
+            ProcessingStats stats = new ProcessingStats(job.cipher().name(), Files.size(input));
+            replaceOutput(output, false, target -> processFile(input, target, job::open, stats));
+            stats.stop();
+            Map<String, Object> run = new LinkedHashMap<>();
+            run.put("action", job.encrypt() ? "encrypt" : "decrypt");
+            run.put("input", input.toString());
+            run.put("output", output.toString());
+            byte[] json = stats.toJson(run).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, json.length);
+            exchange.getResponseBody().write(json);
+        }
+
+        private void runInline(HttpExchange exchange, CipherJob job) throws IOException
+        {
+            byte[] text = exchange.getRequestBody().readNBytes(MAX_INLINE_BYTES + 1);
+            if (text.length > MAX_INLINE_BYTES)
+            {
+                respond(exchange, 413, "Inline text is limited to " + (MAX_INLINE_BYTES >> 20) + " MB; send a file instead");
+                return;
+            }
+            ChunkOutput result = new ChunkOutput(text.length);
+            new MappedFileEngine(job.open(), StandardCharsets.UTF_8).process(ByteBuffer.wrap(text), result);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(200, result.size());
+            result.writeTo(Channels.newChannel(exchange.getResponseBody()));
+        }
+
+        private void handleShutdown(HttpExchange exchange) throws IOException
+        {
+            try (exchange)
+            {
+                if (authorized(exchange))
+                {
+                    respond(exchange, 200, "Stopping");
+                    stopping.countDown();
+                }
+            }
+        }
+
+        // Only POST requests with the service's token are served; anything else gets its error here.
+        private boolean authorized(HttpExchange exchange) throws IOException
+        {
+            if (!exchange.getRequestMethod().equals("POST"))
+            {
+                respond(exchange, 405, "Use POST");
+                return false;
+            }
+            String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.US_ASCII)))
+            {
+                respond(exchange, 403, "Missing or wrong " + TOKEN_HEADER);
+                return false;
+            }
+            return true;
+        }
+
+        private static void respond(HttpExchange exchange, int status, String message) throws IOException
+        {
+            byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+
+        // name=value pairs; continuous-key is a flag and param adds a plugin parameter, as in --batch.
+        private static void parseQuery(String query, Map<String, String> values, CipherOptions options)
+        {
+            if (query == null || query.isEmpty())
+            {
+                return;
+            }
+            for (String pair : query.split("&"))
+            {
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                if (name.equals("continuous-key"))
+                {
+                    options.continuousKey = value.isEmpty() || Boolean.parseBoolean(value);
+                }
+                else if (name.equals("param"))
+                {
+                    int separator = value.indexOf('=');
+                    if (separator <= 0)
+                    {
+                        throw new IllegalArgumentException("Invalid param " + value);
+                    }
+                    options.parameters.put(value.substring(0, separator), value.substring(separator + 1));
+                }
+                else
+                {
+                    values.put(name, value);
+                }
+            }
+        }
+
+        // Written to a temporary file that only the owner can read, then moved into place.
+        private static void writeServiceFile(int port, String token) throws IOException
+        {
+            Files.createDirectories(SERVICE_FILE.getParent());
+            Path temporary = SERVICE_FILE.resolveSibling(SERVICE_FILE.getFileName() + ".tmp");
+            Files.deleteIfExists(temporary);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            {
+                Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            else
+            {
+                Files.createFile(temporary);
+            }
+            Properties properties = new Properties();
+            properties.setProperty("port", String.valueOf(port));
+            properties.setProperty("token", token);
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.ISO_8859_1))
+            {
+                properties.store(writer, "Cipher service");
+            }
+            Files.move(temporary, SERVICE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Leaves the file alone if another service has taken it over since.
+        private static void deleteServiceFile(int port)
+        {
+            try
+            {
+                Properties properties = readServiceFile();
+                if (properties != null && properties.getProperty("port", "").equals(String.valueOf(port)))
+                {
+                    Files.deleteIfExists(SERVICE_FILE);
+                }
+            }
+            catch (IOException e)
+            {
+                // The file is rewritten by the next service anyway.
+            }
+        }
+
+        static Properties readServiceFile() throws IOException
+        {
+            if (!Files.exists(SERVICE_FILE))
+            {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(SERVICE_FILE, StandardCharsets.ISO_8859_1))
+            {
+                properties.load(reader);
+            }
+            return properties;
+        }
+    }
+
+    /**
+     * The --submit command: sends one job to the running CipherService and prints its answer.
+     *
+     * The options are those of --batch for a single file (--input and --output are made absolute,
+     * since the service has its own working directory); without them the text is read from stdin
+     * and the result written to stdout. --shutdown stops the service instead. The exit code is 0
+     * when the service answered the job, 1 when it refused or failed it and 2 for invalid arguments
+     * or when no service is running.
+     */
+    static final class CipherClient
+    {
+        private static final String USAGE = "Usage: --submit --cipher NAME|--chain SPEC --action encrypt|decrypt [--key K] "
+                + "[--continuous-key] [--a N --b N --c N] [--rails N --offset N --block N] [--param NAME=VALUE] "
+                + "[--input FILE --output FILE], or --submit --shutdown";
+
+        private CipherClient() {}
+
+        static int run(String[] args)
+        {
+            StringBuilder query = new StringBuilder();
+            boolean shutdown = false;
+            boolean files = false;
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("--shutdown"))
+                {
+                    shutdown = true;
+                }
+                else if (arg.equals("--continuous-key"))
+                {
+                    appendParameter(query, "continuous-key", "true");
+                }
+                else if (arg.startsWith("--") && i + 1 < args.length)
+                {
+                    String name = arg.substring(2);
+                    String value = args[++i];
+                    if (name.equals("input") || name.equals("output"))
+                    {
+                        value = Paths.get(value).toAbsolutePath().toString();
+                        files = true;
+                    }
+                    appendParameter(query, name, value);
+                }
+                else
+                {
+                    System.err.println("Unexpected argument " + arg);
+                    System.err.println(USAGE);
+                    return 2;
+                }
+            }
+
+            try
+            {
+                Properties service = CipherService.readServiceFile();
+                if (service == null)
+                {
+                    System.err.println("No cipher service is running; start one with --serve");
+                    return 2;
+                }
+                int status = send(service, shutdown ? "/shutdown" : "/job?" + query,
+                        shutdown || files ? null : System.in, System.out, System.err);
+                System.out.flush();
+                return status < 400 ? 0 : 1;
+            }
+            catch (ConnectException e)
+            {
+                System.err.println("The cipher service is not answering; start one with --serve");
+                return 2;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error talking to the cipher service: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        /**
+         * POSTs body, or nothing when it is null, to the path of the service described by the
+         * properties of its service file. The answer goes to out, or to err for an error status,
+         * which is returned.
+         */
+        static int send(Properties service, String path, InputStream body, OutputStream out, OutputStream err)
+                throws IOException
+        {
+            URL url = URI.create("http://127.0.0.1:" + service.getProperty("port") + path).toURL();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty(CipherService.TOKEN_HEADER, service.getProperty("token", ""));
+            connection.setDoOutput(true);
+            try (OutputStream request = connection.getOutputStream())
+            {
+                if (body != null)
+                {
+                    body.transferTo(request);
+                }
+            }
+            int status = connection.getResponseCode();
+            try (InputStream answer = status < 400 ? connection.getInputStream() : connection.getErrorStream())
+            {
+                if (answer != null)
+                {
+                    answer.transferTo(status < 400 ? out : err);
+                }
+            }
+            return status;
+        }
+
+        private static void appendParameter(StringBuilder query, String name, String value)
+        {
+            if (query.length() > 0)
+            {
+                query.append('&');
+            }
+            query.append(URLEncoder.encode(name, StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    // ***********************
+    // Benchmarks
+    // ***********************
+
+    /**
+     * Built-in throughput benchmark for every cipher routine and for the file pipeline.
+     *
+     * <pre>
+     * java Cypher_Solver.java --bench [--sizes 64,4096,...] [--routines vigenere,affine,...]
+     *         [--alphabets upper,mixed,unicode] [--seconds 1] [--warmup 0.5] [--no-files]
+     * </pre>
+     *
+     * Each encrypt and decrypt method runs on generated text of every size and alphabet (decrypt
+     * methods get the matching ciphertext). After a warm-up, it is repeated for a fixed time and
+     * reported as operations per second, input megabytes per second and bytes allocated per
+     * operation, measured by the thread allocation counter of the HotSpot ThreadMXBean. Vigenère and
+     * Affine also run as "enc-char" and "dec-char", the char path instead of their byte paths. The
+     * file section times processFile() end to end on a temporary file of each size, with the usual
+     * engines, with the pipelined one, and as "chars" with every line decoded instead of passed to
+     * the session as ASCII bytes. Combinations whose working set would not fit comfortably in the
+     * heap are reported as skipped.
+     */
+    static final class Benchmarks
+    {
+        private static final int[] DEFAULT_SIZES = {64, 4 << 10, 256 << 10, 16 << 20, 64 << 20};
+        private static final String UNICODE_EXTRAS = "éßΩ漢字😀ÄöñЖ";
+
+        private record Routine(String cipher, String direction, UnaryOperator<String> operation,
+                               UnaryOperator<String> prepare) {}
+
+        private static volatile long sink;
+
+        private Benchmarks() {}
+
+        /**
+         * Parses the arguments that follow --bench and runs the selected benchmarks; returns the exit code.
+         */
+        static int run(String[] args)
+        {
+            int[] sizes = DEFAULT_SIZES;
+            List<String> routines = List.of("railfence", "vigenere", "baconian", "affine", "morse");
+            List<String> alphabets = List.of("upper", "mixed", "unicode");
+            double seconds = 1;
+            double warmup = 0.5;
+            boolean files = true;
+            try
+            {
+                for (int i = 0; i < args.length; i++)
+                {
+                    switch (args[i])
+                    {
+                        case "--sizes" -> sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                        case "--routines" -> routines = List.of(args[++i].split(","));
+                        case "--alphabets" -> alphabets = List.of(args[++i].split(","));
+                        case "--seconds" -> seconds = Double.parseDouble(args[++i]);
+                        case "--warmup" -> warmup = Double.parseDouble(args[++i]);
+                        case "--no-files" -> files = false;
+                        default -> throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println(e.getMessage());
+                System.err.println("Usage: --bench [--sizes N,...] [--routines NAME,...] [--alphabets upper,mixed,unicode] "
+                        + "[--seconds S] [--warmup S] [--no-files]");
+                return 2;
+            }
+
+            System.out.printf(Locale.ROOT, "%-10s %-8s %-8s %10s %12s %10s %14s%n",
+                    "routine", "action", "text", "size", "ops/s", "MB/s", "alloc B/op");
+            for (String alphabet : alphabets)
+            {
+                for (int size : sizes)
+                {
+                    String plain = text(alphabet, size);
+                    for (Routine routine : routines())
+                    {
+                        if (routines.contains(routine.cipher()))
+                        {
+                            measure(routine, alphabet, plain, warmup, seconds);
+                        }
+                    }
+                }
+            }
+
+            if (files)
+            {
+                try
+                {
+                    benchmarkFiles(sizes, routines, alphabets, warmup, seconds);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Error benchmarking files: " + e.getMessage());
+                    return 1;
+                }
+            }
+            return 0;
+        }
+
+        private static List<Routine> routines()
+        {
+            UnaryOperator<String> none = UnaryOperator.identity();
+            return List.of(
+                    new Routine("railfence", "encrypt", Main::encryptRailFence, none),
+                    new Routine("railfence", "decrypt", Main::decryptRailFence, Main::encryptRailFence),
+                    new Routine("vigenere", "encrypt", text -> encryptVigenere(text, "LEMON"), none),
+                    new Routine("vigenere", "decrypt", text -> decryptVigenere(text, "LEMON"),
+                            text -> encryptVigenere(text, "LEMON")),
+                    new Routine("vigenere", "enc-char", text -> vigenereChars(text, true), none),
+                    new Routine("vigenere", "dec-char", text -> vigenereChars(text, false),
+                            text -> encryptVigenere(text, "LEMON")),
+                    new Routine("baconian", "encrypt", Main::encryptBaconian, none),
+                    new Routine("baconian", "decrypt", Main::decryptBaconian, Main::encryptBaconian),
+                    new Routine("affine", "encrypt", text -> encryptAffine(text, 5, 8, 21), none),
+                    new Routine("affine", "decrypt", text -> decryptAffine(text, 5, 8, 21),
+                            text -> encryptAffine(text, 5, 8, 21)),
+                    new Routine("affine", "enc-char", text -> affineChars(text, true), none),
+                    new Routine("affine", "dec-char", text -> affineChars(text, false),
+                            text -> encryptAffine(text, 5, 8, 21)),
+                    new Routine("morse", "encrypt", Main::encryptMorseCode, none),
+                    new Routine("morse", "decrypt", Main::decryptMorseCode, Main::encryptMorseCode));
+        }
+
+        // encryptVigenere() and decryptVigenere() as they run for text that is not ASCII.
+        private static String vigenereChars(String text, boolean encrypt)
+        {
+            char[] buffer = text.toUpperCase().toCharArray();
+            VigenereTable.forKey("LEMON", encrypt).transform(buffer, 0, buffer, 0, buffer.length, 0);
+            return new String(buffer);
+        }
+
+        // encryptAffine() and decryptAffine() as they run for text that is not Latin‑1.
+        private static String affineChars(String text, boolean encrypt)
+        {
+            char[] buffer = text.toCharArray();
+            AffineTable.forKey(5, 8, 21, encrypt).transform(buffer, 0, buffer, 0, buffer.length);
+            return new String(buffer);
+        }
+
+        private static void measure(Routine routine, String alphabet, String plain, double warmup, double seconds)
+        {
+            // Baconian and Morse expand about six-fold; leave room for plaintext, input, output and garbage.
+            int expansion = routine.cipher().equals("baconian") || routine.cipher().equals("morse") ? 6 : 1;
+            long workingSet = 2L * plain.length() * (1 + 2 * expansion) * 2;
+            if (workingSet > Runtime.getRuntime().maxMemory() / 2)
+            {
+                System.out.printf(Locale.ROOT, "%-10s %-8s %-8s %10d %12s%n",
+                        routine.cipher(), routine.direction(), alphabet, plain.length(), "skipped (heap)");
+                return;
+            }
+            String input = routine.prepare().apply(plain);
+            long inputBytes = input.getBytes(StandardCharsets.UTF_8).length;
+
+            repeat(routine.operation(), input, warmup);
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            long operations = repeat(routine.operation(), input, seconds);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            allocated = allocatedBytes() - allocated;
+
+            System.out.printf(Locale.ROOT, "%-10s %-8s %-8s %10d %12.1f %10.1f %14s%n",
+                    routine.cipher(), routine.direction(), alphabet, plain.length(), operations / elapsed,
+                    operations * inputBytes / elapsed / (1 << 20),
+                    allocated < 0 ? "n/a" : String.valueOf(allocated / operations));
+        }
+
+        // Runs the operation until the time is up (at least once) and returns how often it ran.
+        private static long repeat(UnaryOperator<String> operation, String input, double seconds)
+        {
+            long deadline = System.nanoTime() + (long) (seconds * 1e9);
+            long operations = 0;
+            long checksum = 0;
+            do
+            {
+                checksum += operation.apply(input).length();
+                operations++;
+            }
+            while (System.nanoTime() < deadline);
+            sink = checksum;
+            return operations;
+        }
+
+        private static void benchmarkFiles(int[] sizes, List<String> routines, List<String> alphabets,
+                                           double warmup, double seconds) throws IOException
+        {
+            System.out.println();
+            System.out.printf(Locale.ROOT, "%-10s %-8s %-8s %10s %10s%n", "file", "action", "text", "size", "MB/s");
+            Path input = Files.createTempFile("cipher-bench", ".txt");
+            Path output = Files.createTempFile("cipher-bench", ".out");
+            try
+            {
+                for (String alphabet : alphabets)
+                {
+                    for (int size : sizes)
+                    {
+                        Files.writeString(input, text(alphabet, size), Charset.defaultCharset(),
+                                StandardOpenOption.TRUNCATE_EXISTING);
+                        long bytes = Files.size(input);
+                        for (Cipher cipher : CipherRegistry.load().all())
+                        {
+                            if (!routines.contains(cipher.name()))
+                            {
+                                continue;
+                            }
+                            CipherOptions options = new CipherOptions();
+                            options.key = "LEMON";
+                            PipelinedFileEngine.Settings pipelined = PipelinedFileEngine.Settings.of(
+                                    PipelinedFileEngine.DEFAULT_QUEUE_DEPTH, PipelinedFileEngine.DEFAULT_BUFFER_KB);
+                            // The usual engines first, then the same work through the three-stage pipeline,
+                            // then the usual engines again with every line decoded.
+                            for (String mode : List.of("encrypt", "pipeline", "chars"))
+                            {
+                                PipelinedFileEngine.Settings pipeline = mode.equals("pipeline") ? pipelined : null;
+                                Supplier<CipherSession> sessions = mode.equals("chars")
+                                        ? () -> new CharLines(cipher.open(true, options))
+                                        : () -> cipher.open(true, options);
+                                long deadline = System.nanoTime() + (long) (warmup * 1e9);
+                                do
+                                {
+                                    processFile(input, output, sessions, null, null, pipeline);
+                                }
+                                while (System.nanoTime() < deadline);
+                                long start = System.nanoTime();
+                                long runs = 0;
+                                do
+                                {
+                                    processFile(input, output, sessions, null, null, pipeline);
+                                    runs++;
+                                }
+                                while (System.nanoTime() - start < seconds * 1e9);
+                                double elapsed = (System.nanoTime() - start) / 1e9;
+                                System.out.printf(Locale.ROOT, "%-10s %-8s %-8s %10d %10.1f%n", cipher.name(),
+                                        mode, alphabet, bytes, runs * bytes / elapsed / (1 << 20));
+                            }
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(input);
+                Files.deleteIfExists(output);
+            }
+        }
+
+        // A session that hides the byte forms of another, so file engines decode every line.
+        private static final class CharLines implements CipherSession
+        {
+            private final CipherSession session;
+
+            CharLines(CipherSession session)
+            {
+                this.session = session;
+            }
+
+            @Override
+            public int maxOutputLength(int inputLength)
+            {
+                return session.maxOutputLength(inputLength);
+            }
+
+            @Override
+            public void transform(CharBuffer source, CharBuffer sink)
+            {
+                session.transform(source, sink);
+            }
+
+            @Override
+            public void endLine(CharBuffer sink)
+            {
+                session.endLine(sink);
+            }
+
+            @Override
+            public boolean streaming()
+            {
+                return session.streaming();
+            }
+
+            @Override
+            public boolean continuous()
+            {
+                return session.continuous();
+            }
+        }
+
+        /**
+         * Deterministic sample text of the given length: "upper" is capital words, "mixed" adds
+         * lower case, digits, punctuation and line breaks, and "unicode" also mixes in accented,
+         * Cyrillic, CJK and supplementary characters.
+         */
+        static String text(String alphabet, int length)
+        {
+            Random random = new Random(42);
+            StringBuilder text = new StringBuilder(length + 2);
+            while (text.length() < length)
+            {
+                int word = 1 + random.nextInt(9);
+                for (int i = 0; i < word; i++)
+                {
+                    char letter = (char) ((alphabet.equals("upper") || random.nextInt(4) == 0 ? 'A' : 'a') + random.nextInt(26));
+                    if (alphabet.equals("unicode") && random.nextInt(12) == 0)
+                    {
+                        int extra = random.nextInt(UNICODE_EXTRAS.length() - 1);
+                        extra -= Character.isLowSurrogate(UNICODE_EXTRAS.charAt(extra)) ? 1 : 0;
+                        text.append(Character.toChars(UNICODE_EXTRAS.codePointAt(extra)));
+                    }
+                    else
+                    {
+                        text.append(letter);
+                    }
+                }
+                if (!alphabet.equals("upper") && random.nextInt(8) == 0)
+                {
+                    text.append(".,;!?0123456789".charAt(random.nextInt(15)));
+                }
+                text.append(!alphabet.equals("upper") && random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+            text.setLength(length);
+            if (Character.isHighSurrogate(text.charAt(length - 1)))
+            {
+                text.setCharAt(length - 1, ' ');
+            }
+            return text.toString();
+        }
+
+        private static long allocatedBytes()
+        {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean hotspot && hotspot.isThreadAllocatedMemorySupported())
+            {
+                return hotspot.getCurrentThreadAllocatedBytes();
+            }
+            return -1;
+        }
+    }
+
+    // ***********************
+    // Self-Test
+    // ***********************
+
+    /**
+     * Checks the program against reference runs, each check in a temporary directory of its own.
+     *
+     * <pre>
+     * java Cypher_Solver.java --selftest
+     * </pre>
+     *
+     * A run that fails part way through is resumed from its checkpoint, and must match one
+     * uninterrupted run byte for byte; a journal made by another job or for an input that has changed
+     * since must be refused.
+     *
+     * The word-parallel kernels are compared with the scalar code on random text, and the cipher
+     * streams with the file engine on text written to them in pieces of random size.
+     *
+     * The other file engines must write what MappedFileEngine writes for every built-in cipher, in
+     * three charsets and with every line terminator, and so must MappedFileEngine when it decodes
+     * every line instead of passing ASCII lines to the session as bytes.
+     *
+     * Packed Baconian files must unpack to what decrypting the text gives, and packed files that are
+     * foreign, truncated or claim impossible counts must be refused.
+     *
+     * The Vigenère and Affine tables must give what the original arithmetic gave, also for keys and
+     * text with characters outside A‑Z.
+     *
+     * The three-rail Rail-Fence preset must give what the original three-pass cipher gave.
+     *
+     * The Morse codec must encode and decode random text and Morse with every kind of separator
+     * like the original codec, which looked every character and split() token up in a HashMap.
+     *
+     * Rail-Fence in blocks must permute every block of a line on its own, also on a line longer than
+     * the engine's buffers, and decrypt back to the text.
+     *
+     * A chain must encrypt like its stages run one after another and decrypt back to the text.
+     *
+     * English text and the output of every built-in cipher must each be identified for what they are.
+     *
+     * The cipher service must answer its client's inline and file jobs like a local run, and refuse
+     * a job that would overwrite its input and a request with the wrong token.
+     *
+     * Gzip and zlib inputs must give what their text gives, also in UTF-16, and compressed outputs
+     * must hold what a plain run writes; text that merely starts like zlib or is named like gzip and
+     * a truncated input must not be misread.
+     *
+     * The crackers must recover the keys of an English passage encrypted with known keys.
+     *
+     * A delta run with a continuous Vigenère key follows an edit, an insertion and an append, and one
+     * with Affine must reuse most of its output after an insertion. Every result must match a full
+     * run, a manifest made by another job or for an output that has changed since is ignored, and a
+     * run that fails part way leaves the earlier output alone.
+     *
+     * Ranges of lines are decrypted through a LineIndex for a continuous key, a stateless cipher and
+     * a chain, and must match a full decryption; an index made by another job, damaged or for an
+     * output that has changed since must be refused.
+     *
+     * One line is printed per check, and the exit code is 0 when all of them pass.
+     */
+    static final class SelfTest
+    {
+        private static final int TEXT_CHARS = 400_000;
+        private static final long SEGMENT_BYTES = 32 << 10;
+        private static final int INDEX_LINES = 100;
+        // Enough for the engines that cut a file into chunks or buffers to use several of them.
+        private static final int ENGINE_TEXT_CHARS = 2_500_000;
+        private static final String[] ENGLISH = {
+                "The harbour was quiet in the early morning when the fishing boats came back to the town.",
+                "Most of the men had been out on the water since midnight, and they were tired and cold.",
+                "Their wives and children waited on the stone wall with baskets for the catch of the night.",
+                "Nobody spoke very much, because the sea had been rough and two of the boats were late.",
+                "At last the old lighthouse keeper saw a small light moving slowly beyond the rocks.",
+                "He rang the bell three times, and the people on the wall began to shout and wave their hands.",
+                "The first of the missing boats turned into the harbour with a torn sail and a broken mast.",
+                "Its captain told them that the second boat had stayed behind to help a ship in trouble.",
+                "The ship had lost its engine in the storm and was drifting towards the northern cliffs.",
+                "For an hour the people waited, watching the dark water and listening to the wind.",
+                "Then the second boat appeared, pulling the great ship behind it on a long rope.",
+                "The sailors on the ship were from a country far away, and they could not speak the language of the town.",
+                "But everyone understood their smiles when they stepped onto the wet stones of the harbour.",
+                "That evening the whole town gathered in the hall by the market to eat, sing and tell stories.",
+                "The strangers stayed for a week while their engine was repaired by the blacksmith and his sons.",
+                "When they left, they gave the town a large brass bell, which still hangs above the harbour today."};
+
+
+        private interface Check
+        {
+            void run(Path directory) throws IOException;
+        }
+
+        private interface Step
+        {
+            void run() throws IOException;
+        }
+
+        private interface Engine
+        {
+            FileEngine open(CipherJob job, Charset charset);
+        }
+
+        private SelfTest() {}
+
+        /**
+         * Runs every check and returns the exit code.
+         */
+        static int run(String[] args)
+        {
+            if (args.length > 0)
+            {
+                System.err.println("Unexpected argument " + args[0]);
+                System.err.println("Usage: --selftest");
+                return 2;
+            }
+            if (!ParallelFileEngine.supports(Charset.defaultCharset()))
+            {
+                System.err.println("--selftest needs a charset in which a line feed is a single byte");
+                return 2;
+            }
+            Map<String, Check> checks = new LinkedHashMap<>();
+            checks.put("resume after a crash", SelfTest::resume);
+            checks.put("refuse a foreign or stale checkpoint", SelfTest::foreignCheckpoint);
+            checks.put("word-parallel kernels match the scalar code", SelfTest::swar);
+            checks.put("cipher streams match the file engine", SelfTest::streams);
+            checks.put("the parallel engine matches the sequential one", SelfTest::parallelEngine);
+            checks.put("the pipelined engine matches the sequential one", SelfTest::pipelinedEngine);
+            checks.put("ASCII lines as bytes match the char path", SelfTest::asciiBytes);
+            checks.put("packed Baconian round trip and damaged files", SelfTest::packed);
+            checks.put("the three-rail preset matches the original Rail-Fence", SelfTest::legacyRailFence);
+            checks.put("recover a Vigenère key", SelfTest::vigenereSolver);
+            checks.put("crack an Affine key", SelfTest::affineCracker);
+            checks.put("Rail-Fence blocks on lines longer than the buffers", SelfTest::railFenceBlocks);
+            checks.put("a chain matches its stages and undoes itself", SelfTest::chain);
+            checks.put("identify every cipher", SelfTest::identify);
+            checks.put("the cipher service answers its client", SelfTest::service);
+            checks.put("gzip and zlib input and output", SelfTest::compression);
+            checks.put("find a Vigenère key in a wordlist", SelfTest::dictionaryAttack);
+            checks.put("delta with a continuous key", SelfTest::delta);
+            checks.put("ignore a foreign or stale delta manifest", SelfTest::foreignManifest);
+            checks.put("decrypt ranges through an index", SelfTest::ranges);
+            checks.put("refuse a foreign, stale or damaged index", SelfTest::foreignIndex);
+            checks.put("the Morse codec matches the original one", SelfTest::legacyMorse);
+            checks.put("the Vigenère and Affine tables match the original arithmetic", SelfTest::legacyArithmetic);
+            checks.put("refuse a line whose output would not fit an array", SelfTest::outputBounds);
+
+            int failed = 0;
+            for (Map.Entry<String, Check> check : checks.entrySet())
+            {
+                Path directory = null;
+                try
+                {
+                    directory = Files.createTempDirectory("cipher-selftest");
+                    check.getValue().run(directory);
+                    System.out.println("ok     " + check.getKey());
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    failed++;
+                    System.out.println("FAILED " + check.getKey() + ": " + e.getMessage());
+                }
+                finally
+                {
+                    deleteDirectory(directory);
+                }
+            }
+            System.out.println(failed == 0 ? "All " + checks.size() + " checks passed"
+                    : failed + " of " + checks.size() + " checks failed");
+            return failed == 0 ? 0 : 1;
+        }
+
+        private static void resume(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            String fingerprint = CheckpointPolicy.fingerprint(job.cipher(), true, job.options());
+            Path expected = directory.resolve("expected.txt");
+            processFile(input, expected, job::open);
+
+            Path output = directory.resolve("output.txt");
+            crash(input, output, job, fingerprint);
+            expect(CheckpointJournal.read(output) != null, "the failed run left no checkpoint");
+            expect(!Files.readString(CheckpointJournal.pathFor(output), StandardCharsets.ISO_8859_1).contains(fingerprint),
+                    "the checkpoint stores the unsalted job fingerprint");
+            processFile(input, output, job::open, null, new CheckpointPolicy(SEGMENT_BYTES, true, false, fingerprint));
+            expectSame(expected, output);
+            expect(!Files.exists(CheckpointJournal.pathFor(output)), "the checkpoint outlived the finished run");
+        }
+
+        private static void foreignCheckpoint(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            String fingerprint = CheckpointPolicy.fingerprint(job.cipher(), true, job.options());
+            Path output = directory.resolve("output.txt");
+            crash(input, output, job, fingerprint);
+
+            CipherJob other = job(true, true, "cipher", "vigenere", "key", "ORANGE");
+            String otherFingerprint = CheckpointPolicy.fingerprint(other.cipher(), true, other.options());
+            expectRefused(() -> processFile(input, output, other::open, null,
+                    new CheckpointPolicy(SEGMENT_BYTES, true, false, otherFingerprint)), "different cipher settings");
+            Files.writeString(input, "one more line\n", Charset.defaultCharset(), StandardOpenOption.APPEND);
+            expectRefused(() -> processFile(input, output, job::open, null,
+                    new CheckpointPolicy(SEGMENT_BYTES, true, false, fingerprint)), "different input");
+        }
+
+        private static void swar(Path directory)
+        {
+            Random random = new Random(7);
+            // KEY9 has a character outside A‑Z, so it keeps to the scalar code and checks the fallback
+            // instead; the Affine byte table is checked against its char path, -5 included.
+            String[] keys = {"LEMON", "k", "Abcdefghijklm", "KEY9"};
+            int[][] affineKeys = {{5, 8, 21}, {1, 0, 1}, {25, 25, 25}, {7, 3, 15}, {-5, 8, 5}};
+            for (int round = 0; round < 300; round++)
+            {
+                // ASCII, Latin‑1 and wider text in turn.
+                int widest = new int[] {0x7F, 0xFF, 0xFFFF}[round % 3];
+                String text = randomText(random, widest);
+                byte[] bytes = widest <= 0xFF ? text.getBytes(StandardCharsets.ISO_8859_1) : null;
+                for (boolean encrypt : new boolean[] {true, false})
+                {
+                    for (String key : keys)
+                    {
+                        VigenereTable table = VigenereTable.forKey(key, encrypt);
+                        char[] chars = text.toUpperCase().toCharArray();
+                        table.transform(chars, 0, chars, 0, chars.length, 0);
+                        String result = encrypt ? encryptVigenere(text, key) : decryptVigenere(text, key);
+                        expect(result.equals(new String(chars)), "Vigenère " + key + " differs from the char path on "
+                                + text);
+                        if (bytes != null)
+                        {
+                            int phase = random.nextInt(key.length());
+                            int[] offsets = {random.nextInt(8), random.nextInt(8)};
+                            byte[] fast = new byte[bytes.length + 8];
+                            byte[] slow = new byte[bytes.length + 8];
+                            int fastPhase = table.transform(bytes, 0, fast, offsets[0], bytes.length, phase);
+                            int slowPhase = table.transformScalar(bytes, 0, slow, offsets[1], bytes.length, phase);
+                            expect(fastPhase == slowPhase && Arrays.equals(fast, offsets[0], offsets[0] + bytes.length,
+                                    slow, offsets[1], offsets[1] + bytes.length), "Vigenère " + key
+                                    + " bytes differ from the scalar code on " + text);
+                        }
+                    }
+                    for (int[] key : affineKeys)
+                    {
+                        AffineTable table = AffineTable.forKey(key[0], key[1], key[2], encrypt);
+                        char[] chars = text.toCharArray();
+                        table.transform(chars, 0, chars, 0, chars.length);
+                        String result = encrypt ? encryptAffine(text, key[0], key[1], key[2])
+                                : decryptAffine(text, key[0], key[1], key[2]);
+                        expect(result.equals(new String(chars)), "Affine " + Arrays.toString(key)
+                                + " differs from the char path on " + text);
+                    }
+                }
+            }
+        }
+
+        // Writes files through CipherOutputStream and CipherWriter in pieces of random size, so keys, Baconian
+        // groups, surrogate pairs and \r\n terminators are split between writes, and compares with processFile().
+        private static void streams(Path directory) throws IOException
+        {
+            Random random = new Random(13);
+            Charset charset = Charset.defaultCharset();
+            // Below the surrogates, so every character can be written; whole pairs are added on their own.
+            boolean wide = charset.newEncoder().canEncode("中\uD83D\uDE00");
+            int widest = wide ? 0xD7FF : 0x7F;
+            String[] terminators = {"\n", "\r\n", "\r", wide ? "\u2028" : "\r", "\n\n"};
+            CipherJob[] jobs = {
+                    job(true, true, "cipher", "vigenere", "key", "LEMON"),
+                    job(false, true, "cipher", "vigenere", "key", "LEMON"),
+                    job(true, false, "cipher", "affine", "a", "5", "b", "8", "c", "21"),
+                    job(true, false, "cipher", "railfence", "rails", "4", "offset", "1"),
+                    job(true, false, "cipher", "morse"),
+                    job(true, false, "cipher", "baconian"),
+                    job(false, false, "cipher", "baconian")};
+            Path input = directory.resolve("input.txt");
+            Path expected = directory.resolve("expected.txt");
+            for (int round = 0; round < 20; round++)
+            {
+                StringBuilder text = new StringBuilder();
+                for (int line = random.nextInt(40); line > 0; line--)
+                {
+                    text.append(randomText(random, widest));
+                    if (wide && random.nextInt(4) == 0)
+                    {
+                        text.append("\uD83D\uDE00").append(randomText(random, widest));
+                    }
+                    text.append(terminators[random.nextInt(terminators.length)]);
+                }
+                if (random.nextBoolean())
+                {
+                    text.append(randomText(random, widest));
+                }
+                for (CipherJob job : jobs)
+                {
+                    String source = text.toString();
+                    if (job.cipher().name().equals("baconian") && !job.encrypt())
+                    {
+                        // Decrypt real groups, which the random pieces then cut apart.
+                        source = encryptBaconian(source);
+                    }
+                    Files.writeString(input, source, charset);
+                    processFile(input, expected, job::open);
+                    byte[] reference = Files.readAllBytes(expected);
+                    String name = job.cipher().name() + (job.encrypt() ? " encrypt" : " decrypt");
+
+                    byte[] bytes = Files.readAllBytes(input);
+                    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                    try (CipherOutputStream out = new CipherOutputStream(streamed, job.open(), charset))
+                    {
+                        for (int i = 0; i < bytes.length; )
+                        {
+                            int n = Math.min(bytes.length - i, 1 + random.nextInt(random.nextBoolean() ? 8 : 4096));
+                            out.write(bytes, i, n);
+                            i += n;
+                        }
+                    }
+                    expect(Arrays.equals(reference, streamed.toByteArray()), "CipherOutputStream " + name
+                            + " differs from the file engine on " + source);
+
+                    char[] chars = source.toCharArray();
+                    StringWriter written = new StringWriter();
+                    try (CipherWriter out = new CipherWriter(written, job.open()))
+                    {
+                        for (int i = 0; i < chars.length; )
+                        {
+                            int n = Math.min(chars.length - i, 1 + random.nextInt(random.nextBoolean() ? 8 : 4096));
+                            out.write(chars, i, n);
+                            i += n;
+                        }
+                    }
+                    expect(Arrays.equals(reference, written.toString().getBytes(charset)), "CipherWriter " + name
+                            + " differs from the file engine on " + source);
+                }
+            }
+        }
+
+        // With a ForkJoinPool of its own, so that chunks run in parallel even on one core.
+        private static void parallelEngine(Path directory) throws IOException
+        {
+            ForkJoinPool pool = new ForkJoinPool(3);
+            try
+            {
+                compareEngines(directory, new Random(17), "ParallelFileEngine",
+                        (job, charset) -> new ParallelFileEngine(job.open(), job::open, charset, pool, null));
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        // Small buffers and a short queue, so that the file takes many of them and the stages wait on each other.
+        private static void pipelinedEngine(Path directory) throws IOException
+        {
+            PipelinedFileEngine.Settings settings = new PipelinedFileEngine.Settings(2, 4 << 10, 3);
+            compareEngines(directory, new Random(29), "PipelinedFileEngine",
+                    (job, charset) -> new PipelinedFileEngine(job.open(), job::open, charset, settings, null));
+        }
+
+        // The same engine with sessions that hide their byte forms, so that every line is decoded.
+        private static void asciiBytes(Path directory) throws IOException
+        {
+            compareEngines(directory, new Random(31), "MappedFileEngine on chars only",
+                    (job, charset) -> new MappedFileEngine(charsOnly(job.open()), charset));
+        }
+
+        // Packing a Baconian text and unpacking it gives what decrypting it does; a file that is not
+        // packed, ends inside a record or has impossible counts is refused.
+        private static void packed(Path directory) throws IOException
+        {
+            Path plain = sample(directory);
+            Path encrypted = directory.resolve("encrypted.txt");
+            Path expected = directory.resolve("expected.txt");
+            processFile(plain, encrypted, job(true, false, "cipher", "baconian")::open);
+            processFile(encrypted, expected, job(false, false, "cipher", "baconian")::open);
+
+            Path packed = directory.resolve("packed.bac");
+            Path output = directory.resolve("output.txt");
+            BaconianPacked.encodeFile(plain, packed, Charset.defaultCharset());
+            expect(Files.size(packed) < Files.size(encrypted) / 6, "the packed file is hardly smaller than the text");
+            BaconianPacked.decodeFile(packed, output, Charset.defaultCharset());
+            expectSame(expected, output);
+
+            Path foreign = directory.resolve("foreign.bac");
+            Files.write(foreign, "BAC4 not packed".getBytes(StandardCharsets.US_ASCII));
+            expectRefused(() -> BaconianPacked.decodeFile(foreign, output, Charset.defaultCharset()),
+                    "Not a packed Baconian file");
+            // A record whose symbol count promises another varint byte that never comes.
+            Path truncated = directory.resolve("truncated.bac");
+            Files.write(truncated, new byte[] {'B', 'A', 'C', '5', 3, 0, 0x21, 0x00, (byte) 0x81});
+            expectRefused(() -> BaconianPacked.decodeFile(truncated, output, Charset.defaultCharset()),
+                    "Truncated packed Baconian record");
+            // A record that claims 2^31 - 1 spaces must run out of input, not allocate a table for them.
+            Path huge = directory.resolve("huge.bac");
+            Files.write(huge, new byte[] {'B', 'A', 'C', '5', 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7});
+            expectRefused(() -> BaconianPacked.decodeFile(huge, output, Charset.defaultCharset()),
+                    "Truncated packed Baconian record");
+            // A varint that runs past five bytes, and a gap beyond the symbols of its record.
+            Path overlong = directory.resolve("overlong.bac");
+            Files.write(overlong, new byte[] {'B', 'A', 'C', '5', 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                    (byte) 0xFF, 1});
+            expectRefused(() -> BaconianPacked.decodeFile(overlong, output, Charset.defaultCharset()),
+                    "does not fit an int");
+            Path gap = directory.resolve("gap.bac");
+            Files.write(gap, new byte[] {'B', 'A', 'C', '5', 1, 1, 2, 0x01});
+            expectRefused(() -> BaconianPacked.decodeFile(gap, output, Charset.defaultCharset()),
+                    "a gap of 2 in 1 symbols");
+        }
+
+        // The preset against the three passes the program used before RailFence, on lines of every length up
+        // to past the permutation cache and on a file run through the default options.
+        private static void legacyRailFence(Path directory) throws IOException
+        {
+            Random random = new Random(19);
+            for (int length = 0; length < 400; length++)
+            {
+                checkLegacyRailFence(randomLine(random, length));
+            }
+            checkLegacyRailFence(randomLine(random, RailFence.MAX_CACHED_LENGTH + 3));
+
+            Path input = directory.resolve("input.txt");
+            Path output = directory.resolve("output.txt");
+            StringBuilder text = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            for (int line = 0; line < 200; line++)
+            {
+                String plain = randomText(random, 0x7F);
+                text.append(plain).append('\n');
+                expected.append(originalRailFence(plain, true)).append(System.lineSeparator());
+            }
+            Files.writeString(input, text, Charset.defaultCharset());
+            processFile(input, output, job(true, false, "cipher", "railfence")::open);
+            expect(Files.readString(output, Charset.defaultCharset()).contentEquals(expected),
+                    "the Rail-Fence file differs from the original cipher");
+        }
+
+        private static void checkLegacyRailFence(String plain)
+        {
+            String encrypted = originalRailFence(plain, true);
+            expect(encryptRailFence(plain).equals(encrypted), "Rail-Fence encrypts " + plain.length()
+                    + " characters unlike the original cipher");
+            expect(decryptRailFence(encrypted).equals(originalRailFence(encrypted, false)), "Rail-Fence decrypts "
+                    + plain.length() + " characters unlike the original cipher");
+            expect(decryptRailFence(encrypted).equals(plain), "Rail-Fence does not undo itself on "
+                    + plain.length() + " characters");
+        }
+
+        // The baseline cipher: every 4th character from 0, every 2nd from 1, every 4th from 2.
+        private static String originalRailFence(String input, boolean encrypt)
+        {
+            char[] output = new char[input.length()];
+            int next = 0;
+            int[][] passes = {{0, 4}, {1, 2}, {2, 4}};
+            for (int[] pass : passes)
+            {
+                for (int i = pass[0]; i < input.length(); i += pass[1])
+                {
+                    if (encrypt)
+                    {
+                        output[next++] = input.charAt(i);
+                    }
+                    else
+                    {
+                        output[i] = input.charAt(next++);
+                    }
+                }
+            }
+            return new String(output);
+        }
+
+        // The tables, through the String methods and on char arrays, against the arithmetic of the original
+        // methods, on text and keys with characters outside A‑Z.
+        private static void legacyArithmetic(Path directory)
+        {
+            Random random = new Random(3);
+            String[] keys = {"LEMON", "k", "Abcdefghijklm", "KEY9", "Zé", "a-b"};
+            int[][] affineKeys = {{5, 8, 21}, {1, 0, 1}, {25, 25, 25}, {7, 3, 15}, {-5, 8, 5}, {2, -30, 100}};
+            for (int round = 0; round < 300; round++)
+            {
+                // ASCII, Latin‑1 and wider text in turn.
+                String text = randomText(random, new int[] {0x7F, 0xFF, 0xFFFF}[round % 3]);
+                for (boolean encrypt : new boolean[] {true, false})
+                {
+                    String action = encrypt ? " encrypts " : " decrypts ";
+                    for (String key : keys)
+                    {
+                        String expected = originalVigenere(text, key, encrypt);
+                        String result = encrypt ? encryptVigenere(text, key) : decryptVigenere(text, key);
+                        char[] chars = text.toUpperCase().toCharArray();
+                        VigenereTable.forKey(key, encrypt).transform(chars, 0, chars, 0, chars.length, 0);
+                        expect(result.equals(expected) && new String(chars).equals(expected), "Vigenère " + key
+                                + action + text + " unlike the original");
+                    }
+                    for (int[] key : affineKeys)
+                    {
+                        String expected = originalAffine(text, key[0], key[1], key[2], encrypt);
+                        String result = encrypt ? encryptAffine(text, key[0], key[1], key[2])
+                                : decryptAffine(text, key[0], key[1], key[2]);
+                        char[] chars = text.toCharArray();
+                        AffineTable.forKey(key[0], key[1], key[2], encrypt).transform(chars, 0, chars, 0, chars.length);
+                        expect(result.equals(expected) && new String(chars).equals(expected), "Affine "
+                                + Arrays.toString(key) + action + text + " unlike the original");
+                    }
+                }
+            }
+        }
+
+        // The baseline Vigenère methods: both upper-cased, and every letter shifted by (x ± k) % 26.
+        private static String originalVigenere(String input, String key, boolean encrypt)
+        {
+            input = input.toUpperCase();
+            key = key.toUpperCase();
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < input.length(); i++)
+            {
+                char c = input.charAt(i);
+                int k = key.charAt(i % key.length()) - 'A';
+                output.append(Character.isLetter(c)
+                        ? (char) ((encrypt ? c - 'A' + k : c - 'A' - k + 26) % 26 + 'A') : c);
+            }
+            return output.toString();
+        }
+
+        // The baseline Affine methods: (a * x + b) % 26 and c * (y - b) brought into 0..25, letters only.
+        private static String originalAffine(String input, int a, int b, int c, boolean encrypt)
+        {
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < input.length(); i++)
+            {
+                char c1 = input.charAt(i);
+                int x = c1 - 'A';
+                output.append(Character.isLetter(c1)
+                        ? (char) ((encrypt ? (a * x + b) % 26 : ((c * (x - b)) % 26 + 26) % 26) + 'A') : c1);
+            }
+            return output.toString();
+        }
+
+        // Bounds too large for an array come back as Integer.MAX_VALUE, never as a smaller number, and the
+        // file engine and the streams refuse such a line instead of allocating for it.
+        private static void outputBounds(Path directory) throws IOException
+        {
+            CipherJob[] jobs = {
+                    job(true, false, "cipher", "vigenere", "key", "LEMON"),
+                    job(true, false, "cipher", "baconian"),
+                    job(true, false, "cipher", "morse"),
+                    job(true, false, "chain", "morse+baconian")};
+            for (CipherJob job : jobs)
+            {
+                CipherSession session = job.open();
+                String name = job.cipher().name();
+                expect(session.maxOutputLength(Integer.MAX_VALUE / 2) == Integer.MAX_VALUE,
+                        name + " passes off a capped bound for a line of " + Integer.MAX_VALUE / 2);
+                expect(session.maxOutputLength(1000) >= 1000 && session.maxOutputLength(1000) < Integer.MAX_VALUE,
+                        name + " has no real bound for a line of 1000");
+            }
+            expect(job(true, false, "cipher", "morse").open().maxOutputLength(MAX_ARRAY_LENGTH / 18 + 1)
+                    == Integer.MAX_VALUE, "Morse caps the bound of a line just too long for it");
+
+            // A cipher whose output of a longer line would not fit an array.
+            CipherSession session = job(true, false, "cipher", "vigenere", "key", "LEMON").open();
+            Supplier<CipherSession> bounded = () -> new CipherSession()
+            {
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return inputLength > 1000 ? Integer.MAX_VALUE : session.maxOutputLength(inputLength);
+                }
+
+                @Override
+                public void transform(CharBuffer source, CharBuffer sink)
+                {
+                    session.transform(source, sink);
+                }
+
+                @Override
+                public void endLine(CharBuffer sink)
+                {
+                    session.endLine(sink);
+                }
+            };
+            Path input = directory.resolve("input.txt");
+            Path output = directory.resolve("output.txt");
+            String line = "A".repeat(2000);
+            Files.writeString(input, "SHORT\n" + line + "\n", Charset.defaultCharset());
+            expectRefused(() -> processFile(input, output, bounded), "too long");
+            expectRefused(() ->
+            {
+                try (Writer writer = new CipherWriter(new StringWriter(), bounded.get()))
+                {
+                    writer.write(line + "\n");
+                }
+            }, "too long");
+        }
+
+        // The codec against the original one on random text and random Morse, alone and through a file.
+        private static void legacyMorse(Path directory) throws IOException
+        {
+            Random random = new Random(4);
+            for (int i = 0; i < 2000; i++)
+            {
+                String plain = randomText(random, 0xFFFF);
+                String encrypted = originalMorse(plain, true);
+                expect(encryptMorseCode(plain).equals(encrypted), "Morse encrypts \"" + plain + "\" unlike the original");
+                expect(decryptMorseCode(encrypted).equals(originalMorse(encrypted, false)), "Morse decrypts \""
+                        + encrypted + "\" unlike the original");
+                String morse = randomMorse(random);
+                expect(decryptMorseCode(morse).equals(originalMorse(morse, false)), "Morse decrypts \""
+                        + morse + "\" unlike the original");
+            }
+
+            Path input = directory.resolve("input.txt");
+            Path output = directory.resolve("output.txt");
+            for (boolean encrypt : new boolean[] {true, false})
+            {
+                StringBuilder text = new StringBuilder();
+                StringBuilder expected = new StringBuilder();
+                for (int line = 0; line < 200; line++)
+                {
+                    // ASCII, which every default charset can hold, and one line each.
+                    String plain = encrypt ? randomText(random, 0x7F)
+                            : randomMorse(random).replaceAll("[\\n\\r\\u00A0]", " ");
+                    text.append(plain).append('\n');
+                    expected.append(originalMorse(plain, encrypt)).append(System.lineSeparator());
+                }
+                Files.writeString(input, text, Charset.defaultCharset());
+                processFile(input, output, job(encrypt, false, "cipher", "morse")::open);
+                expect(Files.readString(output, Charset.defaultCharset()).contentEquals(expected),
+                        "the Morse file differs from the original codec when " + (encrypt ? "encrypting" : "decrypting"));
+            }
+        }
+
+        // Known codes, "/", unknown and overlong tokens, joined by any whitespace split("\\s+") knows and
+        // control characters it does not, with whitespace before and after.
+        private static String randomMorse(Random random)
+        {
+            String[] tokens = {".-", "-...", "-.-.", ".", "--.--", "-----", "----.", "/", "//", "......", ".-x", "?"};
+            String[] separators = {" ", "  ", "\t", " / ", "\n", "\r\n", "\u000B", "\f", "\u0001", "\u00A0"};
+            StringBuilder morse = new StringBuilder(separators[random.nextInt(separators.length)]);
+            for (int count = random.nextInt(30); count > 0; count--)
+            {
+                morse.append(tokens[random.nextInt(tokens.length)]).append(separators[random.nextInt(separators.length)]);
+            }
+            return morse.toString();
+        }
+
+        // The baseline codec: upper-cases, looks every character up, and splits Morse on whitespace.
+        private static String originalMorse(String input, boolean encrypt)
+        {
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+            String[] codes = {
+                    ".-", "-...", "-.-.", "-..", ".", "..-.", "--.", "....", "..", ".---", "-.-", ".-..", "--",
+                    "-.", "---", ".--.", "--.-", ".-.", "...", "-", "..-", "...-", ".--", "-..-", "-.--", "--..",
+                    "-----", ".----", "..---", "...--", "....-", ".....", "-....", "--...", "---..", "----."};
+            Map<Character, String> morseMap = new HashMap<>();
+            Map<String, Character> morseToChar = new HashMap<>();
+            for (int i = 0; i < codes.length; i++)
+            {
+                morseMap.put(alphabet.charAt(i), codes[i]);
+                morseToChar.put(codes[i], alphabet.charAt(i));
+            }
+
+            StringBuilder output = new StringBuilder();
+            if (encrypt)
+            {
+                for (char ch : input.toUpperCase().toCharArray())
+                {
+                    if (ch == ' ')
+                    {
+                        output.append(" / ");
+                    }
+                    else if (morseMap.containsKey(ch))
+                    {
+                        output.append(morseMap.get(ch)).append(' ');
+                    }
+                }
+                return output.toString().trim();
+            }
+            for (String token : input.trim().split("\\s+"))
+            {
+                if (token.equals("/"))
+                {
+                    output.append(' ');
+                }
+                else if (morseToChar.containsKey(token))
+                {
+                    output.append(morseToChar.get(token));
+                }
+            }
+            return output.toString();
+        }
+
+        // The solver recovers the key of English text encrypted with a known key.
+        private static void vigenereSolver(Path directory)
+        {
+            VigenereSolver solver = new VigenereSolver(VigenereSolver.DEFAULT_MAX_KEY_LENGTH);
+            for (int round = 0; round < 3; round++)
+            {
+                for (String line : ENGLISH)
+                {
+                    solver.addLine(encryptVigenere(line, "LEMON"));
+                }
+            }
+            List<VigenereSolver.KeyCandidate> keys = solver.solve(1);
+            expect(!keys.isEmpty() && keys.get(0).key().equals("LEMON"), "the Vigenère solver found "
+                    + (keys.isEmpty() ? "no key" : keys.get(0).key()) + " instead of LEMON");
+        }
+
+        // The cracker recovers the key of English text encrypted with a known key.
+        private static void affineCracker(Path directory)
+        {
+            AffineCracker affine = new AffineCracker();
+            for (int round = 0; round < 3; round++)
+            {
+                for (String line : ENGLISH)
+                {
+                    // Lower case letters sit 6 places on (mod 26) from upper case, so mixed case would
+                    // give them an effective b of 6a + b; upper case has only the one key.
+                    affine.addLine(encryptAffine(line.toUpperCase(Locale.ROOT), 7, 3, 15));
+                }
+            }
+            AffineCracker.AffineKey key = affine.crack();
+            expect(key != null && key.a() == 7 && key.b() == 3 && key.c() == 15, "the Affine cracker found " + key
+                    + " instead of a=7, b=3, c=15");
+
+            AffineCracker none = new AffineCracker();
+            none.addLine("12 + 34 = 46!");
+            expect(none.crack() == null, "the Affine cracker found a key in text without letters");
+
+            // Lone letters only score their monogram, so every key that turns 'A' into the most common
+            // letter ties; the smallest a, then the smallest b, must win every time.
+            int common = 0;
+            for (int x = 1; x < 26; x++)
+            {
+                common = EnglishStats.LOG_MONOGRAM[x] > EnglishStats.LOG_MONOGRAM[common] ? x : common;
+            }
+            for (int round = 0; round < 20; round++)
+            {
+                AffineCracker tied = new AffineCracker();
+                tied.addLine("A A A A A A A A");
+                key = tied.crack();
+                expect(key != null && key.a() == 1 && key.b() == (26 - common) % 26, "of tied keys the Affine "
+                        + "cracker chose " + key + " instead of a=1, b=" + (26 - common) % 26);
+            }
+        }
+
+        // Block mode permutes every block of a line on its own, the last at its own length, also when a line
+        // reaches the session in many pieces, and decrypting with the same block size gives the text back.
+        private static void railFenceBlocks(Path directory) throws IOException
+        {
+            Random random = new Random(23);
+            int block = 1000;
+            RailFence fence = new RailFence(4, 1);
+            StringBuilder longLine = new StringBuilder();
+            while (longLine.length() < 3 * MappedFileEngine.CHAR_BUFFER_SIZE + 123)
+            {
+                longLine.append(randomText(random, 0x7F));
+            }
+            String[] lines = {longLine.toString(), "", randomText(random, 0x7F), longLine.substring(0, block),
+                    randomText(random, 0x7F)};
+            StringBuilder text = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            for (String line : lines)
+            {
+                text.append(line).append('\n');
+                for (int start = 0; start < line.length(); start += block)
+                {
+                    expected.append(encryptRailFence(line.substring(start, Math.min(line.length(), start + block)), fence));
+                }
+                expected.append(System.lineSeparator());
+            }
+            Path input = directory.resolve("input.txt");
+            Path encrypted = directory.resolve("encrypted.txt");
+            Path decrypted = directory.resolve("decrypted.txt");
+            Files.writeString(input, text, Charset.defaultCharset());
+            String[] settings = {"cipher", "railfence", "rails", "4", "offset", "1", "block", String.valueOf(block)};
+            processFile(input, encrypted, job(true, false, settings)::open);
+            expect(Files.readString(encrypted, Charset.defaultCharset()).contentEquals(expected),
+                    "Rail-Fence blocks differ from permuting every block on its own");
+            processFile(encrypted, decrypted, job(false, false, settings)::open);
+            expect(Files.readString(decrypted, Charset.defaultCharset()).equals(text.toString().replace("\n",
+                    System.lineSeparator())), "Rail-Fence blocks do not decrypt to the text");
+        }
+
+        // A chain encrypts like its stages run one after another and decrypts back to the upper‑cased text.
+        private static void chain(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            String stages = "vigenere:key=LEMON+affine:a=5,b=8,c=21+railfence:rails=4,offset=1";
+            Path encrypted = directory.resolve("encrypted.txt");
+            processFile(input, encrypted, job(true, false, "chain", stages)::open);
+
+            Path stepped = directory.resolve("stepped.txt");
+            Path between = directory.resolve("between.txt");
+            processFile(input, between, job(true, false, "cipher", "vigenere", "key", "LEMON")::open);
+            processFile(between, stepped, job(true, false, "cipher", "affine", "a", "5", "b", "8", "c", "21")::open);
+            processFile(stepped, between, job(true, false, "cipher", "railfence", "rails", "4", "offset", "1")::open);
+            expectSame(between, encrypted);
+
+            Path decrypted = directory.resolve("decrypted.txt");
+            processFile(encrypted, decrypted, job(false, false, "chain", stages)::open);
+            Path expected = directory.resolve("expected.txt");
+            processFile(input, expected, () -> new CipherSession()
+            {
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return outputBound((long) MAX_UPPER_CASE_EXPANSION * inputLength);
+                }
+
+                @Override
+                public void transform(CharBuffer source, CharBuffer sink)
+                {
+                    sink.put(source.toString().toUpperCase());
+                }
+            });
+            expectSame(expected, decrypted);
+        }
+
+        // English text and each cipher's output of it are told apart.
+        private static void identify(Path directory)
+        {
+            Map<String, UnaryOperator<String>> ciphers = new LinkedHashMap<>();
+            ciphers.put(CipherIdentifier.PLAIN_TEXT, line -> line);
+            ciphers.put("vigenere", line -> encryptVigenere(line, "LEMON"));
+            // Affine folds 'a' onto 'G' (6 mod 26), so mixed case would be two alphabets; see affineCracker().
+            ciphers.put("affine", line -> encryptAffine(line.toUpperCase(Locale.ROOT), 5, 8, 21));
+            ciphers.put("railfence", Main::encryptRailFence);
+            ciphers.put("morse", Main::encryptMorseCode);
+            ciphers.put("baconian", Main::encryptBaconian);
+            for (Map.Entry<String, UnaryOperator<String>> cipher : ciphers.entrySet())
+            {
+                // The passage only once: repeating it lines up in the periodic columns like a short key.
+                CipherIdentifier identifier = new CipherIdentifier();
+                for (String line : ENGLISH)
+                {
+                    identifier.addText(cipher.getValue().apply(line) + "\n");
+                }
+                List<CipherIdentifier.Guess> guesses = identifier.identify();
+                expect(guesses.get(0).cipher().equals(cipher.getKey()), cipher.getKey() + " was taken for "
+                        + guesses.get(0).cipher());
+            }
+        }
+
+        // A service on a free port of its own, which the client reaches with its token and without the
+        // service file in the home directory that --serve and --submit share.
+        private static void service(Path directory) throws IOException
+        {
+            String token = "selftest";
+            CipherService service = new CipherService(0, 2, token);
+            Properties properties = new Properties();
+            properties.setProperty("port", String.valueOf(service.start()));
+            properties.setProperty("token", token);
+            try
+            {
+                String settings = "cipher=vigenere&action=encrypt&key=LEMON&continuous-key";
+                StringBuilder text = new StringBuilder();
+                StringBuilder expected = new StringBuilder();
+                VigenereTable table = VigenereTable.forKey("LEMON", true);
+                int phase = 0;
+                for (String line : ENGLISH)
+                {
+                    char[] chars = line.toUpperCase(Locale.ROOT).toCharArray();
+                    phase = table.transform(chars, 0, chars, 0, chars.length, phase);
+                    text.append(line).append('\n');
+                    expected.append(chars).append(System.lineSeparator());
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                int status = CipherClient.send(properties, "/job?" + settings,
+                        new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)), out, err);
+                expect(status == 200 && out.toString(StandardCharsets.UTF_8).contentEquals(expected),
+                        "inline text came back as " + status + " " + out.toString(StandardCharsets.UTF_8) + err);
+
+                Path input = sample(directory);
+                Path reference = directory.resolve("expected.txt");
+                Path output = directory.resolve("output.txt");
+                processFile(input, reference, job(true, true, "cipher", "vigenere", "key", "LEMON")::open);
+                String files = "&input=" + URLEncoder.encode(input.toString(), StandardCharsets.UTF_8)
+                        + "&output=" + URLEncoder.encode(output.toString(), StandardCharsets.UTF_8);
+                status = CipherClient.send(properties, "/job?" + settings + files, null, out, err);
+                expect(status == 200, "the file job failed with " + status + " " + err);
+                expectSame(reference, output);
+
+                // A job that fails part way, on a byte the charset cannot decode, keeps the earlier output.
+                if (Charset.defaultCharset().newDecoder().decode(ByteBuffer.wrap(new byte[] {(byte) 0xFF}),
+                        CharBuffer.allocate(4), true).isError())
+                {
+                    Path invalid = directory.resolve("invalid.txt");
+                    Files.copy(input, invalid);
+                    Files.write(invalid, new byte[] {(byte) 0xFF, '\n'}, StandardOpenOption.APPEND);
+                    String failing = "&input=" + URLEncoder.encode(invalid.toString(), StandardCharsets.UTF_8)
+                            + "&output=" + URLEncoder.encode(output.toString(), StandardCharsets.UTF_8);
+                    expect(CipherClient.send(properties, "/job?" + settings + failing, null, out, err) == 500,
+                            "a job on undecodable input succeeded");
+                    expectSame(reference, output);
+                }
+
+                String same = "&input=" + URLEncoder.encode(input.toString(), StandardCharsets.UTF_8)
+                        + "&output=" + URLEncoder.encode(input.toString(), StandardCharsets.UTF_8);
+                expect(CipherClient.send(properties, "/job?" + settings + same, null, out, err) == 400,
+                        "a job that would overwrite its input was run");
+                properties.setProperty("token", "wrong");
+                expect(CipherClient.send(properties, "/job?" + settings, null, out, err) == 403,
+                        "a request with the wrong token was served");
+            }
+            finally
+            {
+                service.stop();
+            }
+        }
+
+        // Compressed inputs give what their text gives and compressed outputs hold it; only a file named
+        // for zlib is taken for it, and a cut off input fails instead of giving part of its output.
+        private static void compression(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            Path expected = directory.resolve("expected.txt");
+            Path output = directory.resolve("output.txt");
+            processFile(input, expected, job::open);
+            byte[] text = Files.readAllBytes(input);
+            byte[] reference = Files.readAllBytes(expected);
+
+            for (Compression format : new Compression[] {Compression.GZIP, Compression.DEFLATE})
+            {
+                Path compressed = directory.resolve("input.txt" + format.suffix);
+                try (OutputStream out = format.create(compressed))
+                {
+                    out.write(text);
+                }
+                expect(Compression.detect(compressed) == format, compressed.getFileName() + " was not detected");
+                processFile(compressed, output, job::open);
+                expectSame(expected, output);
+
+                Path compressedOutput = directory.resolve("output.txt" + format.suffix);
+                processFile(input, compressedOutput, job::open);
+                try (InputStream in = format.open(compressedOutput))
+                {
+                    expect(Arrays.equals(reference, in.readAllBytes()), compressedOutput.getFileName()
+                            + " does not hold the output");
+                }
+            }
+
+            // In UTF-16 a line feed is two bytes, so a compressed input streams through CipherOutputStream.
+            Path wide = directory.resolve("wide.txt");
+            Path wideExpected = directory.resolve("wide-expected.txt");
+            Path wideGzip = directory.resolve("wide.txt.gz");
+            Files.writeString(wide, new String(text, Charset.defaultCharset()), StandardCharsets.UTF_16);
+            new MappedFileEngine(job.open(), StandardCharsets.UTF_16).process(wide, wideExpected);
+            try (OutputStream out = Compression.GZIP.create(wideGzip))
+            {
+                out.write(Files.readAllBytes(wide));
+            }
+            processCompressed(wideGzip, Compression.GZIP, output, Compression.NONE, job.open(), job::open,
+                    StandardCharsets.UTF_16, null, null);
+            expectSame(wideExpected, output);
+
+            // A batch names an output after what its input holds: a .zlib input loses the suffix, and plain
+            // text that is only named .gz keeps it rather than taking another output's name, so the output
+            // is gzipped like any other named .gz.
+            Path batch = directory.resolve("batch");
+            Path batchOutput = directory.resolve("batch-output");
+            Files.createDirectories(batch);
+            Files.copy(directory.resolve("input.txt" + Compression.DEFLATE.suffix), batch.resolve("input.txt.zlib"));
+            Files.copy(input, batch.resolve("notes.gz"));
+            int status = BatchRunner.run(new String[] {"--cipher", "vigenere", "--action", "encrypt", "--key", "LEMON",
+                    "--continuous-key", "--input", batch.toString(), "--output", batchOutput.toString()});
+            expect(status == 0, "the batch exited with " + status);
+            expectSame(expected, batchOutput.resolve("input.txt"));
+            try (InputStream in = Compression.GZIP.open(batchOutput.resolve("notes.gz")))
+            {
+                expect(Arrays.equals(reference, in.readAllBytes()), "notes.gz does not hold the output");
+            }
+
+            // "x^" is a valid zlib header, and plain text may start with it.
+            Path lookalike = directory.resolve("lookalike.txt");
+            Files.writeString(lookalike, "x^2 + 1\n", Charset.defaultCharset());
+            expect(Compression.detect(lookalike) == Compression.NONE, "plain text was taken for zlib");
+
+            Path gzip = directory.resolve("input.txt.gz");
+            Path truncated = directory.resolve("truncated.txt.gz");
+            byte[] compressed = Files.readAllBytes(gzip);
+            Files.write(truncated, Arrays.copyOf(compressed, compressed.length / 2));
+            expectRefused(() -> processFile(truncated, output, job::open), "Unexpected end");
+        }
+
+        // A key from the middle of the wordlist, on a sample too short for the solver.
+        private static void dictionaryAttack(Path directory)
+        {
+            Set<String> words = new LinkedHashSet<>();
+            for (String line : ENGLISH)
+            {
+                for (String word : line.toUpperCase(Locale.ROOT).split("[^A-Z]+"))
+                {
+                    if (!word.isEmpty())
+                    {
+                        words.add(word);
+                    }
+                }
+            }
+            DictionaryAttack attack = new DictionaryAttack(WordTrie.of(words), new ArrayList<>(words));
+            for (int i = 0; i < 3; i++)
+            {
+                attack.addLine(encryptVigenere(ENGLISH[i], "HARBOUR"));
+            }
+            DictionaryAttack.Match match = attack.attack(DictionaryAttack.DEFAULT_CONFIDENCE);
+            expect(match != null && match.key().equals("HARBOUR"), "the dictionary attack found "
+                    + (match == null ? "no key" : match.key()) + " instead of HARBOUR");
+        }
+
+        private static void delta(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            String fingerprint = CheckpointPolicy.fingerprint(job.cipher(), true, job.options());
+            Path output = directory.resolve("output.txt");
+            Path expected = directory.resolve("expected.txt");
+            processDelta(input, output, job::open, null, fingerprint);
+            processFile(input, expected, job::open);
+            expectSame(expected, output);
+
+            // A letter for a letter keeps the key in step, an inserted word shifts it for the rest of
+            // the file, and an append leaves everything before it alone.
+            String text = Files.readString(input, Charset.defaultCharset());
+            int middle = text.indexOf('e', text.length() / 2);
+            String edited = text.substring(0, middle) + "x" + text.substring(middle + 1);
+            int early = text.indexOf(' ', text.length() / 10);
+            String inserted = edited.substring(0, early) + " inserted" + edited.substring(early);
+            String appended = inserted + Benchmarks.text("mixed", TEXT_CHARS / 4);
+            for (String version : List.of(edited, inserted, appended))
+            {
+                Files.writeString(input, version, Charset.defaultCharset());
+                ProcessingStats stats = new ProcessingStats("vigenere", Files.size(input));
+                processDelta(input, output, job::open, stats, fingerprint);
+                processFile(input, expected, job::open);
+                expectSame(expected, output);
+                expect(stats.getBytesResumed() > 0, "no output was reused");
+            }
+
+            // Without a key to shift, an insertion only costs the blocks around it.
+            CipherJob affine = job(true, false, "cipher", "affine", "a", "5", "b", "8", "c", "21");
+            String affineFingerprint = CheckpointPolicy.fingerprint(affine.cipher(), true, affine.options());
+            processDelta(input, output, affine::open, null, affineFingerprint);
+            Files.writeString(input, appended.substring(0, middle) + " inserted" + appended.substring(middle),
+                    Charset.defaultCharset());
+            ProcessingStats stats = new ProcessingStats("affine", Files.size(input));
+            processDelta(input, output, affine::open, stats, affineFingerprint);
+            processFile(input, expected, affine::open);
+            expectSame(expected, output);
+            expect(stats.getBytesResumed() > Files.size(input) * 8 / 10, "only " + stats.getBytesResumed() + " of "
+                    + Files.size(input) + " bytes were reused after an insertion");
+        }
+
+        private static void foreignManifest(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            String fingerprint = CheckpointPolicy.fingerprint(job.cipher(), true, job.options());
+            CipherJob other = job(true, true, "cipher", "vigenere", "key", "ORANGE");
+            Path output = directory.resolve("output.txt");
+            Path expected = directory.resolve("expected.txt");
+            processDelta(input, output, job::open, null, fingerprint);
+
+            // The manifest of another key must not be reused.
+            processDelta(input, output, other::open, null, CheckpointPolicy.fingerprint(other.cipher(), true, other.options()));
+            processFile(input, expected, other::open);
+            expectSame(expected, output);
+
+            // Nor one that no longer describes the output beside it.
+            processDelta(input, output, job::open, null, fingerprint);
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE))
+            {
+                channel.write(ByteBuffer.wrap(new byte[] {'#'}), Files.size(output) / 2);
+            }
+            Files.setLastModifiedTime(output, FileTime.fromMillis(Files.getLastModifiedTime(output).toMillis() - 10_000));
+            processDelta(input, output, job::open, null, fingerprint);
+            processFile(input, expected, job::open);
+            expectSame(expected, output);
+
+            // A run with nothing to reuse that fails part way must leave the earlier output alone.
+            try
+            {
+                processDelta(input, output, () -> failing(other.open(), 1000), null,
+                        CheckpointPolicy.fingerprint(other.cipher(), true, other.options()));
+                throw new IllegalStateException("the failing delta run finished");
+            }
+            catch (IllegalStateException e)
+            {
+                expect(e.getMessage().equals("simulated failure"), e.getMessage());
+            }
+            expectSame(expected, output);
+
+            // Nor one that fails while appending after a reused prefix, which the same append then reuses.
+            String text = Files.readString(input, Charset.defaultCharset());
+            StringBuilder appended = new StringBuilder(text);
+            for (int i = 0; i < 400; i++)
+            {
+                // Numbered, so that no block of it repeats one the output already has.
+                appended.append(i).append(' ').append(ENGLISH[i % ENGLISH.length]).append('\n');
+            }
+            processDelta(input, output, job::open, null, fingerprint);
+            byte[] before = Files.readAllBytes(output);
+            Files.writeString(input, appended, Charset.defaultCharset());
+            try
+            {
+                processDelta(input, output, () -> failing(job.open(), 100), null, fingerprint);
+                throw new IllegalStateException("the failing delta append finished");
+            }
+            catch (IllegalStateException e)
+            {
+                expect(e.getMessage().equals("simulated failure"), e.getMessage());
+            }
+            expect(Arrays.equals(before, Files.readAllBytes(output)), "a failed delta append changed the output");
+            Files.writeString(input, text, Charset.defaultCharset());
+            processDelta(input, output, job::open, null, fingerprint);
+            Files.writeString(input, appended, Charset.defaultCharset());
+            ProcessingStats stats = new ProcessingStats("vigenere", Files.size(input));
+            processDelta(input, output, job::open, stats, fingerprint);
+            processFile(input, expected, job::open);
+            expectSame(expected, output);
+            expect(stats.getBytesResumed() > 0, "the append reused no output");
+        }
+
+        private static void ranges(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            String[][] jobs = {
+                    {"cipher", "vigenere", "key", "LEMON"},
+                    {"cipher", "affine", "a", "5", "b", "8", "c", "21"},
+                    {"chain", "vigenere:key=KEY,continuous-key+railfence:rails=4"}};
+            for (String[] settings : jobs)
+            {
+                CipherJob encrypt = job(true, true, settings);
+                CipherJob decrypt = job(false, true, settings);
+                String fingerprint = CheckpointPolicy.fingerprint(encrypt.cipher(), true, encrypt.options());
+                Path encrypted = directory.resolve("encrypted.txt");
+                Path decrypted = directory.resolve("decrypted.txt");
+                expect(processIndexed(input, encrypted, encrypt::open, null, null, null, INDEX_LINES, fingerprint),
+                        "no index was written");
+                processFile(encrypted, decrypted, decrypt::open);
+                byte[] full = Files.readAllBytes(decrypted);
+                long lines = 0;
+                for (byte b : full)
+                {
+                    lines += b == '\n' ? 1 : 0;
+                }
+
+                LineIndex index = LineIndex.open(encrypted, fingerprint);
+                long[][] ranges = {{0, 1}, {0, INDEX_LINES + 3}, {INDEX_LINES - 1, INDEX_LINES + 1},
+                        {lines / 2, lines / 2 + 7}, {lines - 5, lines + 10}};
+                for (long[] range : ranges)
+                {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    RangeDecryptor.decrypt(encrypted, index, decrypt, range[0], range[1], Channels.newChannel(out));
+                    expect(Arrays.equals(out.toByteArray(), lines(full, range[0], range[1])), settings[1] + " lines "
+                            + (range[0] + 1) + " to " + range[1] + " differ from a full decryption");
+                }
+            }
+        }
+
+        private static void foreignIndex(Path directory) throws IOException
+        {
+            Path input = sample(directory);
+            CipherJob job = job(true, true, "cipher", "vigenere", "key", "LEMON");
+            String fingerprint = CheckpointPolicy.fingerprint(job.cipher(), true, job.options());
+            CipherJob other = job(true, true, "cipher", "vigenere", "key", "ORANGE");
+            Path encrypted = directory.resolve("encrypted.txt");
+            processIndexed(input, encrypted, job::open, null, null, null, INDEX_LINES, fingerprint);
+
+            expectRefused(() -> LineIndex.open(encrypted, CheckpointPolicy.fingerprint(other.cipher(), true, other.options())),
+                    "other cipher settings");
+            Path index = LineIndex.pathFor(encrypted);
+            byte[] bytes = Files.readAllBytes(index);
+            Files.write(index, Arrays.copyOf(bytes, bytes.length - 3));
+            expectRefused(() -> LineIndex.open(encrypted, fingerprint), "damaged");
+            Files.write(index, bytes);
+            Files.writeString(encrypted, "one more line\n", Charset.defaultCharset(), StandardOpenOption.APPEND);
+            expectRefused(() -> LineIndex.open(encrypted, fingerprint), "has changed");
+        }
+
+        // Runs the engine and MappedFileEngine on the same files, in three charsets and with every kind of
+        // line terminator the charset can hold, and expects the same bytes from both.
+        private static void compareEngines(Path directory, Random random, String name, Engine engine)
+                throws IOException
+        {
+            Charset[] charsets = {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII};
+            CipherJob[] jobs = {
+                    job(true, true, "cipher", "vigenere", "key", "LEMON"),
+                    job(false, false, "cipher", "vigenere", "key", "LEMON"),
+                    job(true, false, "cipher", "affine", "a", "5", "b", "8", "c", "21"),
+                    job(true, false, "cipher", "railfence", "rails", "4", "offset", "1"),
+                    job(true, false, "cipher", "morse"),
+                    job(false, false, "cipher", "baconian")};
+            Path input = directory.resolve("input.txt");
+            Path expected = directory.resolve("expected.txt");
+            Path output = directory.resolve("output.txt");
+            for (Charset charset : charsets)
+            {
+                int widest = charset.equals(StandardCharsets.UTF_8) ? 0xD7FF
+                        : charset.equals(StandardCharsets.ISO_8859_1) ? 0xFF : 0x7F;
+                String[] terminators = {"\n", "\r\n", "\r", widest > 0x7F ? "\u0085" : "\n",
+                        widest > 0xFF ? "\u2028" : "\r\n"};
+                StringBuilder text = new StringBuilder(ENGINE_TEXT_CHARS + 200);
+                while (text.length() < ENGINE_TEXT_CHARS)
+                {
+                    text.append(randomText(random, widest));
+                    if (widest > 0xFF && random.nextInt(8) == 0)
+                    {
+                        text.append("\uD83D\uDE00");
+                    }
+                    text.append(terminators[random.nextInt(terminators.length)]);
+                }
+                text.append(randomText(random, widest));
+                String plain = text.toString();
+                for (CipherJob job : jobs)
+                {
+                    boolean baconian = job.cipher().name().equals("baconian");
+                    Files.writeString(input, baconian ? encryptBaconian(plain) : plain, charset);
+                    new MappedFileEngine(job.open(), charset).process(input, expected);
+                    engine.open(job, charset).process(input, output);
+                    expect(Files.mismatch(expected, output) < 0, name + " " + job.cipher().name()
+                            + (job.encrypt() ? " encrypt" : " decrypt") + " in " + charset
+                            + " differs from MappedFileEngine at byte " + Files.mismatch(expected, output));
+                }
+            }
+        }
+
+        // The session without its byte forms: asciiBytes() keeps its default of false.
+        private static CipherSession charsOnly(CipherSession session)
+        {
+            return new CipherSession()
+            {
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return session.maxOutputLength(inputLength);
+                }
+
+                @Override
+                public void transform(CharBuffer source, CharBuffer sink)
+                {
+                    session.transform(source, sink);
+                }
+
+                @Override
+                public void endLine(CharBuffer sink)
+                {
+                    session.endLine(sink);
+                }
+
+                @Override
+                public boolean streaming()
+                {
+                    return session.streaming();
+                }
+
+                @Override
+                public boolean continuous()
+                {
+                    return session.continuous();
+                }
+            };
+        }
+
+        // The session, failing on the given line.
+        private static CipherSession failing(CipherSession session, int failingLine)
+        {
+            return new CipherSession()
+            {
+                private int lines;
+
+                @Override
+                public int maxOutputLength(int inputLength)
+                {
+                    return session.maxOutputLength(inputLength);
+                }
+
+                @Override
+                public void transform(CharBuffer source, CharBuffer sink)
+                {
+                    if (++lines == failingLine)
+                    {
+                        throw new IllegalStateException("simulated failure");
+                    }
+                    session.transform(source, sink);
+                }
+
+                @Override
+                public void endLine(CharBuffer sink)
+                {
+                    session.endLine(sink);
+                }
+
+                @Override
+                public boolean continuous()
+                {
+                    return session.continuous();
+                }
+
+                @Override
+                public String state()
+                {
+                    return session.state();
+                }
+
+                @Override
+                public void restoreState(String state)
+                {
+                    session.restoreState(state);
+                }
+            };
+        }
+
+        // Runs the job with checkpoints and fails in the third segment, before its checkpoint, leaving
+        // more output after the last checkpoint than the whole rest of the run would write.
+        private static void crash(Path input, Path output, CipherJob job, String fingerprint) throws IOException
+        {
+            CipherSession session = job.open();
+            MappedFileEngine engine = new MappedFileEngine(session, Charset.defaultCharset());
+            int[] segments = new int[1];
+            FileEngine failing = (in, from, to, out) ->
+            {
+                engine.process(in, from, to, out);
+                if (++segments[0] == 3)
+                {
+                    out.write(ByteBuffer.wrap(new byte[(int) in.size()]));
+                    throw new IOException("simulated crash");
+                }
+            };
+            try
+            {
+                processWithCheckpoints(input, output, failing, session, null,
+                        new CheckpointPolicy(SEGMENT_BYTES, false, false, fingerprint));
+            }
+            catch (IOException e)
+            {
+                if (e.getMessage().equals("simulated crash"))
+                {
+                    return;
+                }
+                throw e;
+            }
+            throw new IllegalStateException("the run finished before the simulated crash");
+        }
+
+        // A job as --batch builds it from --cipher or --chain and the other settings, given as name, value pairs.
+        private static CipherJob job(boolean encrypt, boolean continuousKey, String... settings)
+        {
+            Map<String, String> values = new HashMap<>();
+            values.put("action", encrypt ? "encrypt" : "decrypt");
+            for (int i = 0; i + 1 < settings.length; i += 2)
+            {
+                values.put(settings[i], settings[i + 1]);
+            }
+            CipherOptions options = new CipherOptions();
+            options.continuousKey = continuousKey;
+            return CipherJob.parse(values, options, CipherRegistry.load());
+        }
+
+        private static Path sample(Path directory) throws IOException
+        {
+            Path input = directory.resolve("input.txt");
+            Files.writeString(input, Benchmarks.text("mixed", TEXT_CHARS), Charset.defaultCharset());
+            return input;
+        }
+
+        // Exactly length characters of any kind, for ciphers that only move them around.
+        private static String randomLine(Random random, int length)
+        {
+            char[] line = new char[length];
+            for (int i = 0; i < length; i++)
+            {
+                line[i] = (char) (' ' + random.nextInt(0x3000));
+            }
+            return new String(line);
+        }
+
+        // Up to 100 characters, mostly letters of either case, none above widest.
+        private static String randomText(Random random, int widest)
+        {
+            String wide = "ÀéßÿĀΩ€中\uD83D\uDE00";
+            StringBuilder text = new StringBuilder();
+            for (int length = random.nextInt(100); text.length() < length; )
+            {
+                int kind = random.nextInt(10);
+                char ch = kind < 7 ? (char) ((random.nextBoolean() ? 'A' : 'a') + random.nextInt(26))
+                        : kind < 9 ? " .,!?09@[`{~".charAt(random.nextInt(12))
+                        : wide.charAt(random.nextInt(wide.length()));
+                if (ch <= widest)
+                {
+                    text.append(ch);
+                }
+            }
+            return text.toString();
+        }
+
+        // The bytes of lines [from, to) of the text, counted from 0.
+        private static byte[] lines(byte[] text, long from, long to)
+        {
+            int start = text.length;
+            int end = text.length;
+            long line = 0;
+            for (int i = 0; i <= text.length; i++)
+            {
+                if (line == from && start == text.length)
+                {
+                    start = i;
+                }
+                if (line == to)
+                {
+                    end = i;
+                    break;
+                }
+                if (i < text.length && text[i] == '\n')
+                {
+                    line++;
+                }
+            }
+            return Arrays.copyOfRange(text, Math.min(start, end), end);
+        }
+
+        private static void expect(boolean condition, String problem)
+        {
+            if (!condition)
+            {
+                throw new IllegalStateException(problem);
+            }
+        }
+
+        private static void expectSame(Path expected, Path actual) throws IOException
+        {
+            long mismatch = Files.mismatch(expected, actual);
+            expect(mismatch < 0, actual.getFileName() + " differs from a full run at byte " + mismatch);
+        }
+
+        private static void expectRefused(Step step, String reason) throws IOException
+        {
+            try
+            {
+                step.run();
+            }
+            catch (IOException e)
+            {
+                if (e.getMessage() != null && e.getMessage().contains(reason))
+                {
+                    return;
+                }
+                throw new IllegalStateException("refused for another reason: " + e.getMessage());
+            }
+            throw new IllegalStateException("accepted what should have been refused (" + reason + ")");
         }
 
-        // Define reverse mapping for Morse code to letters and digits.
-        java.util.Map<String, Character> morseToChar = new java.util.HashMap<>();
-        morseToChar.put(".-", 'A');
-        morseToChar.put("-...", 'B');
-        morseToChar.put("-.-.", 'C');
-        morseToChar.put("-..", 'D');
-        morseToChar.put(".", 'E');
-        morseToChar.put("..-.", 'F');
-        morseToChar.put("--.", 'G');
-        morseToChar.put("....", 'H');
-        morseToChar.put("..", 'I');
-        morseToChar.put(".---", 'J');
-        morseToChar.put("-.-", 'K');
-        morseToChar.put(".-..", 'L');
-        morseToChar.put("--", 'M');
-        morseToChar.put("-.", 'N');
-        morseToChar.put("---", 'O');
-        morseToChar.put(".--.", 'P');
-        morseToChar.put("--.-", 'Q');
-        morseToChar.put(".-.", 'R');
-        morseToChar.put("...", 'S');
-        morseToChar.put("-", 'T');
-        morseToChar.put("..-", 'U');
-        morseToChar.put("...-", 'V');
-        morseToChar.put(".--", 'W');
-        morseToChar.put("-..-", 'X');
-        morseToChar.put("-.--", 'Y');
-        morseToChar.put("--..", 'Z');
-        morseToChar.put("-----", '0');
-        morseToChar.put(".----", '1');
-        morseToChar.put("..---", '2');
-        morseToChar.put("...--", '3');
-        morseToChar.put("....-", '4');
-        morseToChar.put(".....", '5');
-        morseToChar.put("-....", '6');
-        morseToChar.put("--...", '7');
-        morseToChar.put("---..", '8');
-        morseToChar.put("----.", '9');
-
-        StringBuilder output = new StringBuilder();
-        // Split the input by space to get individual Morse code tokens.
-        String[] tokens = input.trim().split("\\s+");
-
-        for (String token : tokens)
-        {
-            // If token is "/" it represents a space between words.
-            if (token.equals("/"))
-            {
-                output.append(" ");
-            }
-            else if (morseToChar.containsKey(token))
-            {
-                output.append(morseToChar.get(token));
-            }
-            // Unknown tokens are ignored.
-        }
-
-        return output.toString();
+        private static void deleteDirectory(Path directory)
+        {
+            if (directory == null)
+            {
+                return;
+            }
+            try (Stream<Path> paths = Files.walk(directory))
+            {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                {
+                    Files.deleteIfExists(path);
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not delete " + directory + ": " + e.getMessage());
+            }
+        }
     }
 
     // ***********************
@@ -477,6 +10100,169 @@ public class Main
 
     public static void main(String[] args)
     {
+        if (args.length > 0 && args[0].equals("--batch"))
+        {
+            System.exit(BatchRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--bench"))
+        {
+            System.exit(Benchmarks.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--identify"))
+        {
+            System.exit(CipherIdentifier.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--serve"))
+        {
+            System.exit(CipherService.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--submit"))
+        {
+            System.exit(CipherClient.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--range"))
+        {
+            System.exit(RangeDecryptor.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--selftest"))
+        {
+            System.exit(SelfTest.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        // Long runs are checkpointed next to the output; --resume picks up after a crash.
+        // --pipeline overlaps reading, ciphering and writing (see PipelinedFileEngine), and --delta
+        // reuses the output of the last run for the parts of the input that did not change.
+        // Gzip input is recognised on its own, zlib input by a .zz or .zlib name; --compress gzips the output.
+        // --index-lines N indexes an encrypted output every N lines for --range.
+        // Rail‑Fence keeps the classic three rails from the top unless --rails, --offset or --block say otherwise,
+        // and a Vigenère key restarts on every line unless --continuous-key runs it on through the whole file.
+        // --packed stores Baconian ciphertext as a packed bitstream instead of 'a'/'b' text.
+        // --stats FILE writes the run's statistics there as JSON.
+        CipherOptions options = new CipherOptions();
+        int rails = 3;
+        int railOffset = 0;
+        boolean railsGiven = false;
+        boolean blockGiven = false;
+        boolean continuousKey = false;
+        boolean packed = false;
+        boolean resume = false;
+        boolean delta = false;
+        boolean compress = false;
+        int indexLines = 0;
+        long checkpointMb = CheckpointPolicy.DEFAULT_INTERVAL_MB;
+        boolean checkpointMbGiven = false;
+        PipelinedFileEngine.Settings pipeline = null;
+        int queueDepth = PipelinedFileEngine.DEFAULT_QUEUE_DEPTH;
+        int bufferKb = PipelinedFileEngine.DEFAULT_BUFFER_KB;
+        Path statsFile = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            try
+            {
+                if (args[i].equals("--resume"))
+                {
+                    resume = true;
+                }
+                else if (args[i].equals("--continuous-key"))
+                {
+                    continuousKey = true;
+                }
+                else if (args[i].equals("--packed"))
+                {
+                    packed = true;
+                }
+                else if (args[i].equals("--delta"))
+                {
+                    delta = true;
+                }
+                else if (args[i].equals("--compress"))
+                {
+                    compress = true;
+                }
+                else if (args[i].equals("--index-lines") && i + 1 < args.length && Integer.parseInt(args[i + 1]) > 0)
+                {
+                    indexLines = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--rails") && i + 1 < args.length)
+                {
+                    rails = Integer.parseInt(args[i + 1]);
+                    railsGiven = true;
+                    i++;
+                }
+                else if (args[i].equals("--offset") && i + 1 < args.length)
+                {
+                    railOffset = Integer.parseInt(args[i + 1]);
+                    railsGiven = true;
+                    i++;
+                }
+                else if (args[i].equals("--block") && i + 1 < args.length && Integer.parseInt(args[i + 1]) >= 0)
+                {
+                    options.railBlockSize = Integer.parseInt(args[++i]);
+                    blockGiven = true;
+                }
+                else if (args[i].equals("--checkpoint-mb") && i + 1 < args.length && Long.parseLong(args[i + 1]) >= 0)
+                {
+                    checkpointMb = Long.parseLong(args[++i]);
+                    checkpointMbGiven = true;
+                }
+                else if (args[i].equals("--pipeline"))
+                {
+                    pipeline = PipelinedFileEngine.Settings.of(queueDepth, bufferKb);
+                }
+                else if (args[i].equals("--queue-depth") && i + 1 < args.length)
+                {
+                    pipeline = PipelinedFileEngine.Settings.of(queueDepth = Integer.parseInt(args[i + 1]), bufferKb);
+                    i++;
+                }
+                else if (args[i].equals("--buffer-kb") && i + 1 < args.length)
+                {
+                    pipeline = PipelinedFileEngine.Settings.of(queueDepth, bufferKb = Integer.parseInt(args[i + 1]));
+                    i++;
+                }
+                else if (args[i].equals("--stats") && i + 1 < args.length)
+                {
+                    statsFile = Paths.get(args[++i]);
+                }
+                else
+                {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("Unexpected argument " + args[i]);
+                System.err.println("Usage: [--rails N] [--offset N] [--block N] [--continuous-key] [--packed] "
+                        + "[--resume] [--checkpoint-mb N (0 for none)] [--pipeline] [--queue-depth N] [--buffer-kb N] "
+                        + "[--delta] [--compress] [--index-lines N] [--stats FILE.json], "
+                        + "or --batch, --bench, --identify, --serve, --submit, --range or --selftest");
+                System.exit(2);
+            }
+        }
+        if (railsGiven)
+        {
+            try
+            {
+                options.fence = new RailFence(rails, railOffset);
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+        }
+        if (delta && indexLines > 0)
+        {
+            System.err.println("--delta and --index-lines cannot be combined");
+            System.exit(2);
+        }
+        // A delta run reuses the blocks of the last output in place of checkpoints and the pipeline.
+        if (delta && (packed || resume || checkpointMbGiven || pipeline != null))
+        {
+            System.err.println("--delta cannot be combined with --packed, --resume, --checkpoint-mb, --pipeline, "
+                    + "--queue-depth or --buffer-kb");
+            System.exit(2);
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("Welcome to my cipher solver");
@@ -494,169 +10280,339 @@ public class Main
         }
 
         // Display available cipher options.
-        System.out.println("(1) Rail‑Fence Cipher");
-        System.out.println("(2) Vigenère Cipher");
-        System.out.println("(3) Baconian Cipher");
-        System.out.println("(4) Affine Cipher");
-        System.out.println("(5) Morse Code");
-        System.out.print("Choose cipher type (1, 2, 3, 4, or 5): ");
+        CipherRegistry registry = CipherRegistry.load();
+        List<Cipher> ciphers = registry.all();
+        for (int i = 0; i < ciphers.size(); i++)
+        {
+            System.out.println("(" + (i + 1) + ") " + ciphers.get(i).displayName());
+        }
+        String pipelineChoice = String.valueOf(ciphers.size() + 1);
+        System.out.println("(" + pipelineChoice + ") Pipeline of several ciphers in one pass");
+        String identifyChoice = String.valueOf(ciphers.size() + 2);
+        System.out.println("(" + identifyChoice + ") Identify the cipher of this file");
+        System.out.print("Choose cipher type (" + registry.menuChoices(2) + "): ");
         String cipherChoice = scanner.next().trim();
         scanner.nextLine(); // Consume newline
 
+        // Identification only reads the start of the file and writes nothing.
+        if (cipherChoice.equals(identifyChoice))
+        {
+            try
+            {
+                System.out.print(CipherIdentifier.report(inputFile.toPath(), Charset.defaultCharset(),
+                        CipherIdentifier.DEFAULT_SAMPLE_KB * 1024L, registry));
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing " + filename + ": " + e.getMessage());
+            }
+            scanner.close();
+            return;
+        }
+
         // Check if a valid cipher option was selected.
-        if (!cipherChoice.equals("1") && !cipherChoice.equals("2") &&
-                !cipherChoice.equals("3") && !cipherChoice.equals("4") && !cipherChoice.equals("5"))
+        Cipher cipher;
+        if (cipherChoice.equals(pipelineChoice))
+        {
+            // Every stage carries its own settings, so none of the per-cipher questions below apply.
+            System.out.println("List the ciphers in encryption order; decryption runs them in reverse.");
+            System.out.print("Enter the pipeline, e.g. vigenere:key=LEMON+affine:a=5,b=8,c=21+railfence:rails=3: ");
+            try
+            {
+                cipher = CipherChain.parse(scanner.nextLine().trim(), registry);
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.out.println("Invalid pipeline: " + e.getMessage() + ". Exiting.");
+                scanner.close();
+                return;
+            }
+        }
+        else
+        {
+            cipher = registry.byMenuChoice(cipherChoice);
+        }
+        if (cipher == null)
         {
             System.out.println("Invalid cipher type selected. Exiting.");
             scanner.close();
             return;
         }
+        if (packed && !cipher.name().equals("baconian"))
+        {
+            System.out.println("--packed only applies to the Baconian cipher. Exiting.");
+            scanner.close();
+            return;
+        }
+        if ((railsGiven || blockGiven) && !cipher.name().equals("railfence"))
+        {
+            System.out.println("--rails, --offset and --block only apply to the Rail‑Fence cipher. Exiting.");
+            scanner.close();
+            return;
+        }
+        if (continuousKey && !cipher.name().equals("vigenere"))
+        {
+            System.out.println("--continuous-key only applies to the Vigenère cipher. Exiting.");
+            scanner.close();
+            return;
+        }
 
-        System.out.print("Would you like to (1) encrypt or (2) decrypt? ");
+        // Vigenère and Affine ciphertext can also be decrypted without the key by recovering it first.
+        boolean recoverable = cipher.name().equals("vigenere") || cipher.name().equals("affine");
+        System.out.print(recoverable
+                ? "Would you like to (1) encrypt, (2) decrypt or (3) recover the key and decrypt? "
+                : "Would you like to (1) encrypt or (2) decrypt? ");
         String action = scanner.next().trim();
         scanner.nextLine(); // Consume newline
 
         // Validate the action choice.
-        if (!action.equals("1") && !action.equals("2"))
+        if (!action.equals("1") && !action.equals("2") && !(recoverable && action.equals("3")))
         {
             System.out.println("Invalid action selected. Exiting.");
             scanner.close();
             return;
         }
 
-        String key = "";
+        boolean recover = recoverable && action.equals("3");
+        // Key recovery works on a key that restarts on every line, and only encryption writes an index.
+        if (continuousKey && recover)
+        {
+            System.out.println("--continuous-key cannot be used when recovering the key. Exiting.");
+            scanner.close();
+            return;
+        }
+        if (indexLines > 0 && !action.equals("1"))
+        {
+            System.out.println("--index-lines only applies to encryption. Exiting.");
+            scanner.close();
+            return;
+        }
+
+        // Recover the Vigenère key from the ciphertext and decrypt with the best candidate; with a
+        // wordlist, every word is tried as the key first.
+        String wordlist = "";
+        if (recover && cipher.name().equals("vigenere"))
+        {
+            System.out.print("Wordlist for a dictionary attack (blank to recover the key statistically): ");
+            wordlist = scanner.nextLine().trim();
+        }
+        if (recover && cipher.name().equals("vigenere") && !wordlist.isEmpty())
+        {
+            DictionaryAttack.Match match;
+            try
+            {
+                long started = System.nanoTime();
+                List<String> words = DictionaryAttack.readWords(Paths.get(wordlist));
+                DictionaryAttack attack = new DictionaryAttack(WordTrie.of(words), words);
+                attack.addFile(inputFile.toPath(), Charset.defaultCharset());
+                long loaded = System.nanoTime();
+                match = attack.attack(DictionaryAttack.DEFAULT_CONFIDENCE);
+                double seconds = Math.max(1e-9, (System.nanoTime() - loaded) / 1e9);
+                System.out.printf(Locale.ROOT, "Loaded %,d words in %.3f s; tried %,d keys in %.3f s (%.2f million keys/s)%n",
+                        words.size(), (loaded - started) / 1e9, attack.tried(), seconds, attack.tried() / seconds / 1e6);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing " + filename + ": " + e.getMessage());
+                scanner.close();
+                return;
+            }
+            if (match != null)
+            {
+                System.out.printf(Locale.ROOT, "Best key %s: %.1f%% of the sample decrypts to dictionary words%n",
+                        match.key(), 100 * match.score());
+                options.key = match.key();
+                System.out.println("Decrypting with key " + options.key);
+            }
+            else
+            {
+                System.out.println("No word of the list decrypts the sample to words; recovering the key statistically.");
+            }
+        }
+        if (recover && cipher.name().equals("vigenere") && options.key.isEmpty())
+        {
+            List<VigenereSolver.KeyCandidate> candidates;
+            try
+            {
+                VigenereSolver solver = new VigenereSolver(VigenereSolver.DEFAULT_MAX_KEY_LENGTH);
+                solver.addFile(inputFile.toPath(), Charset.defaultCharset());
+                candidates = solver.solve(5);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing " + filename + ": " + e.getMessage());
+                scanner.close();
+                return;
+            }
+            if (candidates.isEmpty())
+            {
+                System.out.println("The file has no letters to analyse, so no key can be recovered. Exiting.");
+                scanner.close();
+                return;
+            }
+            System.out.println("Candidate keys (lower score is better):");
+            for (VigenereSolver.KeyCandidate candidate : candidates)
+            {
+                System.out.printf(Locale.ROOT, "  %-20s score %.4f  IoC %.4f%n",
+                        candidate.key(), candidate.score(), candidate.indexOfCoincidence());
+            }
+            options.key = candidates.get(0).key();
+            System.out.println("Decrypting with key " + options.key);
+        }
         // Only the Vigenère cipher requires a key.
-        if (cipherChoice.equals("2"))
+        else if (!recover && cipher.name().equals("vigenere"))
         {
             System.out.print("Enter key for Vigenère cipher: ");
-            key = scanner.nextLine().trim();
+            options.key = scanner.nextLine().trim();
 
             // Ensure the key is not empty.
-            while (key.isEmpty())
+            while (options.key.isEmpty())
             {
                 System.out.print("Key cannot be empty. Enter key for Vigenère cipher: ");
-                key = scanner.nextLine().trim();
+                options.key = scanner.nextLine().trim();
             }
+            options.continuousKey = continuousKey;
         }
 
-        // Set default parameters for Affine cipher.
-        int a = 5, b = 8, c = 21;
-        if (cipherChoice.equals("4"))
+        // Try every Affine key on a sample and decrypt with the most English-looking one.
+        if (recover && cipher.name().equals("affine"))
+        {
+            AffineCracker.AffineKey key;
+            try
+            {
+                AffineCracker cracker = new AffineCracker();
+                cracker.addFile(inputFile.toPath(), Charset.defaultCharset());
+                key = cracker.crack();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error processing " + filename + ": " + e.getMessage());
+                scanner.close();
+                return;
+            }
+            if (key == null)
+            {
+                System.out.println("The file has no letters to analyse, so no key can be recovered. Exiting.");
+                scanner.close();
+                return;
+            }
+            options.a = key.a();
+            options.b = key.b();
+            options.c = key.c();
+            System.out.printf(Locale.ROOT, "Decrypting with a = %d, b = %d, c = %d%n", options.a, options.b, options.c);
+        }
+        // Default parameters for the Affine cipher are (5, 8, 21).
+        else if (cipher.name().equals("affine"))
         {
             System.out.println("Enter parameters for affine cipher (a, b, c) or leave blank for defaults (5, 8, 21).");
             System.out.println("Note that (a * c) mod 26 must equal 1 !");
             System.out.print("Enter a: ");
-            a = scanner.nextInt();
+            options.a = scanner.nextInt();
             System.out.print("Enter b: ");
-            b = scanner.nextInt();
+            options.b = scanner.nextInt();
             System.out.print("Enter c: ");
-            c = scanner.nextInt();
+            options.c = scanner.nextInt();
             // Validate parameters: (a * c) mod 26 must equal 1.
-            while ((a * c) % 26 != 1)
+            while ((options.a * options.c) % 26 != 1)
             {
                 System.out.println("Invalid parameters. Try again.");
                 System.out.println("Note that (a * c) mod 26 must equal 1 !");
                 System.out.print("Enter a: ");
-                a = scanner.nextInt();
+                options.a = scanner.nextInt();
                 System.out.print("Enter b: ");
-                b = scanner.nextInt();
+                options.b = scanner.nextInt();
                 System.out.print("Enter c: ");
-                c = scanner.nextInt();
+                options.c = scanner.nextInt();
             }
             scanner.nextLine(); // Consume the newline after reading integers
         }
 
         // Process the input file and write the results to "Processing_File.txt".
-        try (Scanner fileScanner = new Scanner(inputFile);
-             FileWriter writer = new FileWriter("Processing_File.txt"))
+        // Packed ciphertext is binary, so it gets its own extension.
+        boolean encrypt = action.equals("1");
+        String outputName = packed && encrypt ? "Processing_File.bac"
+                : compress && !packed ? "Processing_File.txt" + Compression.GZIP.suffix : "Processing_File.txt";
+        Path input = inputFile.toPath();
+        Path output = Paths.get(outputName);
+        PipelinedFileEngine.Settings settings = pipeline; // the option variables are not final
+        int interval = indexLines;
+        try
         {
-            // Process the file line by line.
-            while (fileScanner.hasNextLine())
+            if (packed && encrypt)
             {
-                String line = fileScanner.nextLine();
-                String processedLine = "";
-
-                // Choose the cipher based on user selection.
-                if (cipherChoice.equals("1"))
+                replaceOutput(output, false,
+                        target -> BaconianPacked.encodeFile(input, target, Charset.defaultCharset()));
+            }
+            else if (packed)
+            {
+                replaceOutput(output, false,
+                        target -> BaconianPacked.decodeFile(input, target, Charset.defaultCharset()));
+            }
+            else
+            {
+                // The cipher and direction are resolved once; every line then goes straight to the session.
+                ProcessingStats stats = new ProcessingStats(cipher.name(), inputFile.length());
+                CheckpointPolicy checkpoints = new CheckpointPolicy(checkpointMb << 20, resume, false,
+                        CheckpointPolicy.fingerprint(cipher, encrypt, options));
+                if (resume)
                 {
-                    // Rail‑Fence Cipher
-                    if (action.equals("1"))
-                    {
-                        // Encrypt using Rail‑Fence cipher.
-                        processedLine = encryptRailFence(line);
-                    }
-                    else
-                    {
-                        // Decrypt using Rail‑Fence cipher.
-                        processedLine = decryptRailFence(line);
-                    }
+                    // An unfinished run keeps its output under the partial name until it completes.
+                    CheckpointJournal journal = CheckpointJournal.read(
+                            Files.exists(CheckpointJournal.pathFor(output)) ? output : partialOutput(output));
+                    System.out.println(journal == null ? "No checkpoint found; starting from the beginning."
+                            : String.format(Locale.ROOT, "Resuming from byte %,d of %,d.", journal.inputOffset, journal.inputSize));
                 }
-                else if (cipherChoice.equals("2"))
+                ProcessingMonitor monitor = new ProcessingMonitor(stats);
+                try
                 {
-                    // Vigenère Cipher
-                    if (action.equals("1"))
-                    {
-                        // Encrypt using Vigenère cipher.
-                        processedLine = encryptVigenere(line, key);
-                    }
-                    else
+                    if (delta)
                     {
-                        // Decrypt using Vigenère cipher.
-                        processedLine = decryptVigenere(line, key);
+                        processDelta(input, output, () -> cipher.open(encrypt, options), stats,
+                                checkpoints.job());
                     }
-                }
-                else if (cipherChoice.equals("3"))
-                {
-                    // Baconian Cipher
-                    if (action.equals("1"))
+                    else if (indexLines > 0 && encrypt)
                     {
-                        // Encrypt using Baconian cipher.
-                        processedLine = encryptBaconian(line);
+                        boolean[] indexed = new boolean[1];
+                        replaceOutput(output, resume, target -> indexed[0] = processIndexed(input, target,
+                                () -> cipher.open(encrypt, options), stats, checkpoints, settings, interval,
+                                CheckpointPolicy.fingerprint(cipher, true, options)));
+                        System.out.println(indexed[0]
+                                ? "Indexed every " + indexLines + " lines in " + LineIndex.pathFor(output)
+                                : "The output was not indexed: it is compressed, or a line feed is not one byte in this charset.");
                     }
                     else
                     {
-                        // Decrypt using Baconian cipher.
-                        processedLine = decryptBaconian(line);
+                        replaceOutput(output, resume, target -> processFile(input, target,
+                                () -> cipher.open(encrypt, options), stats, checkpoints, settings));
                     }
                 }
-                else if (cipherChoice.equals("4"))
+                finally
                 {
-                    // Affine Cipher
-                    if (action.equals("1"))
-                    {
-                        // Encrypt using Affine cipher.
-                        processedLine = encryptAffine(line, a, b, c);
-                    }
-                    else
-                    {
-                        // Decrypt using Affine cipher.
-                        processedLine = decryptAffine(line, a, b, c);
-                    }
+                    monitor.close();
                 }
-                else if (cipherChoice.equals("5"))
+                if (delta)
                 {
-                    // Morse Code
-                    if (action.equals("1"))
-                    {
-                        // Encrypt using Morse Code.
-                        processedLine = encryptMorseCode(line);
-                    }
-                    else
-                    {
-                        // Decrypt using Morse Code.
-                        processedLine = decryptMorseCode(line);
-                    }
+                    System.out.printf(Locale.ROOT, "Reused the output of %,d unchanged bytes.%n", stats.getBytesResumed());
+                }
+                System.out.printf(Locale.ROOT, "Processed %,d bytes and %,d lines in %.3f s (%.1f MB/s)%n",
+                        stats.getBytesRead(), stats.getLines(), stats.getElapsedSeconds(),
+                        stats.getBytesPerSecond() / 1048576.0);
+                if (statsFile != null)
+                {
+                    Map<String, Object> run = new LinkedHashMap<>();
+                    run.put("action", encrypt ? "encrypt" : "decrypt");
+                    run.put("input", filename);
+                    run.put("output", outputName);
+                    Files.writeString(statsFile, stats.toJson(run));
+                    System.out.println("Statistics saved as " + statsFile);
                 }
-
-                // Write the processed line to the output file, appending a newline.
-                writer.write(processedLine + System.lineSeparator());
             }
 
-            System.out.println("Operation completed. Processed file saved as Processing_File.txt");
+            System.out.println("Operation completed. Processed file saved as " + outputName);
         }
         catch (IOException e)
         {
-            System.err.println("Error processing the file: " + e.getMessage());
+            System.err.println("Error processing " + filename + ": " + e.getMessage());
         }
 
         scanner.close();